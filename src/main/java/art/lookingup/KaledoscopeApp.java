@@ -26,6 +26,11 @@ import java.util.Date;
 import java.util.List;
 import java.util.logging.*;
 
+import art.lookingup.output.ArtNetReceiver;
+import art.lookingup.output.ControllerConfig;
+import art.lookingup.output.FramePlayer;
+import art.lookingup.output.FrameRecorder;
+import art.lookingup.render.PreRenderer;
 import art.lookingup.ui.*;
 import heronarts.lx.LX;
 import heronarts.lx.LXPlugin;
@@ -63,10 +68,21 @@ public class KaledoscopeApp extends PApplet implements LXPlugin {
   // pre-requisites for the model construction.
   public static ParameterFile runsConfigParams;
   public static ParameterFile strandLengthsParams;
+  // Output configuration, loaded up front so that output can also be configured in headless mode.
+  public static ParameterFile pixliteParams;
+  public static ParameterFile mappingParams;
+  static public int totalOutputs;
   static public int runsButterflies;
   static public int runsFlowers;
   static public List<Integer> allStrandLengths;
 
+  // Set with --receiver port to run a loopback ArtNet receiver in process, mapped from the output plan.
+  static ArtNetReceiver loopbackReceiver;
+  // Set with --record file to record every frame sent to the output.
+  static File recordFile;
+  // Set with --timings seconds to log send timing percentiles every that many seconds.
+  static int timingLogSeconds = 0;
+
   static {
     System.setProperty(
         "java.util.logging.SimpleFormatter.format",
@@ -145,12 +161,23 @@ public class KaledoscopeApp extends PApplet implements LXPlugin {
    * TODO(tracy): It would be better to have a strand type and then just list the number of fixtures on that
    * strand from which we can compute the number of LEDs.
    */
-  public void loadModelParams() {
+  static public void loadModelParams() {
     runsConfigParams = ParameterFile.instantiateAndLoad(RunsConfig.filename);
     strandLengthsParams = ParameterFile.instantiateAndLoad(StrandLengths.filename);
     runsButterflies = Integer.parseInt(runsConfigParams.getStringParameter(RunsConfig.BUTTERFLY_RUNS,"3").getString());
     runsFlowers = Integer.parseInt(runsConfigParams.getStringParameter(RunsConfig.FLOWER_RUNS, "4").getString());
     allStrandLengths = StrandLengths.getAllStrandLengths(strandLengthsParams);
+
+    pixliteParams = ParameterFile.instantiateAndLoad(UIPixliteConfig.filename);
+    UIPixliteConfig.loadParameters(pixliteParams);
+    mappingParams = ParameterFile.instantiateAndLoad(MappingConfig.filename);
+    totalOutputs = ControllerConfig.DEFAULT_OUTPUTS;
+    try {
+      totalOutputs = ControllerConfig.totalOutputs(UIPixliteConfig.getControllers(pixliteParams));
+    } catch (IllegalArgumentException iaex) {
+      // Invalid topology is reported when the output is configured.
+    }
+    MappingConfig.loadParameters(mappingParams, totalOutputs);
   }
 
   /**
@@ -201,6 +228,27 @@ public class KaledoscopeApp extends PApplet implements LXPlugin {
     // you cannot assume you are working with an LXStudio class or that any UI will be
     // available.
     registerAll(lx);
+    if (recordFile != null) {
+      try {
+        Output.setRecorder(lx, new FrameRecorder(lx, recordFile, lx.getModel().size));
+        logger.info("Recording frames to " + recordFile);
+      } catch (IOException ioex) {
+        logger.log(Level.SEVERE, "Error creating recording " + recordFile, ioex);
+      }
+    }
+    if (timingLogSeconds > 0) {
+      Output.startTimingLog(timingLogSeconds);
+    }
+    if (loopbackReceiver != null) {
+      loopbackReceiver.setEngineFrameClock(Output::getLastFrameNanos);
+      loopbackReceiver.setLogStats(true);
+      Output.setLoopbackReceiver(loopbackReceiver);
+      try {
+        loopbackReceiver.start();
+      } catch (IOException ioex) {
+        logger.log(Level.SEVERE, "Error starting loopback receiver", ioex);
+      }
+    }
   }
 
   public void initializeUI(LXStudio lx, LXStudio.UI ui) {
@@ -216,8 +264,8 @@ public class KaledoscopeApp extends PApplet implements LXPlugin {
     ui.preview.addComponent(axes);
     previewComponents = (UIPreviewComponents) new UIPreviewComponents(lx.ui).setExpanded(false).addToContainer(lx.ui.leftPane.global);
 
-    pixliteConfig = (UIPixliteConfig) new UIPixliteConfig(lx.ui, lx).setExpanded(false).addToContainer(lx.ui.leftPane.global);
-    mappingConfig = (MappingConfig) new MappingConfig(lx.ui, lx).setExpanded(false).addToContainer(lx.ui.leftPane.global);
+    pixliteConfig = (UIPixliteConfig) new UIPixliteConfig(lx.ui, lx, pixliteParams).setExpanded(false).addToContainer(lx.ui.leftPane.global);
+    mappingConfig = (MappingConfig) new MappingConfig(lx.ui, lx, mappingParams, totalOutputs).setExpanded(false).addToContainer(lx.ui.leftPane.global);
     runsConfig = (RunsConfig) new RunsConfig(lx.ui, lx, runsConfigParams).setExpanded(false).addToContainer(lx.ui.leftPane.global);
     strandLengths = (StrandLengths) new StrandLengths(lx.ui, lx, strandLengthsParams).setExpanded(false).addToContainer(lx.ui.leftPane.global);
 
@@ -229,6 +277,62 @@ public class KaledoscopeApp extends PApplet implements LXPlugin {
     // will run a draw-loop.
   }
 
+  static KaledoscopeModel createHeadlessModel() {
+    loadModelParams();
+    logger.info("Creating model");
+    return KaledoscopeModel.createModel(runsButterflies, 2, 20);
+  }
+
+  /**
+   * Builds an LX engine with our model and the pixlite output configured from the parameter files, for
+   * modes that run without the UI.
+   */
+  static LX createHeadless(LX.Flags flags) {
+    LX lx = new LX(flags, createHeadlessModel()) {};
+    Output.configurePixliteOutput(lx);
+    return lx;
+  }
+
+  /**
+   * Replays a recording made with --record straight into the output.  The engine is never started, so no
+   * patterns run.
+   */
+  static void playHeadless(File playFile, boolean loop) {
+    LX lx = createHeadless(new LX.Flags());
+    if (timingLogSeconds > 0) {
+      Output.startTimingLog(timingLogSeconds);
+    }
+    try {
+      FramePlayer player = new FramePlayer(playFile);
+      if (player.getNumPoints() != lx.getModel().size) {
+        logger.warning("Recording has " + player.getNumPoints() + " points but the model has " + lx.getModel().size);
+      }
+      player.play(lx.engine.output, loop);
+      player.close();
+    } catch (IOException ioex) {
+      logger.log(Level.SEVERE, "Error playing " + playFile, ioex);
+    }
+    lx.dispose();
+  }
+
+  /**
+   * Renders a timeline of the project's patterns to disk for the PreRendered pattern, using every core.
+   */
+  static void preRender(File projectFile, File timelineFile, File outDir, float fps) {
+    KaledoscopeModel model = createHeadlessModel();
+    KaledoscopeApp app = new KaledoscopeApp();
+    // Patterns read the published model, and each render thread gets an identical model of its own.
+    PreRenderer renderer = new PreRenderer(projectFile, () -> KaledoscopeModel.build(runsButterflies,
+        model.strandsPerRun, model.butterfliesPerStrand, runsFlowers, allStrandLengths, null), app::registerAll, fps);
+    try {
+      renderer.render(PreRenderer.parseTimeline(timelineFile), outDir, Runtime.getRuntime().availableProcessors());
+    } catch (IOException ioex) {
+      logger.log(Level.SEVERE, "Pre-render failed", ioex);
+    } catch (InterruptedException iex) {
+      logger.warning("Pre-render interrupted");
+    }
+  }
+
   /**
    * Main interface into the program. Two modes are supported, if the --headless
    * flag is supplied then a raw CLI version of LX is used. If not, then we embed
@@ -240,6 +344,12 @@ public class KaledoscopeApp extends PApplet implements LXPlugin {
     LX.log("Initializing LX version " + LXStudio.VERSION);
     boolean headless = false;
     File projectFile = null;
+    File playFile = null;
+    boolean loop = false;
+    File timelineFile = null;
+    File preRenderDir = null;
+    float fps = 60;
+    int[] benchButterflies = null;
     for (int i = 0; i < args.length; ++i) {
       if ("--help".equals(args[i]) || "-h".equals(args[i])) {
       } else if ("--headless".equals(args[i])) {
@@ -258,6 +368,57 @@ public class KaledoscopeApp extends PApplet implements LXPlugin {
         } catch (Exception x ) {
           LX.error("Height command-line argument must be followed by integer");
         }
+      } else if ("--receiver".equals(args[i])) {
+        // Stand-in for a Pixlite on loopback for benchmarking the output path.  Point the pixlite topology
+        // at 127.0.0.1:port.  Its universes and outputs come from the output plan compiled for that controller.
+        try {
+          loopbackReceiver = new ArtNetReceiver(Integer.parseInt(args[++i]));
+        } catch (Exception x) {
+          LX.error("Receiver command-line argument must be followed by port");
+        }
+      } else if ("--record".equals(args[i])) {
+        if (++i < args.length) {
+          recordFile = new File(args[i]);
+        } else {
+          LX.error("Record command-line argument must be followed by a file name");
+        }
+      } else if ("--timings".equals(args[i])) {
+        try {
+          timingLogSeconds = Integer.parseInt(args[++i]);
+        } catch (Exception x) {
+          LX.error("Timings command-line argument must be followed by a number of seconds");
+        }
+      } else if ("--play".equals(args[i])) {
+        if (++i < args.length) {
+          playFile = new File(args[i]);
+        } else {
+          LX.error("Play command-line argument must be followed by a file name");
+        }
+      } else if ("--loop".equals(args[i])) {
+        loop = true;
+      } else if ("--prerender".equals(args[i])) {
+        if (i + 2 < args.length) {
+          timelineFile = new File(args[++i]);
+          preRenderDir = new File(args[++i]);
+        } else {
+          LX.error("Prerender command-line argument must be followed by a timeline file and output directory");
+        }
+      } else if ("--fps".equals(args[i])) {
+        try {
+          fps = Float.parseFloat(args[++i]);
+        } catch (Exception x) {
+          LX.error("Fps command-line argument must be followed by a number");
+        }
+      } else if ("--benchmodel".equals(args[i])) {
+        try {
+          String[] counts = args[++i].split(",");
+          benchButterflies = new int[counts.length];
+          for (int c = 0; c < counts.length; c++) {
+            benchButterflies[c] = Integer.parseInt(counts[c].trim());
+          }
+        } catch (Exception x) {
+          LX.error("Benchmodel command-line argument must be followed by butterfly counts, e.g. 1000,5000,20000");
+        }
       } else if (args[i].endsWith(".lxp")) {
         try {
           projectFile = new File(args[i]);
@@ -266,7 +427,20 @@ public class KaledoscopeApp extends PApplet implements LXPlugin {
         }
       }
     }
-    if (headless) {
+    if (benchButterflies != null) {
+      ModelBenchmark.run(benchButterflies, 100);
+      System.exit(0);
+    } else if (timelineFile != null) {
+      if (projectFile == null) {
+        LX.error("Prerender requires a project file");
+      } else {
+        preRender(projectFile, timelineFile, preRenderDir, fps);
+      }
+      // Render LX instances may leave non-daemon threads behind.
+      System.exit(0);
+    } else if (playFile != null) {
+      playHeadless(playFile, loop);
+    } else if (headless) {
       // We're not actually going to run this as a PApplet, but we need to explicitly
       // construct and set the initialize callback so that any custom components
       // will be run
@@ -4,6 +4,8 @@ import heronarts.lx.model.LXModel;
 import heronarts.lx.model.LXPoint;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -14,11 +16,23 @@ public class KaledoscopeModel extends LXModel {
 
   private static final Logger logger = Logger.getLogger(KaledoscopeModel.class.getName());
 
-  public static List<LUButterfly> allButterflies;
-  public static List<LUFlower> allFlowers;
-  public static List<Run> allRuns;
-  public static List<Strand> allStrands;
-  public static int numStrandsPerRun;
+  // The current model, see publish().
+  private static volatile ModelSnapshot snapshot = null;
+
+  public final List<Run> runs;
+  public final List<Strand> strands;
+  public final List<LUButterfly> butterflies;
+  public final List<LUFlower> flowers;
+  public final int strandsPerRun;
+  public final int butterfliesPerStrand;
+  // The configured length of every strand id the model was built with.
+  final List<Integer> strandLengths;
+  // How many runs were reused from the previous model, see build().
+  public final int reusedRuns;
+  // Flat arrays of the model for pattern loops.
+  public final ModelArrays arrays;
+  // Finds the points near a position, rebuilt when the model geometry is updated.
+  public final SpatialIndex spatialIndex;
 
   /**
    * A Strand is some number of butterflies wired in series.  Multiple strands can be wired to a single
@@ -32,9 +46,26 @@ public class KaledoscopeModel extends LXModel {
     int strandId;
     // The index number of this strand on a particular run
     public int strandRunIndex;
+    /**
+     * The channel layout of the fixtures on a strand.  Butterflies have 16 individually addressable LEDs.
+     * Flowers have 5 LEDs but only 2 addresses, the center and one petal, since the petals are wired together.
+     */
     public enum StrandType {
-      BUTTERFLY,
-      FLOWER
+      BUTTERFLY(16, LUButterfly.NUM_LEDS),
+      FLOWER(2, LUFlower.NUM_LEDS);
+
+      public final int pixelsPerFixture;
+      // Every LED of a fixture, including flower petals that share an address.
+      public final int ledsPerFixture;
+
+      StrandType(int pixelsPerFixture, int ledsPerFixture) {
+        this.pixelsPerFixture = pixelsPerFixture;
+        this.ledsPerFixture = ledsPerFixture;
+      }
+
+      public int channelsPerFixture() {
+        return pixelsPerFixture * 3;
+      }
     }
     StrandType strandType;
     public Run run;
@@ -42,80 +73,101 @@ public class KaledoscopeModel extends LXModel {
     public List<LUButterfly> butterflies;
     public List<LUFlower> flowers;
     public List<LXPoint> allPoints;
+    // Only the points that have their own address on the wire, in wire order.  This is what gets output.
+    public List<LXPoint> addressablePoints;
 
     float x, y, z;
 
-    public Strand(Run run, int strandId, StrandType strandType, float x, float y, float z, int strandRunIndex) {
+    public Strand(Run run, int strandId, StrandType strandType, float x, float y, float z, int strandRunIndex,
+                  int configuredNumFlowers) {
       this.strandId = strandId;
       this.run = run;
       this.strandType = strandType;
       this.x = x;
       this.y = y;
       this.z = z;
-      flowers = new ArrayList<LUFlower>();
-      butterflies = new ArrayList<LUButterfly>();
-      allPoints = new ArrayList<LXPoint>();
-
-      int configuredNumFlowers = KaledoscopeApp.allStrandLengths.get(strandId);
+      flowers = new ArrayList<LUFlower>(configuredNumFlowers);
+      butterflies = new ArrayList<LUButterfly>(0);
+      allPoints = new ArrayList<LXPoint>(configuredNumFlowers * strandType.ledsPerFixture);
+      addressablePoints = new ArrayList<LXPoint>(configuredNumFlowers * strandType.pixelsPerFixture);
       float flowerSpacing = 12f;
       for (int i = 0; i < configuredNumFlowers; i++) {
         int prevStrandsFlowers = run.flowers.size();
         // Flowers are wired from top to bottom since the wiring will be high up in the tree.
         LUFlower flower = new LUFlower(i, i + prevStrandsFlowers, x, y - i * flowerSpacing, z);
-        flowers.add(flower);
-        allFlowers.add(flower);
-        allPoints.addAll(flower.allPoints);
+        flower.wireDistance = (i + prevStrandsFlowers) * flowerSpacing;
+        addFlower(flower);
       }
     }
 
-    public Strand(Run run, int strandId, int numButterflies, float xpos, int strandRunIndex, List<Bezier> beziers) {
+    /**
+     * An empty strand for ModelCache to add the cached fixtures to, in wire order.
+     */
+    Strand(Run run, int strandId, StrandType strandType, int strandRunIndex, float x, float y, float z,
+           int numFixtures) {
+      this.strandId = strandId;
+      this.run = run;
+      this.strandType = strandType;
+      this.strandRunIndex = strandRunIndex;
+      this.x = x;
+      this.y = y;
+      this.z = z;
+      butterflies = new ArrayList<LUButterfly>(strandType == StrandType.BUTTERFLY ? numFixtures : 0);
+      flowers = new ArrayList<LUFlower>(strandType == StrandType.FLOWER ? numFixtures : 0);
+      allPoints = new ArrayList<LXPoint>(numFixtures * strandType.ledsPerFixture);
+      addressablePoints = new ArrayList<LXPoint>(numFixtures * strandType.pixelsPerFixture);
+    }
+
+    void freeze() {
+      butterflies = Collections.unmodifiableList(butterflies);
+      flowers = Collections.unmodifiableList(flowers);
+      allPoints = Collections.unmodifiableList(allPoints);
+      addressablePoints = Collections.unmodifiableList(addressablePoints);
+    }
+
+    void addFlower(LUFlower flower) {
+      flowers.add(flower);
+      allPoints.addAll(flower.allPoints);
+      addressablePoints.addAll(flower.mappablePoints);
+    }
+
+    void addButterfly(LUButterfly butterfly) {
+      butterflies.add(butterfly);
+      allPoints.addAll(butterfly.allPoints);
+      addressablePoints.addAll(butterfly.allPoints);
+    }
+
+    /**
+     * A strand of butterflies hanging from a run's wire.  The butterflies are butterflySpacingInches apart
+     * along the wire, continuing from the butterflies of the run's previous strands.
+     */
+    public Strand(Run run, int strandId, float xpos, int strandRunIndex, WireCurve wire, int configuredNumButterflies) {
       this.strandId = strandId;
+      this.run = run;
       strandType = StrandType.BUTTERFLY;
-      butterflies = new ArrayList<LUButterfly>();
-      flowers = new ArrayList<LUFlower>();
-      allPoints = new ArrayList<LXPoint>();
+      butterflies = new ArrayList<LUButterfly>(configuredNumButterflies);
+      flowers = new ArrayList<LUFlower>(0);
+      allPoints = new ArrayList<LXPoint>(configuredNumButterflies * strandType.ledsPerFixture);
       this.strandRunIndex = strandRunIndex;
-      // The number of configured butterflies on this strand.
-      // TODO(tracy): currently the butterfly positions are generated along a curve with an expected 20
-      // butterflies per strand.  We need to re-parameterize T so that we can move a fixed distance along
-      // the arc-length of the curve.  That way if we have only 10 butterflies then we would move 10 feet
-      // along the curve since each butterfly is 1 foot apart.  Also, all current curves start and end at the
-      // same Y position whereas in reality the start and end point for each cable could be arbitrary.
-      int configuredNumButterflies = KaledoscopeApp.allStrandLengths.get(strandId);
-
-      Bezier bezier = beziers.get(strandRunIndex);
-      //float yOffset = strandIndex * numButterflies * butterflySpacingInches;
+      // TODO(tracy): All current curves start and end at the same Y position whereas in reality the start
+      // and end point for each cable could be arbitrary.
+      addressablePoints = new ArrayList<LXPoint>(configuredNumButterflies * strandType.pixelsPerFixture);
+
+      // The butterfly's index on the entire run length is the sum of all strands before this
+      // strand plus the butterfly's position on this strand.
+      // Check my parent 'Run', get the list of previous strands.  Count their butterflies.
+      // Our parent Run's list of butterflies won't be updated with this strand's butterflies until the
+      // constructor is finished so it currently accounts for all butterflies on previous strands.
+      int prevStrandsButterflies = run.butterflies.size();
+      float[] distances = new float[configuredNumButterflies];
+      WireCurve.spaced(prevStrandsButterflies * butterflySpacingInches, butterflySpacingInches,
+          configuredNumButterflies, distances, 0);
+      float[] positions = new float[2 * configuredNumButterflies];
+      wire.evaluate(distances, 0, configuredNumButterflies, positions, null);
       for (int i = 0; i < configuredNumButterflies; i++) {
-        // This provides the 't' parameter for our bezier curve.  We currently have 2 strands spanning
-        // a single bezier curve.  There might not be a fixed mapping between bezier curves and strands.
-        // It will more likely be anchor points at certain distances along the wire that generate the curves
-        // so the bezier curves will need to be segmented by arc length or wire length or by number of
-        // butterflies since we know they are 12 inches apart.
-        float t;
-        int bezierButterflyIndex;
-        // NOTE(tracy): We are switching back to one strand per one bezier curve for a bit until we get
-        // the configurable runs and strand lengths stuff worked out.  It is more likely that we will have
-        // just 2 strands of 20 butterflies each on each separate run.  20 butterflies is 320 leds which is about the
-        // max we should target for each pixlite output to keep the FPS reasonable.  So each steel wire will carry
-        // two pixlite outputs.
-        //if (strandIndex < 2) {
-          bezierButterflyIndex = i; // + strandRunIndex * numButterflies;
-        //} else {
-        //  bezierButterflyIndex = i + (strandIndex - 2) * numButterflies;
-        //}
-        t = (float) bezierButterflyIndex / (float) (numButterflies * numStrandsPerRun/2);
-        Point bPos = calculateBezierPoint(t, bezier.start, bezier.c1, bezier.c2, bezier.end);
-
-        // The butterfly's index on the entire run length is the sum of all strands before this
-        // strand plus the butterfly's position on this strand.
-        // Check my parent 'Run', get the list of previous strands.  Count their butterflies.
-        // Our parent Run's list of butterflies won't be updated with this strand's butterflies until the
-        // constructor is finished so it currently accounts for all butterflies on previous strands.
-        int prevStrandsButterflies = run.butterflies.size();
-        LUButterfly butterfly = new LUButterfly(i, i + prevStrandsButterflies, bPos.x, 120f, bPos.y);
-        butterflies.add(butterfly);
-        allButterflies.add(butterfly);
-        allPoints.addAll(butterfly.allPoints);
+        LUButterfly butterfly = new LUButterfly(i, i + prevStrandsButterflies, positions[2 * i], 120f, positions[2 * i + 1]);
+        butterfly.wireDistance = distances[i];
+        addButterfly(butterfly);
       }
     }
   }
@@ -131,12 +183,40 @@ public class KaledoscopeModel extends LXModel {
       this.c2 = c2;
       end = e;
     }
+
+    // Allocation free evaluation of the curve and its derivative at t, one coordinate at a time.
+    public float x(float t) {
+      return cubic(t, start.x, c1.x, c2.x, end.x);
+    }
+
+    public float y(float t) {
+      return cubic(t, start.y, c1.y, c2.y, end.y);
+    }
+
+    public float dx(float t) {
+      return cubicDerivative(t, start.x, c1.x, c2.x, end.x);
+    }
+
+    public float dy(float t) {
+      return cubicDerivative(t, start.y, c1.y, c2.y, end.y);
+    }
+
+    static float cubic(float t, float p0, float p1, float p2, float p3) {
+      float u = 1 - t;
+      return u * u * u * p0 + 3 * u * u * t * p1 + 3 * u * t * t * p2 + t * t * t * p3;
+    }
+
+    static float cubicDerivative(float t, float p0, float p1, float p2, float p3) {
+      float u = 1 - t;
+      return 3 * u * u * (p1 - p0) + 6 * u * t * (p2 - p1) + 3 * t * t * (p3 - p2);
+    }
   }
 
   /**
    * A Run is a single full line of butterflies.  It is composed of multiple strands wired in series.  The
    * purpose of a strand is to limit the number of LEDs on a single output in order to increase the FPS.
-   * A run also consists of a series of bezier curves to model the curvature of the wires.
+   * A run also consists of a series of bezier curves to model the curvature of the wires, joined into one
+   * WireCurve that the butterflies are placed along.
    */
   static public class Run {
     public List<LXPoint> allPoints;
@@ -146,9 +226,17 @@ public class KaledoscopeModel extends LXModel {
     Bezier bezier1;
     Bezier bezier2;
     public List<Bezier> beziers;
+    // The wire of a butterfly run, null for flower runs.
+    public WireCurve wire;
     int runIndex;
     float cxOffset = 100f;
     float cyOffset = 30f;
+    // What the run was built from, to tell whether a rebuilt model can reuse it.
+    final int firstStrandId;
+    final int[] strandLengths;
+    final float x, y, z;
+    final int butterfliesPerStrand;
+    private boolean frozen = false;
 
     public enum RunType {
       BUTTERFLY,
@@ -156,25 +244,113 @@ public class KaledoscopeModel extends LXModel {
     }
     RunType runType;
 
-    public Run(int runIndex, RunType runType, int numStrands, float x, float y, float z) {
+    /**
+     * @param firstStrandId Strand id of the run's first strand.  The others follow on.
+     * @param strandLengths Configured length of every strand id.
+     */
+    public Run(int runIndex, RunType runType, int numStrands, float x, float y, float z, int firstStrandId,
+               List<Integer> strandLengths) {
       this.runIndex = runIndex;
       this.runType = runType;
-      strands = new ArrayList<Strand>();
-      butterflies = new ArrayList<LUButterfly>();
-      flowers = new ArrayList<LUFlower>();
-      allPoints = new ArrayList<LXPoint>();
-
+      this.firstStrandId = firstStrandId;
+      this.strandLengths = lengthsOf(strandLengths, firstStrandId, numStrands);
+      this.x = x;
+      this.y = y;
+      this.z = z;
+      this.butterfliesPerStrand = 0;
+      allocateLists();
       for (int i = 0; i < numStrands; i++) {
-        Strand strand = new Strand(this, allStrands.size(), Strand.StrandType.FLOWER, x, y, z, i);
-        allPoints.addAll(strand.allPoints);
-        flowers.addAll(strand.flowers);
-        allStrands.add(strand);
+        addStrand(new Strand(this, firstStrandId + i, Strand.StrandType.FLOWER, x, y, z, i, this.strandLengths[i]));
       }
     }
 
-    public Run(int runIndex, float pos, int numStrands, int butterfliesPerStrand) {
+    /**
+     * @param firstStrandId Strand id of the run's first strand.  The others follow on.
+     * @param strandLengths Configured length of every strand id.
+     * @param previous The run at this index in the previous model, whose wire is reused if it has the same
+     *                 shape, or null.
+     */
+    public Run(int runIndex, float pos, int numStrands, int butterfliesPerStrand, int firstStrandId,
+               List<Integer> strandLengths, Run previous) {
       this.runIndex = runIndex;
       this.runType = RunType.BUTTERFLY;
+      this.firstStrandId = firstStrandId;
+      this.strandLengths = lengthsOf(strandLengths, firstStrandId, numStrands);
+      this.x = pos;
+      this.y = 0;
+      this.z = 0;
+      this.butterfliesPerStrand = butterfliesPerStrand;
+      allocateLists();
+      buildBeziers(numStrands);
+      // The wire only depends on the run's index, position and nominal size, not on its strand lengths.
+      if (previous != null && previous.hasSameWire(runIndex, pos, numStrands, butterfliesPerStrand)) {
+        wire = previous.wire;
+      } else {
+        wire = new WireCurve(bezier1, bezier2);
+      }
+      for (int i = 0; i < numStrands; i++) {
+        addStrand(new Strand(this, firstStrandId + i, pos, i, wire, this.strandLengths[i]));
+      }
+    }
+
+    /**
+     * An empty run for ModelCache to add the cached strands to.  Butterfly runs get their beziers, and the
+     * cache sets the wire.
+     */
+    Run(int runIndex, RunType runType, float x, float y, float z, int butterfliesPerStrand, int firstStrandId,
+        int[] strandLengths) {
+      this.runIndex = runIndex;
+      this.runType = runType;
+      this.firstStrandId = firstStrandId;
+      this.strandLengths = strandLengths.clone();
+      this.x = x;
+      this.y = y;
+      this.z = z;
+      this.butterfliesPerStrand = butterfliesPerStrand;
+      allocateLists();
+      if (runType == RunType.BUTTERFLY) {
+        buildBeziers(strandLengths.length);
+      }
+    }
+
+    // Sizes the lists for the strand lengths, so adding the strands never grows them.
+    private void allocateLists() {
+      int numFixtures = 0;
+      for (int length : strandLengths) {
+        numFixtures += length;
+      }
+      boolean isButterflies = runType == RunType.BUTTERFLY;
+      Strand.StrandType strandType = isButterflies ? Strand.StrandType.BUTTERFLY : Strand.StrandType.FLOWER;
+      strands = new ArrayList<Strand>(strandLengths.length);
+      butterflies = new ArrayList<LUButterfly>(isButterflies ? numFixtures : 0);
+      flowers = new ArrayList<LUFlower>(isButterflies ? 0 : numFixtures);
+      allPoints = new ArrayList<LXPoint>(numFixtures * strandType.ledsPerFixture);
+    }
+
+    // Makes the lists unmodifiable once the run is built.  Runs can be shared by several models.
+    void freeze() {
+      if (frozen) {
+        return;
+      }
+      for (Strand strand : strands) {
+        strand.freeze();
+      }
+      strands = Collections.unmodifiableList(strands);
+      butterflies = Collections.unmodifiableList(butterflies);
+      flowers = Collections.unmodifiableList(flowers);
+      allPoints = Collections.unmodifiableList(allPoints);
+      frozen = true;
+    }
+
+    void addStrand(Strand strand) {
+      strands.add(strand);
+      allPoints.addAll(strand.allPoints);
+      butterflies.addAll(strand.butterflies);
+      flowers.addAll(strand.flowers);
+    }
+
+    private void buildBeziers(int numStrands) {
+      float pos = x;
       if (runIndex == 0)
         cxOffset = - cxOffset;
       if (runIndex == 2) {
@@ -194,55 +370,204 @@ public class KaledoscopeModel extends LXModel {
       Point b2C1 = new Point(b2Start.x - cxOffset, b2Start.y + cyOffset);
       Point b2C2 = new Point(b2End.x - cxOffset, b2End.y - cyOffset);
       bezier2 = new Bezier(b2Start, b2C1, b2C2, b2End);
-      strands = new ArrayList<Strand>();
-      butterflies = new ArrayList<LUButterfly>();
-      flowers = new ArrayList<LUFlower>();
-      allPoints = new ArrayList<LXPoint>();
       beziers = new ArrayList<Bezier>();
       beziers.add(bezier1);
       beziers.add(bezier2);
+    }
+
+    static int[] lengthsOf(List<Integer> strandLengths, int firstStrandId, int numStrands) {
+      int[] lengths = new int[numStrands];
       for (int i = 0; i < numStrands; i++) {
-        Strand strand = new Strand(this, allStrands.size(), butterfliesPerStrand, pos, i, beziers);
-        allPoints.addAll(strand.allPoints);
-        butterflies.addAll(strand.butterflies);
-        allStrands.add(strand);
+        lengths[i] = strandLengths.get(firstStrandId + i);
       }
+      return lengths;
+    }
+
+    boolean hasSameWire(int runIndex, float pos, int numStrands, int butterfliesPerStrand) {
+      return runType == RunType.BUTTERFLY && this.runIndex == runIndex && x == pos
+          && strandLengths.length == numStrands && this.butterfliesPerStrand == butterfliesPerStrand;
+    }
+
+    /**
+     * Whether this run would come out the same if it was built again with the given settings, so a new
+     * model can reuse it as it is.
+     */
+    boolean isSame(RunType runType, int runIndex, float x, float y, float z, int numStrands, int butterfliesPerStrand,
+                   int firstStrandId, List<Integer> strandLengths) {
+      return this.runType == runType && this.runIndex == runIndex && this.x == x && this.y == y && this.z == z
+          && this.butterfliesPerStrand == butterfliesPerStrand && this.firstStrandId == firstStrandId
+          && Arrays.equals(this.strandLengths, lengthsOf(strandLengths, firstStrandId, numStrands));
     }
   }
 
+  /**
+   * Loads the model from the model cache if it was built from the current config, or builds it from scratch
+   * and caches it, then makes it the current one.
+   */
   static public KaledoscopeModel createModel(int numRuns, int strandsPerRun, int butterfliesPerStrand) {
-    List<LXPoint> allPoints = new ArrayList<LXPoint>();
-
-    allRuns = new ArrayList<Run>(numRuns);
-    allStrands = new ArrayList<Strand>();
-    allButterflies = new ArrayList<LUButterfly>();
-    allFlowers = new ArrayList<LUFlower>();
-    numStrandsPerRun = strandsPerRun;
+    byte[] cacheKey = ModelCache.key(numRuns, strandsPerRun, butterfliesPerStrand, KaledoscopeApp.runsFlowers,
+        KaledoscopeApp.allStrandLengths);
+    KaledoscopeModel model = ModelCache.load(ModelCache.FILENAME, cacheKey);
+    if (model == null) {
+      model = build(numRuns, strandsPerRun, butterfliesPerStrand, KaledoscopeApp.runsFlowers,
+          KaledoscopeApp.allStrandLengths, null);
+      ModelCache.save(ModelCache.FILENAME, cacheKey, model);
+    }
+    publish(model);
+    return model;
+  }
 
-    for (int i = 0; i < numRuns; i++) {
-      Run run = new Run(i, i * lineSpacingInches, numStrandsPerRun, butterfliesPerStrand);
-      allRuns.add(run);
-      allPoints.addAll(run.allPoints);
+  /**
+   * Builds a model without touching the current one, so it can be done on another thread while patterns
+   * render the current model.
+   *
+   * Point indices follow the order runs are built in, so a run can only be reused as it is if it and every run
+   * before it are unchanged, which keeps its points at the same indices.  Those runs are shared with the
+   * previous model.  The runs after the first change are built again since their points move, but keep the
+   * previous wires where the shape is the same.
+   *
+   * @param flowerRuns Number of runs of flowers, after the butterfly runs.
+   * @param strandLengths Configured number of fixtures on each strand id.
+   * @param previous The current model to reuse runs from, or null.
+   * @throws IllegalArgumentException if there are more strands than strand lengths.
+   */
+  static public KaledoscopeModel build(int numRuns, int strandsPerRun, int butterfliesPerStrand, int flowerRuns,
+                                       List<Integer> strandLengths, KaledoscopeModel previous) {
+    int numStrands = numRuns * strandsPerRun + flowerRuns;
+    if (numRuns < 0 || flowerRuns < 0 || numStrands > strandLengths.size()) {
+      throw new IllegalArgumentException(numRuns + " butterfly runs and " + flowerRuns + " flower runs need "
+          + numStrands + " strands but only " + strandLengths.size() + " strand lengths are configured");
     }
+    List<Run> runs = new ArrayList<Run>(numRuns + flowerRuns);
+    int reusedRuns = 0;
+    boolean reusing = previous != null;
+    int strandId = 0;
+
+    for (int i = 0; i < numRuns + flowerRuns; i++) {
+      Run.RunType runType = i < numRuns ? Run.RunType.BUTTERFLY : Run.RunType.FLOWER;
+      int runStrands = i < numRuns ? strandsPerRun : 1;
+      float x, y, z;
+      if (i < numRuns) {
+        x = i * lineSpacingInches;
+        y = 0;
+        z = 0;
+      } else {
+        // For now, flowers start at 8ft high.
+        int flowerRun = i - numRuns;
+        float runSpacing = 10f * 12f;
+        x = -5f * 12f;
+        if (flowerRun % 2 == 1)
+          x += 10 * 12f;
+        y = 8f * 12f;
+        z = flowerRun * runSpacing + 12f;
+      }
+      Run previousRun = previous != null && i < previous.runs.size() ? previous.runs.get(i) : null;
+      reusing = reusing && previousRun != null && previousRun.isSame(runType, i, x, y, z, runStrands,
+          i < numRuns ? butterfliesPerStrand : 0, strandId, strandLengths);
+      Run run;
+      if (reusing) {
+        run = previousRun;
+        ++reusedRuns;
+      } else if (i < numRuns) {
+        run = new Run(i, x, runStrands, butterfliesPerStrand, strandId, strandLengths, previousRun);
+      } else {
+        run = new Run(i, Run.RunType.FLOWER, runStrands, x, y, z, strandId, strandLengths);
+      }
+      runs.add(run);
+      strandId += runStrands;
+    }
+    return new KaledoscopeModel(runs, strandLengths, strandsPerRun, butterfliesPerStrand, reusedRuns);
+  }
 
-    int flowerRuns = KaledoscopeApp.runsFlowers;
+  /**
+   * Builds a synthetic installation of any size with every strand at its nominal length, for benchmarks.  Not
+   * published or cached.
+   *
+   * @param flowerRuns Number of runs of flowers, each a single strand of flowersPerRun flowers.
+   */
+  static public KaledoscopeModel synthetic(int numRuns, int strandsPerRun, int butterfliesPerStrand, int flowerRuns,
+                                           int flowersPerRun) {
+    List<Integer> strandLengths = new ArrayList<Integer>(numRuns * strandsPerRun + flowerRuns);
+    for (int i = 0; i < numRuns * strandsPerRun; i++) {
+      strandLengths.add(butterfliesPerStrand);
+    }
     for (int i = 0; i < flowerRuns; i++) {
-      // For now, flowers start at 8ft high.
-      float x = -5f * 12f;
-      float runSpacing = 10f * 12f;
-      if (i % 2 == 1)
-        x += 10 * 12f;
-      Run run = new Run(allRuns.size(), Run.RunType.FLOWER, 1, x, 8f * 12f, i * runSpacing + 12f);
-      allRuns.add(run);
-      allPoints.addAll(run.allPoints);
+      strandLengths.add(flowersPerRun);
     }
+    return build(numRuns, strandsPerRun, butterfliesPerStrand, flowerRuns, strandLengths, null);
+  }
 
-    return new KaledoscopeModel(allPoints);
+  /**
+   * Makes model the current one, as a new snapshot with the next version.  Call from the engine thread, at
+   * the frame the model is swapped into the engine, or before the engine starts.
+   */
+  static synchronized public void publish(KaledoscopeModel model) {
+    ModelSnapshot current = snapshot;
+    snapshot = new ModelSnapshot(current != null ? current.version + 1 : 1, model);
   }
 
-  public KaledoscopeModel(List<LXPoint> points) {
-    super(points);
+  /**
+   * The current model.  Read once per frame, see ModelSnapshot.
+   */
+  static public ModelSnapshot snapshot() {
+    return snapshot;
+  }
+
+  private KaledoscopeModel(List<Run> runs, List<Integer> strandLengths, int strandsPerRun, int butterfliesPerStrand,
+                           int reusedRuns) {
+    super(pointsOf(runs));
+    this.runs = Collections.unmodifiableList(runs);
+    this.strandLengths = Collections.unmodifiableList(new ArrayList<Integer>(strandLengths));
+    this.strandsPerRun = strandsPerRun;
+    this.butterfliesPerStrand = butterfliesPerStrand;
+    this.reusedRuns = reusedRuns;
+    int numStrands = 0;
+    int numButterflies = 0;
+    int numFlowers = 0;
+    for (Run run : runs) {
+      numStrands += run.strands.size();
+      numButterflies += run.butterflies.size();
+      numFlowers += run.flowers.size();
+    }
+    List<Strand> strands = new ArrayList<Strand>(numStrands);
+    List<LUButterfly> butterflies = new ArrayList<LUButterfly>(numButterflies);
+    List<LUFlower> flowers = new ArrayList<LUFlower>(numFlowers);
+    for (Run run : runs) {
+      run.freeze();
+      strands.addAll(run.strands);
+      butterflies.addAll(run.butterflies);
+      flowers.addAll(run.flowers);
+    }
+    this.strands = Collections.unmodifiableList(strands);
+    this.butterflies = Collections.unmodifiableList(butterflies);
+    this.flowers = Collections.unmodifiableList(flowers);
+    // New points are numbered from a global counter.  Points of reused runs keep their indices.
+    reindexPoints();
+    for (LUButterfly butterfly : butterflies) {
+      butterfly.pointIndex = butterfly.allPoints.get(0).index;
+    }
+    arrays = new ModelArrays(points, runs);
+    spatialIndex = new SpatialIndex(this, butterflySpacingInches);
+  }
 
+  /**
+   * A model of runs loaded from the model cache.
+   */
+  static KaledoscopeModel fromRuns(List<Run> runs, List<Integer> strandLengths, int strandsPerRun,
+                                   int butterfliesPerStrand) {
+    return new KaledoscopeModel(runs, strandLengths, strandsPerRun, butterfliesPerStrand, 0);
+  }
+
+  static private List<LXPoint> pointsOf(List<Run> runs) {
+    int numPoints = 0;
+    for (Run run : runs) {
+      numPoints += run.allPoints.size();
+    }
+    List<LXPoint> points = new ArrayList<LXPoint>(numPoints);
+    for (Run run : runs) {
+      points.addAll(run.allPoints);
+    }
+    return points;
   }
 
   static public class Point {
@@ -3,7 +3,7 @@ package art.lookingup;
 import heronarts.lx.model.LXPoint;
 import heronarts.lx.model.StripModel;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -31,17 +31,50 @@ import java.util.List;
 public class LUButterfly {
   public static float ledSpacing = 0.3f;
   public static float stripSpacing = 0.6f;
-  public List<LXPoint> right;
-  public List<LXPoint> left;
+
+  public static final int LEDS_PER_STRIP = 8;
+  public static final int NUM_LEDS = 2 * LEDS_PER_STRIP;
+
+  // Orderings of a butterfly's LEDs, as offsets from its pointIndex.  Shared by every butterfly since the
+  // points are always created in the same order, left strip top to bottom and then right strip top to bottom.
+  // The LED at position i of an ordering is colors[butterfly.pointIndex + ORDERING[i]].  Must not be modified.
+  public static final int[] LEFT = new int[LEDS_PER_STRIP];
+  public static final int[] RIGHT = new int[LEDS_PER_STRIP];
+  public static final int[] ALL = new int[NUM_LEDS];
+  // Down the left strip and back up the right.
+  public static final int[] CLOCKWISE = new int[NUM_LEDS];
+  // Down the right strip and back up the left.
+  public static final int[] COUNTER_CLOCKWISE = new int[NUM_LEDS];
+  // Left and right of each row, top to bottom.
+  public static final int[] BY_ROW = new int[NUM_LEDS];
+
+  static {
+    for (int i = 0; i < LEDS_PER_STRIP; i++) {
+      LEFT[i] = i;
+      RIGHT[i] = LEDS_PER_STRIP + i;
+      CLOCKWISE[i] = LEFT[i];
+      CLOCKWISE[LEDS_PER_STRIP + i] = RIGHT[LEDS_PER_STRIP - 1 - i];
+      COUNTER_CLOCKWISE[i] = RIGHT[i];
+      COUNTER_CLOCKWISE[LEDS_PER_STRIP + i] = LEFT[LEDS_PER_STRIP - 1 - i];
+      BY_ROW[2 * i] = LEFT[i];
+      BY_ROW[2 * i + 1] = RIGHT[i];
+    }
+    for (int i = 0; i < NUM_LEDS; i++) {
+      ALL[i] = i;
+    }
+  }
+
+  // In ALL order.
   public List<LXPoint> allPoints;
-  public List<LXPoint> pointsClockwise;
-  public List<LXPoint> pointsCounterClockwise;
-  public List<LXPoint> pointsByRow;
+  // The index of the first point, LEFT[0].
+  public int pointIndex;
   public float x;
   public float y;
   public float z;
   public int strandIndex;
   public int runIndex;
+  // Distance in inches along the run's wire, see KaledoscopeModel.Run.wire.  Set by the strand.
+  public float wireDistance;
 
   public LUButterfly(int strandIndex, int runIndex, float x, float y, float z) {
     this.x = x;
@@ -54,33 +87,21 @@ public class LUButterfly {
   }
 
   public void buildPoints() {
-    allPoints = new ArrayList<LXPoint>();
-    left = new ArrayList<LXPoint>(8);
-    right = new ArrayList<LXPoint>(8);
-    pointsClockwise = new ArrayList<LXPoint>();
-    pointsCounterClockwise = new ArrayList<LXPoint>();
-    pointsByRow = new ArrayList<LXPoint>();
-
-    for (int i = 0; i < 8; i++) {
-      left.add(new LXPoint(x , y, z + i * ledSpacing));
-    }
-    for (int i = 0; i < 8; i++) {
-      right.add(new LXPoint(x + stripSpacing, y, z + i * ledSpacing));
+    LXPoint[] points = new LXPoint[NUM_LEDS];
+    for (int i = 0; i < LEDS_PER_STRIP; i++) {
+      points[LEFT[i]] = new LXPoint(x , y, z + i * ledSpacing);
     }
-    pointsClockwise.addAll(left);
-    for (int i = right.size() - 1; i >= 0; i--)
-      pointsClockwise.add(right.get(i));
-
-    pointsCounterClockwise.addAll(right);
-    for (int i = left.size() - 1; i >= 0; i--)
-      pointsCounterClockwise.add(left.get(i));
-
-    for (int i = 0; i < left.size(); i++) {
-      pointsByRow.add(left.get(i));
-      pointsByRow.add(right.get(i));
+    for (int i = 0; i < LEDS_PER_STRIP; i++) {
+      points[RIGHT[i]] = new LXPoint(x + stripSpacing, y, z + i * ledSpacing);
     }
+    pointIndex = points[0].index;
+    allPoints = Arrays.asList(points);
+  }
 
-    allPoints.addAll(left);
-    allPoints.addAll(right);
+  /**
+   * The color buffer index of the LED at position i of an ordering, e.g. pointIndex(CLOCKWISE, 3).
+   */
+  public int pointIndex(int[] ordering, int i) {
+    return pointIndex + ordering[i];
   }
 }
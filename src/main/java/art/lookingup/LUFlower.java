@@ -2,13 +2,14 @@ package art.lookingup;
 
 import heronarts.lx.model.LXPoint;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * Represents a flower fixture.  A flower has 1 central LED and 5 petal LEDs but the petals
  * all share an address so there are only 2 addressable LEDs.  We will create LXPoints for
- * all 6 LEDs, but only output the center LED and one petal value.
+ * all the LEDs, but only output the center LED and one petal value.  The mappablePoints are in wire order
+ * and are the only points a Strand sends.
  */
 public class LUFlower {
 
@@ -21,7 +22,11 @@ public class LUFlower {
   public float z;
   public int strandIndex;
   public int runIndex;
+  // Distance in inches down the run's wire from the first flower.  Set by the strand.
+  public float wireDistance;
   static final float RADIUS = 1.5f;
+  public static final int NUM_PETALS = 4;
+  public static final int NUM_LEDS = 1 + NUM_PETALS;
 
 
   public LUFlower(int strandIndex, int runIndex, float x, float y, float z) {
@@ -36,18 +41,12 @@ public class LUFlower {
 
   protected void buildPoints() {
     center = new LXPoint(x, y, z);
-    petals = new LXPoint[4];
+    petals = new LXPoint[NUM_PETALS];
     petals[0] = new LXPoint(x + RADIUS, y, z);
     petals[1] = new LXPoint(x, y + RADIUS, z);
     petals[2] = new LXPoint(x - RADIUS, y, z);
     petals[3] = new LXPoint(x, y - RADIUS, z);
-    mappablePoints = new ArrayList<LXPoint>();
-    mappablePoints.add(center);
-    mappablePoints.add(petals[0]);
-    allPoints = new ArrayList<LXPoint>();
-    allPoints.addAll(mappablePoints);
-    allPoints.add(petals[1]);
-    allPoints.add(petals[2]);
-    allPoints.add(petals[3]);
+    mappablePoints = Arrays.asList(center, petals[0]);
+    allPoints = Arrays.asList(center, petals[0], petals[1], petals[2], petals[3]);
   }
 }
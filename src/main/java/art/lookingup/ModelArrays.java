@@ -0,0 +1,156 @@
+package art.lookingup;
+
+import heronarts.lx.model.LXPoint;
+
+import java.util.List;
+
+/**
+ * A flat view of the model for pattern loops, one primitive array per attribute instead of lists of
+ * fixtures holding lists of points.  Per point arrays are indexed by LXPoint.index, the same as colors[], and
+ * since the model is built run by run, strand by strand and fixture by fixture, every fixture, strand and
+ * run is a contiguous span of point indices.  So a pattern can render a strand with
+ *
+ *   for (int i = arrays.strandStart[s]; i < arrays.strandStart[s + 1]; i++) { colors[i] = ... }
+ *
+ * or the whole model with a single loop over x, y, z and wireDistance.
+ *
+ * Built with each KaledoscopeModel, see ModelSnapshot.arrays, and never modified after.  The
+ * arrays are public for speed and must not be written to.
+ */
+public class ModelArrays {
+  public final int numPoints;
+  public final int numFixtures;
+  public final int numStrands;
+  public final int numRuns;
+
+  // Per point.
+  public final float[] x;
+  public final float[] y;
+  public final float[] z;
+  public final int[] fixture;
+  public final int[] strand;
+  public final int[] run;
+  // Index of the point within its fixture, in the fixture's allPoints order.
+  public final int[] local;
+  // Distance in inches along the run's wire of the point's fixture.
+  public final float[] wireDistance;
+
+  // Fixtures are numbered in point order.  Fixture f is points fixtureStart[f] up to fixtureStart[f + 1].
+  public final int[] fixtureStart;
+  public final int[] fixtureStrand;
+
+  // Strand s is points strandStart[s] up to strandStart[s + 1] and fixtures strandFixtureStart[s] up to
+  // strandFixtureStart[s + 1].
+  public final int[] strandStart;
+  public final int[] strandFixtureStart;
+  public final int[] strandRun;
+
+  // Run r is points runStart[r] up to runStart[r + 1] and strands runStrandStart[r] up to runStrandStart[r + 1].
+  public final int[] runStart;
+  public final int[] runStrandStart;
+
+  /**
+   * @param points The model's points.
+   * @param runs The model's runs, in the order their points were added to the model.
+   * @throws IllegalStateException if a fixture, strand or run is not a contiguous span of point indices
+   * in order.
+   */
+  public ModelArrays(LXPoint[] points, List<KaledoscopeModel.Run> runs) {
+    numPoints = points.length;
+    int fixtures = 0;
+    int strands = 0;
+    for (KaledoscopeModel.Run r : runs) {
+      strands += r.strands.size();
+      for (KaledoscopeModel.Strand s : r.strands) {
+        fixtures += s.butterflies.size() + s.flowers.size();
+      }
+    }
+    numFixtures = fixtures;
+    numStrands = strands;
+    numRuns = runs.size();
+
+    x = new float[numPoints];
+    y = new float[numPoints];
+    z = new float[numPoints];
+    fixture = new int[numPoints];
+    strand = new int[numPoints];
+    run = new int[numPoints];
+    local = new int[numPoints];
+    wireDistance = new float[numPoints];
+    fixtureStart = new int[numFixtures + 1];
+    fixtureStrand = new int[numFixtures];
+    strandStart = new int[numStrands + 1];
+    strandFixtureStart = new int[numStrands + 1];
+    strandRun = new int[numStrands];
+    runStart = new int[numRuns + 1];
+    runStrandStart = new int[numRuns + 1];
+
+    for (LXPoint p : points) {
+      if (p.index < 0 || p.index >= numPoints) {
+        throw new IllegalStateException("Point index " + p.index + " is not in a model of " + numPoints + " points");
+      }
+      x[p.index] = p.x;
+      y[p.index] = p.y;
+      z[p.index] = p.z;
+    }
+
+    // The next point index expected, fixtures must follow each other without gaps.
+    int next = 0;
+    int f = 0;
+    int s = 0;
+    for (int r = 0; r < numRuns; r++) {
+      runStart[r] = next;
+      runStrandStart[r] = s;
+      for (KaledoscopeModel.Strand strandObj : runs.get(r).strands) {
+        strandStart[s] = next;
+        strandFixtureStart[s] = f;
+        strandRun[s] = r;
+        for (LUButterfly butterfly : strandObj.butterflies) {
+          next = addFixture(f++, s, r, butterfly.allPoints, butterfly.wireDistance, next);
+        }
+        for (LUFlower flower : strandObj.flowers) {
+          next = addFixture(f++, s, r, flower.allPoints, flower.wireDistance, next);
+        }
+        s++;
+      }
+    }
+    if (next != numPoints) {
+      throw new IllegalStateException("Runs have " + next + " points but the model has " + numPoints);
+    }
+    runStart[numRuns] = next;
+    runStrandStart[numRuns] = s;
+    strandStart[numStrands] = next;
+    strandFixtureStart[numStrands] = f;
+    fixtureStart[numFixtures] = next;
+  }
+
+  private int addFixture(int f, int s, int r, List<LXPoint> fixturePoints, float distance, int next) {
+    fixtureStart[f] = next;
+    fixtureStrand[f] = s;
+    for (int i = 0; i < fixturePoints.size(); i++) {
+      int index = fixturePoints.get(i).index;
+      if (index != next) {
+        throw new IllegalStateException("Fixture " + f + " point " + i + " has index " + index + ", expected " + next);
+      }
+      fixture[index] = f;
+      strand[index] = s;
+      run[index] = r;
+      local[index] = i;
+      wireDistance[index] = distance;
+      next++;
+    }
+    return next;
+  }
+
+  public int fixtureSize(int f) {
+    return fixtureStart[f + 1] - fixtureStart[f];
+  }
+
+  public int strandSize(int s) {
+    return strandStart[s + 1] - strandStart[s];
+  }
+
+  public int runSize(int r) {
+    return runStart[r + 1] - runStart[r];
+  }
+}
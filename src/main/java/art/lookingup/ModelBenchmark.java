@@ -0,0 +1,151 @@
+package art.lookingup;
+
+import art.lookingup.output.ArtNetProtocol;
+import art.lookingup.output.ColorTransform;
+import art.lookingup.output.PackedOutput;
+import art.lookingup.output.SwappableOutput;
+import art.lookingup.output.UniversePacker;
+import art.lookingup.pattern.HueFlies;
+import heronarts.lx.LX;
+import heronarts.lx.pattern.LXPattern;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Headless benchmark of the model at installation sizes we do not have config for, run with
+ * --benchmodel butterflies,butterflies,...  Each size is a synthetic model, see KaledoscopeModel.synthetic(),
+ * of runs laid out like today's, 2 strands of 20 butterflies, plus a run of flowers for every 4 butterfly
+ * runs.  For each size it reports:
+ *
+ *   build: median time of KaledoscopeModel.build() from scratch, and per point to show how it scales
+ *   heap: heap held by the model after a GC, roughly, since it depends on the collector
+ *   render: median engine frame rendering HueFlies, with no outputs
+ *   output: median send of a frame to every strand, one output per strand, as ArtNet on loopback to a
+ *           socket that is never read, so the kernel drops the packets after the send
+ */
+public class ModelBenchmark {
+  private static final Logger logger = Logger.getLogger(ModelBenchmark.class.getName());
+
+  static final int STRANDS_PER_RUN = 2;
+  static final int BUTTERFLIES_PER_STRAND = 20;
+  static final int FLOWERS_PER_RUN = 5;
+  static final int BUILDS = 5;
+
+  /**
+   * @param butterflyCounts Number of butterflies of each size to run, rounded up to whole runs.
+   * @param frames Number of frames to time rendering and output over.
+   */
+  static public void run(int[] butterflyCounts, int frames) {
+    List<String> rows = new ArrayList<String>();
+    for (int butterflies : butterflyCounts) {
+      try {
+        rows.add(runSize(butterflies, frames));
+      } catch (IOException ioex) {
+        logger.log(Level.SEVERE, "Benchmark of " + butterflies + " butterflies failed", ioex);
+      }
+    }
+    StringBuilder sb = new StringBuilder("Model benchmark:\n");
+    sb.append(String.format(Locale.ROOT, "%10s %10s %6s %10s %9s %9s %11s %10s%n", "butterflies", "points",
+        "runs", "build ms", "ns/point", "heap MB", "render ms", "output ms"));
+    for (String row : rows) {
+      sb.append(row).append('\n');
+    }
+    logger.info(sb.toString());
+  }
+
+  static private String runSize(int butterflies, int frames) throws IOException {
+    int perRun = STRANDS_PER_RUN * BUTTERFLIES_PER_STRAND;
+    int numRuns = Math.max(1, (butterflies + perRun - 1) / perRun);
+    int flowerRuns = Math.max(1, numRuns / 4);
+
+    long[] buildNanos = new long[BUILDS];
+    long heapBefore = usedHeap();
+    KaledoscopeModel model = null;
+    for (int i = 0; i < BUILDS; i++) {
+      model = null;
+      if (i == BUILDS - 1) {
+        heapBefore = usedHeap();
+      }
+      long start = System.nanoTime();
+      model = KaledoscopeModel.synthetic(numRuns, STRANDS_PER_RUN, BUTTERFLIES_PER_STRAND, flowerRuns,
+          FLOWERS_PER_RUN);
+      buildNanos[i] = System.nanoTime() - start;
+    }
+    long heap = usedHeap() - heapBefore;
+    long build = median(buildNanos);
+
+    KaledoscopeModel.publish(model);
+    LX lx = new LX(new LX.Flags(), model) {};
+    DatagramSocket sink = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    try {
+      lx.engine.mixer.addChannel(new LXPattern[] { new HueFlies(lx) });
+      long[] renderNanos = new long[frames];
+      for (int f = 0; f < frames; f++) {
+        long start = System.nanoTime();
+        lx.engine.run();
+        renderNanos[f] = System.nanoTime() - start;
+      }
+
+      SwappableOutput swappable = new SwappableOutput(lx);
+      lx.engine.output.addChild(swappable);
+      swappable.swap(new PackedOutput[] { buildOutput(lx, model, sink.getLocalPort()) }, null, null, model.size);
+      int[] colors = new int[model.size];
+      Random random = new Random(1);
+      for (int i = 0; i < colors.length; i++) {
+        colors[i] = random.nextInt() | 0xff000000;
+      }
+      long[] outputNanos = new long[frames];
+      for (int f = 0; f < frames; f++) {
+        long start = System.nanoTime();
+        swappable.send(colors);
+        outputNanos[f] = System.nanoTime() - start;
+      }
+
+      return String.format(Locale.ROOT, "%10d %10d %6d %10.2f %9.1f %9.1f %11.3f %10.3f", model.butterflies.size(),
+          model.size, model.runs.size(), build / 1e6, (double) build / model.size, heap / (1024.0 * 1024.0),
+          median(renderNanos) / 1e6, median(outputNanos) / 1e6);
+    } finally {
+      sink.close();
+      lx.dispose();
+    }
+  }
+
+  // One output per strand, all on one non-threaded PackedOutput.
+  static private PackedOutput buildOutput(LX lx, KaledoscopeModel model, int port) throws IOException {
+    ColorTransform transform = new ColorTransform();
+    List<UniversePacker.OutputPixels> outputPixels = new ArrayList<UniversePacker.OutputPixels>();
+    for (KaledoscopeModel.Strand strand : model.strands) {
+      int[] indices = new int[strand.addressablePoints.size()];
+      for (int i = 0; i < indices.length; i++) {
+        indices[i] = strand.addressablePoints.get(i).index;
+      }
+      outputPixels.add(new UniversePacker.OutputPixels(outputPixels.size() + 1, indices, transform));
+    }
+    UniversePacker.Layout layout = UniversePacker.naive(outputPixels, 0);
+    return new PackedOutput(lx, new ArtNetProtocol(InetAddress.getLoopbackAddress(), port), layout.universeIndices,
+        layout.universeNumbers, layout.universeTransforms, false, 0);
+  }
+
+  static private long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  static private long median(long[] values) {
+    long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+}
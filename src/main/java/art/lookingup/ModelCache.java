@@ -0,0 +1,375 @@
+package art.lookingup;
+
+import art.lookingup.ui.RunsConfig;
+import art.lookingup.ui.StrandLengths;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Caches the built model in a binary file so startup can skip building it.  The file has everything that
+ * takes evaluating the run curves: each run, strand and fixture in wire order with the fixture positions and
+ * wire distances, and each run's wire tables.  Loading creates the fixtures at their cached positions, and
+ * the fixture classes lay out their LEDs from there.
+ *
+ * The file is keyed by a SHA-256 of runs.json, strandlengths.json, the other model settings, and the
+ * compiled classes that build the model, so changing the config or the model code makes a stale cache miss
+ * instead of loading the wrong model.  Files are read whole into a heap buffer rather than mapped, since a
+ * mapping stays open until it is garbage collected and would stop the next save from replacing the file on
+ * Windows.  A missing, stale or corrupt
+ * cache is logged and the model is built as normal.
+ *
+ * Layout, big endian: magic, 32 byte key, then the body, then a CRC32 of the body.  The body is
+ * strandsPerRun, butterfliesPerStrand, the strand lengths, the runs, and the point count as a check.  Each run
+ * is its type, index, x, y, z, butterflies per strand, first strand id, strand lengths, wire tables for
+ * butterfly runs, and its strands.  Each strand is its id, run index, type, x, y, z, and its fixtures' x, y, z
+ * and wire distance.
+ */
+public class ModelCache {
+  private static final Logger logger = Logger.getLogger(ModelCache.class.getName());
+
+  public static final String FILENAME = "model.cache";
+
+  // The layout needs no version of its own, since ModelCache's class is part of the key.
+  static final int MAGIC = 0x4b4d444c;  // KMDL
+  static final int KEY_LENGTH = 32;
+
+  // Classes whose code decides where the points go.
+  private static final String[] MODEL_CLASSES = {
+      "KaledoscopeModel", "KaledoscopeModel$Run", "KaledoscopeModel$Strand", "KaledoscopeModel$Bezier",
+      "LUButterfly", "LUFlower", "WireCurve", "ModelCache",
+  };
+
+  /**
+   * The key for a model built with the given settings from the current config files.
+   */
+  static public byte[] key(int numRuns, int strandsPerRun, int butterfliesPerStrand, int flowerRuns,
+                           List<Integer> strandLengths) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException nsaex) {
+      throw new IllegalStateException("SHA-256 is not available", nsaex);
+    }
+    ByteBuffer settings = ByteBuffer.allocate(4 * (5 + strandLengths.size()));
+    settings.putInt(numRuns).putInt(strandsPerRun).putInt(butterfliesPerStrand).putInt(flowerRuns);
+    settings.putInt(strandLengths.size());
+    for (int length : strandLengths) {
+      settings.putInt(length);
+    }
+    digest.update(settings.array());
+    digestFile(digest, RunsConfig.filename);
+    digestFile(digest, StrandLengths.filename);
+    for (String name : MODEL_CLASSES) {
+      try (InputStream in = ModelCache.class.getResourceAsStream(name + ".class")) {
+        digestStream(digest, in);
+      } catch (IOException ioex) {
+        digest.update((byte) 0);
+      }
+    }
+    return digest.digest();
+  }
+
+  private static void digestFile(MessageDigest digest, String filename) {
+    // Length first so that moving bytes from one file to the next changes the key.
+    File file = new File(filename);
+    try {
+      byte[] contents = file.exists() ? Files.readAllBytes(file.toPath()) : new byte[0];
+      digest.update(ByteBuffer.allocate(8).putLong(file.exists() ? contents.length : -1).array());
+      digest.update(contents);
+    } catch (IOException ioex) {
+      digest.update(ByteBuffer.allocate(8).putLong(-2).array());
+    }
+  }
+
+  private static void digestStream(MessageDigest digest, InputStream in) throws IOException {
+    if (in == null) {
+      digest.update((byte) 0);
+      return;
+    }
+    byte[] buffer = new byte[8192];
+    for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+      digest.update(buffer, 0, read);
+    }
+  }
+
+  /**
+   * Loads the model cached in filename if it was cached with key.
+   *
+   * @return the model, or null if there is no usable cache.
+   */
+  static public KaledoscopeModel load(String filename, byte[] key) {
+    File file = new File(filename);
+    if (!file.exists()) {
+      return null;
+    }
+    long startNanos = System.nanoTime();
+    ByteBuffer buf;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        logger.info("Model cache " + filename + " is too large to be a model cache, building the model");
+        return null;
+      }
+      buf = ByteBuffer.allocate((int) size);
+      while (buf.hasRemaining()) {
+        if (channel.read(buf) < 0) {
+          // Shorter than it was a moment ago, the CRC check rejects what was read.
+          break;
+        }
+      }
+      buf.flip();
+    } catch (IOException ioex) {
+      logger.log(Level.WARNING, "Reading model cache " + filename + " failed, building the model", ioex);
+      return null;
+    }
+    KaledoscopeModel model;
+    try {
+      if (buf.getInt() != MAGIC) {
+        logger.info("Model cache " + filename + " is not a model cache, building the model");
+        return null;
+      }
+      byte[] fileKey = new byte[KEY_LENGTH];
+      buf.get(fileKey);
+      if (!Arrays.equals(fileKey, key)) {
+        logger.info("Model cache " + filename + " is for another config, building the model");
+        return null;
+      }
+      int bodyStart = buf.position();
+      int bodyEnd = buf.limit() - 4;
+      if (bodyEnd < bodyStart) {
+        throw new IllegalStateException("Truncated");
+      }
+      CRC32 crc = new CRC32();
+      ByteBuffer body = buf.duplicate();
+      body.position(bodyStart);
+      body.limit(bodyEnd);
+      crc.update(body);
+      if ((int) crc.getValue() != buf.getInt(bodyEnd)) {
+        throw new IllegalStateException("Checksum mismatch");
+      }
+      model = read(buf);
+      if (buf.position() != bodyEnd) {
+        throw new IllegalStateException((bodyEnd - buf.position()) + " bytes left over");
+      }
+    } catch (RuntimeException rex) {
+      // Underflows, bad counts and anything the model itself rejects.
+      logger.log(Level.WARNING, "Model cache " + filename + " is corrupt, building the model", rex);
+      return null;
+    }
+    logger.info("Loaded model from " + filename + " in " + (System.nanoTime() - startNanos) / 1000000 + "ms: "
+        + model.size + " points");
+    return model;
+  }
+
+  static private KaledoscopeModel read(ByteBuffer buf) {
+    int strandsPerRun = buf.getInt();
+    int butterfliesPerStrand = buf.getInt();
+    int[] lengths = readInts(buf);
+    List<Integer> strandLengths = new ArrayList<Integer>(lengths.length);
+    for (int length : lengths) {
+      strandLengths.add(length);
+    }
+    int numRuns = count(buf);
+    List<KaledoscopeModel.Run> runs = new ArrayList<KaledoscopeModel.Run>(numRuns);
+    for (int r = 0; r < numRuns; r++) {
+      KaledoscopeModel.Run.RunType runType = KaledoscopeModel.Run.RunType.values()[buf.get()];
+      int runIndex = buf.getInt();
+      float x = buf.getFloat();
+      float y = buf.getFloat();
+      float z = buf.getFloat();
+      int runButterfliesPerStrand = buf.getInt();
+      int firstStrandId = buf.getInt();
+      int[] runLengths = readInts(buf);
+      KaledoscopeModel.Run run = new KaledoscopeModel.Run(runIndex, runType, x, y, z, runButterfliesPerStrand,
+          firstStrandId, runLengths);
+      if (runType == KaledoscopeModel.Run.RunType.BUTTERFLY) {
+        int samplesPerBezier = buf.getInt();
+        run.wire = new WireCurve(samplesPerBezier, readFloats(buf), readFloats(buf), readFloats(buf),
+            run.bezier1, run.bezier2);
+      }
+      int numStrands = count(buf);
+      for (int s = 0; s < numStrands; s++) {
+        run.addStrand(readStrand(buf, run));
+      }
+      runs.add(run);
+    }
+    int numPoints = buf.getInt();
+    KaledoscopeModel model = KaledoscopeModel.fromRuns(runs, strandLengths, strandsPerRun, butterfliesPerStrand);
+    if (model.size != numPoints) {
+      throw new IllegalStateException("Cached " + numPoints + " points but loaded " + model.size);
+    }
+    return model;
+  }
+
+  static private KaledoscopeModel.Strand readStrand(ByteBuffer buf, KaledoscopeModel.Run run) {
+    int strandId = buf.getInt();
+    int strandRunIndex = buf.getInt();
+    KaledoscopeModel.Strand.StrandType strandType = KaledoscopeModel.Strand.StrandType.values()[buf.get()];
+    float x = buf.getFloat();
+    float y = buf.getFloat();
+    float z = buf.getFloat();
+    int numFixtures = count(buf);
+    KaledoscopeModel.Strand strand = new KaledoscopeModel.Strand(run, strandId, strandType, strandRunIndex,
+        x, y, z, numFixtures);
+    // Fixtures are numbered along the run, continuing from the run's previous strands.
+    int prevStrandsFixtures = strandType == KaledoscopeModel.Strand.StrandType.BUTTERFLY
+        ? run.butterflies.size() : run.flowers.size();
+    for (int i = 0; i < numFixtures; i++) {
+      float fx = buf.getFloat();
+      float fy = buf.getFloat();
+      float fz = buf.getFloat();
+      float wireDistance = buf.getFloat();
+      if (strandType == KaledoscopeModel.Strand.StrandType.BUTTERFLY) {
+        LUButterfly butterfly = new LUButterfly(i, i + prevStrandsFixtures, fx, fy, fz);
+        butterfly.wireDistance = wireDistance;
+        strand.addButterfly(butterfly);
+      } else {
+        LUFlower flower = new LUFlower(i, i + prevStrandsFixtures, fx, fy, fz);
+        flower.wireDistance = wireDistance;
+        strand.addFlower(flower);
+      }
+    }
+    return strand;
+  }
+
+  // A count, checked against what is left so a corrupt count fails instead of allocating a huge array.
+  static private int count(ByteBuffer buf) {
+    int count = buf.getInt();
+    if (count < 0 || count > buf.remaining()) {
+      throw new IllegalStateException("Bad count " + count);
+    }
+    return count;
+  }
+
+  static private int[] readInts(ByteBuffer buf) {
+    int[] values = new int[count(buf)];
+    buf.asIntBuffer().get(values);
+    buf.position(buf.position() + 4 * values.length);
+    return values;
+  }
+
+  static private float[] readFloats(ByteBuffer buf) {
+    float[] values = new float[count(buf)];
+    buf.asFloatBuffer().get(values);
+    buf.position(buf.position() + 4 * values.length);
+    return values;
+  }
+
+  /**
+   * Caches model in filename under key.  Written to a temporary file and moved into place, so a crash while
+   * writing never leaves a partial cache.  Failures are logged, the cache is only an optimization.
+   */
+  static public void save(String filename, byte[] key, KaledoscopeModel model) {
+    Path path = new File(filename).getAbsoluteFile().toPath();
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    try {
+      CRC32 crc = new CRC32();
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        out.writeInt(MAGIC);
+        out.write(key);
+        // The body goes through a second stream that keeps the checksum.
+        DataOutputStream body = new DataOutputStream(new CheckedOutputStream(out, crc));
+        write(body, model);
+        body.flush();
+        out.writeInt((int) crc.getValue());
+      }
+      try {
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException amnsex) {
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+      logger.info("Cached model in " + filename);
+    } catch (IOException ioex) {
+      logger.log(Level.WARNING, "Writing model cache " + filename + " failed", ioex);
+      try {
+        Files.deleteIfExists(temp);
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  static private void write(DataOutputStream out, KaledoscopeModel model) throws IOException {
+    out.writeInt(model.strandsPerRun);
+    out.writeInt(model.butterfliesPerStrand);
+    out.writeInt(model.strandLengths.size());
+    for (int length : model.strandLengths) {
+      out.writeInt(length);
+    }
+    out.writeInt(model.runs.size());
+    for (KaledoscopeModel.Run run : model.runs) {
+      out.writeByte(run.runType.ordinal());
+      out.writeInt(run.runIndex);
+      out.writeFloat(run.x);
+      out.writeFloat(run.y);
+      out.writeFloat(run.z);
+      out.writeInt(run.butterfliesPerStrand);
+      out.writeInt(run.firstStrandId);
+      writeInts(out, run.strandLengths);
+      if (run.runType == KaledoscopeModel.Run.RunType.BUTTERFLY) {
+        out.writeInt(run.wire.getSamplesPerBezier());
+        writeFloats(out, run.wire.getSampleDistances());
+        writeFloats(out, run.wire.getSampleXs());
+        writeFloats(out, run.wire.getSampleYs());
+      }
+      out.writeInt(run.strands.size());
+      for (KaledoscopeModel.Strand strand : run.strands) {
+        out.writeInt(strand.strandId);
+        out.writeInt(strand.strandRunIndex);
+        out.writeByte(strand.strandType.ordinal());
+        out.writeFloat(strand.x);
+        out.writeFloat(strand.y);
+        out.writeFloat(strand.z);
+        out.writeInt(strand.butterflies.size() + strand.flowers.size());
+        for (LUButterfly butterfly : strand.butterflies) {
+          writeFixture(out, butterfly.x, butterfly.y, butterfly.z, butterfly.wireDistance);
+        }
+        for (LUFlower flower : strand.flowers) {
+          writeFixture(out, flower.x, flower.y, flower.z, flower.wireDistance);
+        }
+      }
+    }
+    out.writeInt(model.size);
+  }
+
+  static private void writeFixture(DataOutputStream out, float x, float y, float z, float wireDistance)
+      throws IOException {
+    out.writeFloat(x);
+    out.writeFloat(y);
+    out.writeFloat(z);
+    out.writeFloat(wireDistance);
+  }
+
+  static private void writeInts(DataOutputStream out, int[] values) throws IOException {
+    out.writeInt(values.length);
+    for (int value : values) {
+      out.writeInt(value);
+    }
+  }
+
+  static private void writeFloats(DataOutputStream out, float[] values) throws IOException {
+    out.writeInt(values.length);
+    for (float value : values) {
+      out.writeFloat(value);
+    }
+  }
+}
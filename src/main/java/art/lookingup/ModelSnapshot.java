@@ -0,0 +1,40 @@
+package art.lookingup;
+
+import java.util.List;
+
+/**
+ * The current model and everything derived from it, as one immutable object.  A new snapshot with the next
+ * version is published whenever the model is replaced, see KaledoscopeModel.publish(), and
+ * KaledoscopeModel.snapshot() returns the latest through a single volatile read.
+ *
+ * Read the snapshot once at the start of a frame and use only that snapshot for the frame, rather than
+ * reading KaledoscopeModel.snapshot() again part way through.  The lists can not be modified, and runs and
+ * strands freeze their lists when the model is built, so a snapshot can be shared between threads without
+ * locks.  Compare versions to tell whether the model changed since a previous frame.
+ */
+public class ModelSnapshot {
+  // Increases by one with each model published, starting at 1.
+  public final long version;
+  public final KaledoscopeModel model;
+  public final List<KaledoscopeModel.Run> runs;
+  public final List<KaledoscopeModel.Strand> strands;
+  public final List<LUButterfly> butterflies;
+  public final List<LUFlower> flowers;
+  public final int strandsPerRun;
+  // Flat arrays of the model for pattern loops.
+  public final ModelArrays arrays;
+  // Finds the points near a position.
+  public final SpatialIndex spatialIndex;
+
+  ModelSnapshot(long version, KaledoscopeModel model) {
+    this.version = version;
+    this.model = model;
+    runs = model.runs;
+    strands = model.strands;
+    butterflies = model.butterflies;
+    flowers = model.flowers;
+    strandsPerRun = model.strandsPerRun;
+    arrays = model.arrays;
+    spatialIndex = model.spatialIndex;
+  }
+}
@@ -1,105 +1,564 @@
 package art.lookingup;
 
+import art.lookingup.output.ArtNetProtocol;
+import art.lookingup.output.ArtNetReceiver;
+import art.lookingup.output.ColorTransform;
+import art.lookingup.output.ControllerConfig;
+import art.lookingup.output.DmxProtocol;
+import art.lookingup.output.FrameRecorder;
+import art.lookingup.output.OutputPlan;
+import art.lookingup.output.OutputScheduler;
+import art.lookingup.output.PackedOutput;
+import art.lookingup.output.PowerLimiter;
+import art.lookingup.output.SendTimings;
+import art.lookingup.output.StreamingACNProtocol;
+import art.lookingup.output.SwappableOutput;
+import art.lookingup.output.SyncCoordinator;
+import art.lookingup.output.UniversePacker;
+import art.lookingup.ui.RunsConfig;
+import art.lookingup.ui.StrandLengths;
 import art.lookingup.ui.UIPixliteConfig;
 import heronarts.lx.parameter.LXParameter;
 import heronarts.lx.LX;
 import heronarts.lx.model.LXPoint;
-import heronarts.lx.output.ArtNetDatagram;
-import heronarts.lx.output.ArtSyncDatagram;
+import heronarts.lx.output.LXBufferOutput.ByteOrder;
 
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 /**
- * Handles output from our 'colors' buffer to our DMX lights.  Currently using E1.31.
+ * Handles output from our 'colors' buffer to our DMX lights.  Uses ArtNet by default, or E1.31 (sACN) when
+ * selected in the pixlite config.  Either way the same strand to output mapping from MappingConfig is used.
+ *
+ * The settings are compiled into an OutputPlan, validated and built into PackedOutputs, which are then
+ * swapped into a SwappableOutput at the next frame.  Changing the settings while running never stops or
+ * blacks out the current outputs, and invalid settings leave them running.
  */
 public class Output {
   private static final Logger logger = Logger.getLogger(Output.class.getName());
 
-  public static final int MAX_OUTPUTS = 32;  // 32 outputs in expanded mode.
+  public static final int MAX_OUTPUTS = ControllerConfig.MAX_OUTPUTS;  // 32 outputs in expanded mode.
 
   public static List<List<Integer>> outputs = new ArrayList<List<Integer>>(MAX_OUTPUTS);
 
-  public static void configurePixliteOutput(LX lx) {
-    List<ArtNetDatagram> datagrams = new ArrayList<ArtNetDatagram>();
-    List<Integer> countsPerOutput = new ArrayList<Integer>();
-    // For each output, track the number of points per panel type so we can log the details to help
-    // with output verification.
-
-    String artNetIpAddress = KaledoscopeApp.pixliteConfig.getStringParameter(UIPixliteConfig.PIXLITE_1_IP).getString();
-    int artNetIpPort = Integer.parseInt(KaledoscopeApp.pixliteConfig.getStringParameter(UIPixliteConfig.PIXLITE_1_PORT).getString());
-    logger.log(Level.INFO, "Using ArtNet: " + artNetIpAddress + ":" + artNetIpPort);
-
-    // For each non-empty mapping output parameter, collect all points in wire order from each strand listed.  One
-    // output can have multiple strands.
-    // Distribute all points across the necessary number of 170-led sized universes.
-    int curUniverseNum = 0;
-    for (int outputNum = 0; outputNum < 16; outputNum++) {
-      logger.info("Loading mapping for output " + (outputNum+1));
-      String strandIds = KaledoscopeApp.mappingConfig.getStringParameter("output" + (outputNum+1)).getString();
-      logger.info("strand ids: " + strandIds);
-      if (strandIds.length() > 0) {
-        List<LXPoint> pointsWireOrder = new ArrayList<LXPoint>();
-
-
-        String[] ids = strandIds.split(",");
-        for (int i = 0; i < ids.length; i++) {
-          int strandId = Integer.parseInt(ids[i]);
-          if (strandId < KaledoscopeModel.allStrands.size()) {
-            KaledoscopeModel.Strand strand = KaledoscopeModel.allStrands.get(strandId);
-            // The default construction of LED points in a strand is already in wire-order.
-            pointsWireOrder.addAll(strand.allPoints);
-          }
+  // Sends to the PackedOutputs built from the current output plan, one per controller.
+  private static SwappableOutput swappableOutput = null;
+
+  // The newest model, which output plans are compiled against.  Ahead of the engine's model while a rebuilt
+  // model waits for the next frame.  Null until a model is rebuilt.
+  private static volatile KaledoscopeModel plannedModel = null;
+
+  // The plan of the outputs the engine is sending to, null until outputs are configured.
+  private static volatile OutputPlan currentPlan = null;
+
+  // Mapped from each plan as it is swapped in, if set with --receiver.
+  private static volatile ArtNetReceiver loopbackReceiver = null;
+
+  // Compiles and builds output plans and rebuilt models off of the UI and engine threads, one at a time.
+  private static final ExecutorService planner = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "Kaledoscope Output Planner");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Records every frame sent, if enabled with --record.
+   */
+  public static void setRecorder(LX lx, FrameRecorder frameRecorder) {
+    lx.engine.output.addChild(frameRecorder);
+  }
+
+  /**
+   * Maps the receiver's outputs from the current output plan and every plan swapped in after it, see
+   * ArtNetReceiver.mapOutputs().
+   */
+  public static void setLoopbackReceiver(ArtNetReceiver receiver) {
+    loopbackReceiver = receiver;
+    OutputPlan plan = currentPlan;
+    if (plan != null) {
+      mapLoopbackReceiver(receiver, plan);
+    }
+  }
+
+  private static void mapLoopbackReceiver(ArtNetReceiver receiver, OutputPlan plan) {
+    if (!receiver.mapOutputs(plan)) {
+      logger.warning("No controller sends ArtNet to the loopback receiver, point the pixlite topology at 127.0.0.1");
+    }
+  }
+
+  /**
+   * The PackedOutputs the engine is currently sending to, in topology order.  Safe to call from any thread.
+   */
+  public static PackedOutput[] getPackedOutputs() {
+    SwappableOutput swappable;
+    synchronized (Output.class) {
+      swappable = swappableOutput;
+    }
+    return swappable != null ? swappable.getActive() : new PackedOutput[0];
+  }
+
+  /**
+   * The most recent engine frame time across all configured outputs, see PackedOutput.getLastFrameNanos().
+   */
+  public static long getLastFrameNanos() {
+    long latest = 0;
+    for (PackedOutput packedOutput : getPackedOutputs()) {
+      long frameNanos = packedOutput.getLastFrameNanos();
+      if (latest == 0 || frameNanos - latest > 0) {
+        latest = frameNanos;
+      }
+    }
+    return latest;
+  }
+
+  /**
+   * Send timing percentiles for every configured controller and its outputs, see SendTimings.
+   */
+  public static String getTimingReport() {
+    StringBuilder sb = new StringBuilder();
+    for (PackedOutput packedOutput : getPackedOutputs()) {
+      SendTimings timings = packedOutput.getTimings();
+      if (timings != null) {
+        sb.append(timings.report()).append('\n');
+      }
+    }
+    SyncCoordinator coordinator = getSyncCoordinator();
+    if (coordinator != null) {
+      sb.append(coordinator).append('\n');
+    }
+    PowerLimiter limiter = getPowerLimiter();
+    if (limiter != null) {
+      sb.append(limiter).append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * The coordinator sending sync for the current outputs, or null if each sends its own.
+   */
+  public static SyncCoordinator getSyncCoordinator() {
+    SwappableOutput swappable;
+    synchronized (Output.class) {
+      swappable = swappableOutput;
+    }
+    return swappable != null ? swappable.getSyncCoordinator() : null;
+  }
+
+  /**
+   * The limiter dimming over budget strands in the current outputs, or null if power limiting is off.
+   */
+  public static PowerLimiter getPowerLimiter() {
+    SwappableOutput swappable;
+    synchronized (Output.class) {
+      swappable = swappableOutput;
+    }
+    return swappable != null ? swappable.getPowerLimiter() : null;
+  }
+
+  public static void resetTimings() {
+    for (PackedOutput packedOutput : getPackedOutputs()) {
+      SendTimings timings = packedOutput.getTimings();
+      if (timings != null) {
+        timings.reset();
+      }
+    }
+  }
+
+  /**
+   * Logs the timing report every intervalSeconds and then starts the histograms over, so each report
+   * covers one interval.
+   */
+  public static void startTimingLog(int intervalSeconds) {
+    Thread thread = new Thread(() -> {
+      while (true) {
+        try {
+          Thread.sleep(intervalSeconds * 1000L);
+        } catch (InterruptedException iex) {
+          return;
         }
+        logger.info("Send timings over " + intervalSeconds + "s:\n" + getTimingReport());
+        resetTimings();
+      }
+    }, "Kaledoscope Timing Log");
+    thread.setDaemon(true);
+    thread.start();
+  }
 
-        int numUniversesThisWire = (int) Math.ceil((float) pointsWireOrder.size() / 170f);
-        int univStartNum = curUniverseNum;
-        int lastUniverseCount = pointsWireOrder.size() - 170 * (numUniversesThisWire - 1);
-        int maxLedsPerUniverse = (pointsWireOrder.size()>170)?170:pointsWireOrder.size();
-        int[] thisUniverseIndices = new int[maxLedsPerUniverse];
-        int curIndex = 0;
-        int curUnivOffset = 0;
-        for (LXPoint pt : pointsWireOrder) {
-          thisUniverseIndices[curIndex] = pt.index;
-          curIndex++;
-          if (curIndex == 170 || (curUnivOffset == numUniversesThisWire - 1 && curIndex == lastUniverseCount)) {
-            logger.log(Level.INFO, "Adding datagram: universe=" + (univStartNum + curUnivOffset) + " points=" + curIndex);
-            ArtNetDatagram datagram = new ArtNetDatagram(lx, thisUniverseIndices, curIndex * 3, univStartNum + curUnivOffset);
-            try {
-              InetAddress address;
-              address = InetAddress.getByName(artNetIpAddress);
-              datagram.setAddress(address).setPort(artNetIpPort);
-            } catch (UnknownHostException uhex) {
-              logger.log(Level.SEVERE, "Configuring ArtNet: " + artNetIpAddress + ":" + artNetIpPort, uhex);
-            }
-            datagrams.add(datagram);
-            curUnivOffset++;
-            curIndex = 0;
-            if (curUnivOffset == numUniversesThisWire - 1) {
-              thisUniverseIndices = new int[lastUniverseCount];
-            } else {
-              thisUniverseIndices = new int[maxLedsPerUniverse];
+  /**
+   * Builds the outputs from the current pixlite and mapping settings and swaps them in at the next frame.
+   * Runs on the calling thread, so only use this at startup before the engine is started, and
+   * {@link #reconfigure(LX)} while running.  If the settings are invalid the current outputs are left as they
+   * are.
+   *
+   * @return true if the new outputs were built.
+   */
+  public static boolean configurePixliteOutput(LX lx) {
+    KaledoscopeModel model = getPlannedModel(lx);
+    OutputPlan plan = compileAndValidate(model, model != lx.getModel(), KaledoscopeApp.pixliteParams,
+        KaledoscopeApp.mappingParams);
+    return plan != null && swapIn(lx, plan, model);
+  }
+
+  /**
+   * Compiles and validates the outputs for model on the calling thread, then builds and swaps them in, along
+   * with model if the engine has a different model, from an engine task.
+   *
+   * @param pixlite Snapshot of the pixlite settings, see ParameterFile.snapshot().
+   * @param mapping Snapshot of the mapping settings.
+   * @return true if the settings were valid and the swap was handed to the engine.
+   */
+  private static boolean configurePixliteOutputOnEngine(LX lx, KaledoscopeModel model, ParameterFile pixlite,
+                                                        ParameterFile mapping) {
+    boolean newModel = model != lx.getModel();
+    OutputPlan plan = compileAndValidate(model, newModel, pixlite, mapping);
+    if (plan == null) {
+      return false;
+    }
+    if (newModel) {
+      plannedModel = model;
+    }
+    lx.engine.addTask(() -> {
+      if (!swapIn(lx, plan, model) && plannedModel == model) {
+        // Output reconfigurations still queued go on with the engine's model.
+        plannedModel = null;
+      }
+    });
+    return true;
+  }
+
+  /**
+   * @return the plan, or null if the settings are invalid.
+   */
+  private static OutputPlan compileAndValidate(KaledoscopeModel model, boolean newModel, ParameterFile pixlite,
+                                               ParameterFile mapping) {
+    try {
+      OutputPlan plan = compilePlan(model, pixlite, mapping);
+      plan.validate(model.size);
+      return plan;
+    } catch (IllegalArgumentException iaex) {
+      logger.log(Level.SEVERE, "Invalid output configuration, keeping the current outputs"
+          + (newModel ? " and model" : ""), iaex);
+      return null;
+    }
+  }
+
+  /**
+   * Builds the outputs of plan and swaps them into the engine, along with model if the engine has a different
+   * model.  PackedOutputs are LX components, so this must run on the engine thread or before the engine
+   * starts.
+   *
+   * @return true if the outputs were built.
+   */
+  private static boolean swapIn(LX lx, OutputPlan plan, KaledoscopeModel model) {
+    PackedOutput[] built;
+    try {
+      built = plan.build(lx);
+    } catch (IOException ioex) {
+      logger.log(Level.SEVERE, "Opening output channels failed, keeping the current outputs", ioex);
+      return false;
+    }
+    SyncCoordinator coordinator;
+    try {
+      coordinator = plan.buildSyncCoordinator(built);
+    } catch (IOException ioex) {
+      logger.log(Level.SEVERE, "Opening sync channel failed, keeping the current outputs", ioex);
+      for (PackedOutput packedOutput : built) {
+        packedOutput.dispose();
+      }
+      return false;
+    }
+    PowerLimiter limiter = plan.buildPowerLimiter(model.size);
+    if (lx.getModel() != model) {
+      // Everything that depends on the model changes at the same frame.  publish() replaces the model
+      // snapshot with the next version, patterns remap their state when they see the new version at the start
+      // of their next run, and the outputs are picked up when this frame is sent.
+      KaledoscopeModel.publish(model);
+      lx.structure.setStaticModel(model);
+    }
+    getSwappableOutput(lx).swap(built, coordinator, limiter, model.size);
+    currentPlan = plan;
+    ArtNetReceiver receiver = loopbackReceiver;
+    if (receiver != null) {
+      mapLoopbackReceiver(receiver, plan);
+    }
+    logger.info("Output plan ready: " + plan.controllers.size() + " controllers, " + plan.getNumUniverses() + " universes"
+        + (coordinator != null ? ", " + (coordinator.isBroadcast() ? "broadcast" : "per controller") + " coordinated sync" : "")
+        + (limiter != null ? ", power limited" : ""));
+    return true;
+  }
+
+  /**
+   * Compiles and validates the outputs on a background thread, then builds them and swaps them in at a frame
+   * boundary on the engine thread, so the installation keeps running on the current outputs until the new
+   * ones are ready.  For config UIs to call from onSave().  Requests are handled in order, each with the
+   * settings as they were when it was made.
+   */
+  public static void reconfigure(LX lx) {
+    ParameterFile pixlite = KaledoscopeApp.pixliteParams.snapshot();
+    ParameterFile mapping = KaledoscopeApp.mappingParams.snapshot();
+    planner.execute(() -> configurePixliteOutputOnEngine(lx, getPlannedModel(lx), pixlite, mapping));
+  }
+
+  /**
+   * Rebuilds the model from the runs and strand length settings on a background thread, then swaps the new
+   * model and outputs built for it into the engine at a frame boundary.  Runs that did not change are
+   * reused from the current model, see KaledoscopeModel.build().  For config UIs to call from onSave().  If
+   * the settings are invalid the current model and outputs are left as they are.
+   */
+  public static void rebuildModel(LX lx) {
+    ParameterFile runsConfig = KaledoscopeApp.runsConfigParams.snapshot();
+    ParameterFile strandLengthsConfig = KaledoscopeApp.strandLengthsParams.snapshot();
+    ParameterFile pixlite = KaledoscopeApp.pixliteParams.snapshot();
+    ParameterFile mapping = KaledoscopeApp.mappingParams.snapshot();
+    planner.execute(() -> {
+      KaledoscopeModel previous = getPlannedModel(lx);
+      KaledoscopeModel model;
+      int runsButterflies;
+      int runsFlowers;
+      List<Integer> strandLengths;
+      try {
+        runsButterflies = Integer.parseInt(
+            runsConfig.getStringParameter(RunsConfig.BUTTERFLY_RUNS, "3").getString().trim());
+        runsFlowers = Integer.parseInt(
+            runsConfig.getStringParameter(RunsConfig.FLOWER_RUNS, "4").getString().trim());
+        strandLengths = StrandLengths.getAllStrandLengths(strandLengthsConfig);
+        long startNanos = System.nanoTime();
+        model = KaledoscopeModel.build(runsButterflies, previous.strandsPerRun, previous.butterfliesPerStrand,
+            runsFlowers, strandLengths, previous);
+        logger.info("Rebuilt model in " + (System.nanoTime() - startNanos) / 1000000 + "ms: " + model.size
+            + " points, reused " + model.reusedRuns + " of " + model.runs.size() + " runs");
+      } catch (IllegalArgumentException iaex) {
+        logger.log(Level.SEVERE, "Invalid model configuration, keeping the current model", iaex);
+        return;
+      }
+      if (configurePixliteOutputOnEngine(lx, model, pixlite, mapping)) {
+        ModelCache.save(ModelCache.FILENAME, ModelCache.key(runsButterflies, model.strandsPerRun,
+            model.butterfliesPerStrand, runsFlowers, strandLengths), model);
+      }
+    });
+  }
+
+  private static KaledoscopeModel getPlannedModel(LX lx) {
+    KaledoscopeModel model = plannedModel;
+    return model != null ? model : (KaledoscopeModel) lx.getModel();
+  }
+
+  /**
+   * The engine output child that the configured PackedOutputs are sent through.  Added to the engine the
+   * first time it is needed and never removed.
+   */
+  static synchronized SwappableOutput getSwappableOutput(LX lx) {
+    if (swappableOutput == null) {
+      swappableOutput = new SwappableOutput(lx);
+      lx.engine.output.addChild(swappableOutput);
+    }
+    return swappableOutput;
+  }
+
+  /**
+   * Compiles the pixlite and mapping settings into an output plan for model.  One controller plan per controller in
+   * the pixlite topology.  Controllers whose address can not be resolved are left out.
+   *
+   * @param pixlite The pixlite settings, or a snapshot of them when not on the UI thread.
+   * @param mapping The mapping settings, or a snapshot of them.
+   * @throws IllegalArgumentException if a setting can not be parsed.
+   */
+  static OutputPlan compilePlan(KaledoscopeModel model, ParameterFile pixlite, ParameterFile mapping) {
+    List<ControllerConfig> controllers = UIPixliteConfig.getControllers(pixlite);
+    boolean senderThread = pixliteBoolean(pixlite, UIPixliteConfig.SENDER_THREAD)
+        || controllers.size() > 1;
+    float senderFps = Float.parseFloat(pixliteString(pixlite, UIPixliteConfig.SENDER_FPS));
+    String protocolName = pixliteString(pixlite, UIPixliteConfig.PROTOCOL);
+    boolean sacn = UIPixliteConfig.PROTOCOL_SACN.equalsIgnoreCase(protocolName);
+    boolean skipUnchanged = pixliteBoolean(pixlite, UIPixliteConfig.SKIP_UNCHANGED);
+    int keepaliveMs = Integer.parseInt(pixliteString(pixlite, UIPixliteConfig.KEEPALIVE_MS));
+
+    double gamma = Double.parseDouble(pixliteString(pixlite, UIPixliteConfig.GAMMA));
+    double brightness = Double.parseDouble(pixliteString(pixlite, UIPixliteConfig.BRIGHTNESS));
+    ByteOrder byteOrder = ByteOrder.valueOf(pixliteString(pixlite, UIPixliteConfig.COLOR_ORDER).toUpperCase());
+    boolean dither = pixliteBoolean(pixlite, UIPixliteConfig.DITHER);
+    ColorTransform defaultTransform = new ColorTransform(gamma, brightness, byteOrder, dither);
+    Map<Integer, ColorTransform> outputTransforms = ColorTransform.parseOverrides(
+        pixliteString(pixlite, UIPixliteConfig.COLOR_OVERRIDES), defaultTransform);
+
+    boolean paceOutputs = pixliteBoolean(pixlite, UIPixliteConfig.PACE_OUTPUTS);
+    int pixelClockKhz = Integer.parseInt(pixliteString(pixlite, UIPixliteConfig.PIXEL_CLOCK_KHZ));
+    if (pixelClockKhz <= 0) {
+      throw new IllegalArgumentException("Invalid pixel clock: " + pixelClockKhz + "kHz");
+    }
+    float targetFps = Float.parseFloat(pixliteString(pixlite, UIPixliteConfig.TARGET_FPS));
+    if (!(targetFps > 0)) {
+      throw new IllegalArgumentException("Invalid target fps: " + targetFps);
+    }
+    int ledBudget = OutputScheduler.ledBudget(targetFps, pixelClockKhz);
+    boolean packUniverses = pixliteBoolean(pixlite, UIPixliteConfig.PACK_UNIVERSES);
+
+    boolean multicast = pixliteBoolean(pixlite, UIPixliteConfig.SACN_MULTICAST);
+    int priority = Integer.parseInt(pixliteString(pixlite, UIPixliteConfig.SACN_PRIORITY));
+    int syncUniverse = Integer.parseInt(pixliteString(pixlite, UIPixliteConfig.SACN_SYNC_UNIVERSE));
+    int syncTimeoutMs = Integer.parseInt(pixliteString(pixlite, UIPixliteConfig.SYNC_TIMEOUT_MS));
+    InetSocketAddress syncBroadcast = null;
+    String syncBroadcastSetting = pixliteString(pixlite, UIPixliteConfig.SYNC_BROADCAST);
+    if (syncBroadcastSetting.length() > 0) {
+      if (sacn) {
+        // sACN receivers only accept sync from the source of the data, and each controller is its own source.
+        logger.warning("Broadcast sync is only supported for ArtNet, syncing each controller instead");
+      } else {
+        String[] fields = syncBroadcastSetting.split(":");
+        try {
+          int port = fields.length > 1 ? Integer.parseInt(fields[1].trim()) : ArtNetProtocol.ARTNET_PORT;
+          syncBroadcast = new InetSocketAddress(InetAddress.getByName(fields[0].trim()), port);
+        } catch (UnknownHostException uhex) {
+          throw new IllegalArgumentException("Invalid sync broadcast address: " + syncBroadcastSetting, uhex);
+        }
+      }
+    }
+
+    List<OutputPlan.ControllerPlan> controllerPlans = new ArrayList<OutputPlan.ControllerPlan>();
+    // Outputs are numbered globally across controllers in topology order.
+    int firstOutputNum = 0;
+    for (ControllerConfig controller : controllers) {
+      logger.log(Level.INFO, "Using " + (sacn ? "sACN" : "ArtNet") + ": " + controller);
+      List<UniversePacker.OutputPixels> outputPixels = new ArrayList<UniversePacker.OutputPixels>();
+
+      // For each non-empty mapping output parameter, collect all points in wire order from each strand listed.  One
+      // output can have multiple strands.
+      for (int outputNum = firstOutputNum; outputNum < firstOutputNum + controller.numOutputs; outputNum++) {
+        logger.info("Loading mapping for output " + (outputNum+1));
+        String strandIds = mapping.getStringParameter("output" + (outputNum+1), "").getString().trim();
+        logger.info("strand ids: " + strandIds);
+        if (strandIds.length() > 0) {
+          // Each output gets its own transform instance since lookup tables are cached per sending thread.
+          ColorTransform transform = outputTransforms.get(outputNum);
+          if (transform == null) {
+            transform = defaultTransform.copy();
+          }
+          List<LXPoint> pointsWireOrder = new ArrayList<LXPoint>();
+
+          String[] ids = strandIds.split(",");
+          for (int i = 0; i < ids.length; i++) {
+            int strandId = Integer.parseInt(ids[i].trim());
+            if (strandId < model.strands.size()) {
+              KaledoscopeModel.Strand strand = model.strands.get(strandId);
+              // The default construction of LED points in a strand is already in wire-order.  Only points
+              // with their own address are sent, i.e. one petal per flower.
+              pointsWireOrder.addAll(strand.addressablePoints);
             }
           }
+
+          if (pointsWireOrder.size() > ledBudget) {
+            logger.warning("Output " + (outputNum+1) + " has " + pointsWireOrder.size() + " LEDs, over the budget of "
+                + ledBudget + " for " + targetFps + " fps at " + pixelClockKhz + "kHz.  Max refresh is "
+                + OutputScheduler.maxRefreshHz(pointsWireOrder.size(), pixelClockKhz) + " Hz");
+          }
+          int[] indices = new int[pointsWireOrder.size()];
+          for (int i = 0; i < indices.length; i++) {
+            indices[i] = pointsWireOrder.get(i).index;
+          }
+          outputPixels.add(new UniversePacker.OutputPixels(outputNum + 1, indices, transform));
         }
-        curUniverseNum += curUnivOffset;
       }
+      firstOutputNum += controller.numOutputs;
+
+      InetAddress address;
+      try {
+        address = InetAddress.getByName(controller.address);
+      } catch (UnknownHostException uhex) {
+        logger.log(Level.SEVERE, "Configuring output: " + controller, uhex);
+        continue;
+      }
+      DmxProtocol protocol;
+      if (sacn) {
+        protocol = new StreamingACNProtocol(multicast ? null : address, priority, syncUniverse);
+      } else {
+        protocol = new ArtNetProtocol(address, controller.port);
+      }
+
+      // Distribute all points across the necessary number of 170-led sized universes, either starting each
+      // output on a new universe or packed.  sACN universe 0 is reserved.
+      int firstUniverse = Math.max(controller.universeBase, sacn ? 1 : 0);
+      UniversePacker.Layout naive = UniversePacker.naive(outputPixels, firstUniverse);
+      UniversePacker.Layout packed = UniversePacker.pack(outputPixels, firstUniverse);
+      logger.info("Universe layouts for " + controller + (packUniverses ? ", using packed" : ", using naive") + ":\n"
+          + UniversePacker.report(naive, packed, protocol, paceOutputs ? pixelClockKhz : 0, targetFps));
+      UniversePacker.Layout layout = packUniverses ? packed : naive;
+      for (int u = 0; u < layout.getNumUniverses(); u++) {
+        logger.log(Level.INFO, "Adding universe=" + layout.universeNumbers[u] + " points=" + layout.universeIndices[u].length);
+      }
+      int[] outputLedCounts = new int[outputPixels.size()];
+      int[] outputNumbers = new int[outputPixels.size()];
+      for (int o = 0; o < outputLedCounts.length; o++) {
+        outputLedCounts[o] = outputPixels.get(o).indices.length;
+        outputNumbers[o] = outputPixels.get(o).outputNumber;
+      }
+      controllerPlans.add(new OutputPlan.ControllerPlan(controller.address + ":" + controller.port, protocol,
+          layout.universeIndices, layout.universeNumbers, layout.universeTransforms, layout.universeOutputs,
+          outputLedCounts, outputNumbers, layout.outputStartUniverse, layout.outputStartChannel));
     }
+    return new OutputPlan(controllerPlans, senderThread, senderFps, skipUnchanged, keepaliveMs,
+        paceOutputs ? pixelClockKhz : 0, syncBroadcast, syncTimeoutMs, compilePowerBudget(model, pixlite));
+  }
 
-    for (ArtNetDatagram datagram : datagrams) {
-      lx.engine.output.addChild(datagram);
+  /**
+   * The power budget of every strand in model from the pixlite settings, or null if power limiting is
+   * off.  Current is estimated from the addresses that are sent, with a flower's petal address counted once for
+   * each of the petals wired to it, since they all show that address's color.
+   *
+   * @throws IllegalArgumentException if a setting can not be parsed.
+   */
+  static PowerLimiter.Budget compilePowerBudget(KaledoscopeModel model, ParameterFile pixlite) {
+    if (!pixliteBoolean(pixlite, UIPixliteConfig.POWER_LIMIT)) {
+      return null;
     }
-    ArtSyncDatagram syncDatagram = new ArtSyncDatagram(lx);
-    syncDatagram.setPort(artNetIpPort);
-    try {
-      syncDatagram.setAddress(InetAddress.getByName(artNetIpAddress));
-    } catch (UnknownHostException uhex) {
-      logger.log(Level.SEVERE, "Artnet Sync Datagram bad IP address: " + uhex.getMessage());
+    float strandAmps = Float.parseFloat(pixliteString(pixlite, UIPixliteConfig.STRAND_AMPS));
+    int injectLeds = Integer.parseInt(pixliteString(pixlite, UIPixliteConfig.INJECT_LEDS));
+    float injectAmps = Float.parseFloat(pixliteString(pixlite, UIPixliteConfig.INJECT_AMPS));
+    float maPerChannel = Float.parseFloat(pixliteString(pixlite, UIPixliteConfig.MA_PER_CHANNEL));
+    List<KaledoscopeModel.Strand> strands = model.strands;
+    int[] strandIds = new int[strands.size()];
+    int[][] strandPoints = new int[strands.size()][];
+    int[][] strandPointLeds = new int[strands.size()][];
+    for (int s = 0; s < strandIds.length; s++) {
+      KaledoscopeModel.Strand strand = strands.get(s);
+      strandIds[s] = strand.strandId;
+      strandPoints[s] = new int[strand.addressablePoints.size()];
+      strandPointLeds[s] = new int[strandPoints[s].length];
+      for (int i = 0; i < strandPoints[s].length; i++) {
+        strandPoints[s][i] = strand.addressablePoints.get(i).index;
+        strandPointLeds[s][i] = 1;
+      }
+      // The addressable points are in fixture order, so each flower's petal address is at the same offset.
+      int i = 0;
+      for (LUFlower flower : strand.flowers) {
+        for (LXPoint point : flower.mappablePoints) {
+          if (point == flower.petals[0]) {
+            strandPointLeds[s][i] = flower.petals.length;
+          }
+          i++;
+        }
+      }
     }
-    lx.engine.output.addChild(syncDatagram);
+    return new PowerLimiter.Budget(strandIds, strandPoints, strandPointLeds, injectLeds, strandAmps, injectAmps, maPerChannel,
+        PowerLimiter.DEFAULT_IDLE_MA);
+  }
+
+  /**
+   * Pixlite settings are read straight from the parameter file, or a snapshot of it, which has every
+   * parameter loaded with its default, so that this also works without the UI.
+   */
+  static String pixliteString(ParameterFile pixlite, String label) {
+    return pixlite.getStringParameter(label, "").getString().trim();
+  }
+
+  static boolean pixliteBoolean(ParameterFile pixlite, String label) {
+    return pixlite.getBooleanParameter(label, false).getValueb();
   }
 }
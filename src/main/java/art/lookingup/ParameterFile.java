@@ -30,6 +30,36 @@ public class ParameterFile {
     props = new PropertyFile(filename);
   }
 
+  /**
+   * A copy of every parameter's current value, for reading the settings on another thread.  The parameter
+   * map is a plain HashMap that the UI thread changes, and the getters add missing parameters to it, so
+   * background threads must read a snapshot taken on the UI thread instead.  Getters on the snapshot only add
+   * to the snapshot.  Snapshots are not meant to be saved.
+   */
+  public ParameterFile snapshot() {
+    ParameterFile copy = new ParameterFile(props);
+    for (Map.Entry<String, LXParameter> entry : params.entrySet()) {
+      String key = entry.getKey();
+      LXParameter p = entry.getValue();
+      if (p instanceof StringParameter) {
+        copy.params.put(key, new StringParameter(key, ((StringParameter) p).getString()));
+      } else if (p instanceof DiscreteParameter) {
+        DiscreteParameter dp = (DiscreteParameter)p;
+        copy.params.put(key, new DiscreteParameter(key, dp.getValuei(), dp.getMinValue(), dp.getMaxValue() + 1));
+      } else if (p instanceof CompoundParameter) {
+        CompoundParameter cp = (CompoundParameter)p;
+        copy.params.put(key, new CompoundParameter(key, cp.getValue(), cp.range.v0, cp.range.v1));
+      } else if (p instanceof BooleanParameter) {
+        copy.params.put(key, new BooleanParameter(key, ((BooleanParameter) p).getValueb()));
+      }
+    }
+    return copy;
+  }
+
+  private ParameterFile(PropertyFile props) {
+    this.props = props;
+  }
+
   /**
    * Instantiates and loads a ParameterFile instance.  This will attempt to
    * load the underlying PropertyFile if it exists, otherwise an empty
@@ -45,7 +45,7 @@ public class PreviewComponents {
         if (showCtrlPoints) {
           // show cubes at each bezier control point
           int runNum = 0;
-          for (KaledoscopeModel.Run run : KaledoscopeModel.allRuns) {
+          for (KaledoscopeModel.Run run : KaledoscopeModel.snapshot().runs) {
             int bezierNum = 1;
             if (run.beziers != null) {
               for (KaledoscopeModel.Bezier bezier : run.beziers) {
@@ -0,0 +1,296 @@
+package art.lookingup;
+
+import heronarts.lx.model.LXModel;
+import heronarts.lx.model.LXPoint;
+
+/**
+ * A uniform grid over the model's points for finding the points near a position without scanning the whole
+ * model.  Each query visits only the grid cells that overlap it, so its cost depends on the size of the query
+ * rather than the size of the installation.
+ *
+ * The points are counting sorted by cell into flat arrays, with their coordinates copied alongside so a cell
+ * is scanned without touching the LXPoints.  Queries write color buffer indices into arrays supplied by the
+ * caller and allocate nothing.  Use the model's ModelArrays to go from a point to its fixture or strand.
+ *
+ * The index listens to its model and rebuilds the grid whenever the model's geometry is updated.  A grid is
+ * never modified once built and the current one is swapped in as a whole, so queries can run on the engine
+ * thread while the grid is rebuilt on another.
+ */
+public class SpatialIndex implements LXModel.Listener {
+  // Cells per point to aim for when choosing the cell size.  The model is mostly long thin runs, so most
+  // cells are empty anyway.
+  private static final int MAX_CELLS_PER_POINT = 4;
+
+  static private class Grid {
+    final float minX, minY, minZ;
+    final float cellSize;
+    final int nx, ny, nz;
+    // Points of cell c are cellStart[c] up to cellStart[c + 1] in the sorted arrays.
+    final int[] cellStart;
+    final int[] sortedIndex;
+    final float[] sortedX, sortedY, sortedZ;
+
+    Grid(LXPoint[] points, float requestedCellSize) {
+      float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+      float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+      for (LXPoint p : points) {
+        minX = Math.min(minX, p.x);
+        minY = Math.min(minY, p.y);
+        minZ = Math.min(minZ, p.z);
+        maxX = Math.max(maxX, p.x);
+        maxY = Math.max(maxY, p.y);
+        maxZ = Math.max(maxZ, p.z);
+      }
+      if (points.length == 0) {
+        minX = minY = minZ = maxX = maxY = maxZ = 0;
+      }
+      this.minX = minX;
+      this.minY = minY;
+      this.minZ = minZ;
+      // Grow the cells until the grid is a reasonable size.
+      float size = requestedCellSize;
+      long maxCells = Math.max(1, (long) points.length * MAX_CELLS_PER_POINT);
+      while (cells(maxX - minX, size) * cells(maxY - minY, size) * cells(maxZ - minZ, size) > maxCells) {
+        size *= 1.5f;
+      }
+      cellSize = size;
+      nx = (int) cells(maxX - minX, size);
+      ny = (int) cells(maxY - minY, size);
+      nz = (int) cells(maxZ - minZ, size);
+
+      cellStart = new int[nx * ny * nz + 1];
+      int[] pointCell = new int[points.length];
+      for (int i = 0; i < points.length; i++) {
+        LXPoint p = points[i];
+        pointCell[i] = cellOf(cell(p.x, minX, nx), cell(p.y, minY, ny), cell(p.z, minZ, nz));
+        cellStart[pointCell[i] + 1]++;
+      }
+      for (int c = 0; c < cellStart.length - 1; c++) {
+        cellStart[c + 1] += cellStart[c];
+      }
+      int[] fill = new int[cellStart.length - 1];
+      sortedIndex = new int[points.length];
+      sortedX = new float[points.length];
+      sortedY = new float[points.length];
+      sortedZ = new float[points.length];
+      for (int i = 0; i < points.length; i++) {
+        LXPoint p = points[i];
+        int slot = cellStart[pointCell[i]] + fill[pointCell[i]]++;
+        sortedIndex[slot] = p.index;
+        sortedX[slot] = p.x;
+        sortedY[slot] = p.y;
+        sortedZ[slot] = p.z;
+      }
+    }
+
+    static long cells(float extent, float size) {
+      return (long) (extent / size) + 1;
+    }
+
+    int cell(float v, float min, int n) {
+      int c = (int) Math.floor((v - min) / cellSize);
+      return c < 0 ? 0 : (c >= n ? n - 1 : c);
+    }
+
+    int cellOf(int cx, int cy, int cz) {
+      return (cz * ny + cy) * nx + cx;
+    }
+  }
+
+  private final LXModel model;
+  private final float cellSize;
+  private volatile Grid grid;
+
+  /**
+   * Indexes every point of model and starts listening for geometry updates.
+   *
+   * @param cellSize Size of the grid cells in model units, about the radius of a typical query.  Grown if it
+   *                 would make too many cells.
+   */
+  public SpatialIndex(LXModel model, float cellSize) {
+    if (cellSize <= 0) {
+      throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+    }
+    this.model = model;
+    this.cellSize = cellSize;
+    grid = new Grid(model.points, cellSize);
+    model.addListener(this);
+  }
+
+  @Override
+  public void modelGenerationUpdated(LXModel model) {
+    grid = new Grid(model.points, cellSize);
+  }
+
+  /**
+   * Stops following the model's updates.
+   */
+  public void dispose() {
+    model.removeListener(this);
+  }
+
+  public float getCellSize() {
+    return grid.cellSize;
+  }
+
+  /**
+   * Finds the points within radius of x, y, z, in no particular order.
+   *
+   * @param out Receives color buffer indices.  Filled to at most out.length.
+   * @return the number of indices written.
+   */
+  public int radius(float x, float y, float z, float radius, int[] out) {
+    Grid g = grid;
+    float radiusSq = radius * radius;
+    int x0 = g.cell(x - radius, g.minX, g.nx), x1 = g.cell(x + radius, g.minX, g.nx);
+    int y0 = g.cell(y - radius, g.minY, g.ny), y1 = g.cell(y + radius, g.minY, g.ny);
+    int z0 = g.cell(z - radius, g.minZ, g.nz), z1 = g.cell(z + radius, g.minZ, g.nz);
+    int count = 0;
+    for (int cz = z0; cz <= z1; cz++) {
+      for (int cy = y0; cy <= y1; cy++) {
+        for (int cx = x0; cx <= x1; cx++) {
+          int c = g.cellOf(cx, cy, cz);
+          for (int i = g.cellStart[c]; i < g.cellStart[c + 1]; i++) {
+            float dx = g.sortedX[i] - x;
+            float dy = g.sortedY[i] - y;
+            float dz = g.sortedZ[i] - z;
+            if (dx * dx + dy * dy + dz * dz <= radiusSq) {
+              if (count == out.length) {
+                return count;
+              }
+              out[count++] = g.sortedIndex[i];
+            }
+          }
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Finds the points inside an axis aligned box, bounds included, in no particular order.
+   *
+   * @param out Receives color buffer indices.  Filled to at most out.length.
+   * @return the number of indices written.
+   */
+  public int box(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, int[] out) {
+    Grid g = grid;
+    int x0 = g.cell(minX, g.minX, g.nx), x1 = g.cell(maxX, g.minX, g.nx);
+    int y0 = g.cell(minY, g.minY, g.ny), y1 = g.cell(maxY, g.minY, g.ny);
+    int z0 = g.cell(minZ, g.minZ, g.nz), z1 = g.cell(maxZ, g.minZ, g.nz);
+    int count = 0;
+    for (int cz = z0; cz <= z1; cz++) {
+      for (int cy = y0; cy <= y1; cy++) {
+        for (int cx = x0; cx <= x1; cx++) {
+          int c = g.cellOf(cx, cy, cz);
+          for (int i = g.cellStart[c]; i < g.cellStart[c + 1]; i++) {
+            float px = g.sortedX[i], py = g.sortedY[i], pz = g.sortedZ[i];
+            if (px >= minX && px <= maxX && py >= minY && py <= maxY && pz >= minZ && pz <= maxZ) {
+              if (count == out.length) {
+                return count;
+              }
+              out[count++] = g.sortedIndex[i];
+            }
+          }
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Finds the k points closest to x, y, z, closest first.  Searches outward one shell of cells at a time
+   * and stops once no unsearched cell can hold a closer point than the kth found.
+   *
+   * @param k Number of points to find, at most out.length.
+   * @param out Receives color buffer indices.
+   * @param outDistSq Receives the squared distance of each point found.  Needed while searching, so it must
+   *                  be at least k long.
+   * @return the number of indices written, k unless the model has fewer points.
+   */
+  public int nearest(float x, float y, float z, int k, int[] out, float[] outDistSq) {
+    Grid g = grid;
+    k = Math.min(k, Math.min(out.length, outDistSq.length));
+    if (k <= 0) {
+      return 0;
+    }
+    int qx = g.cell(x, g.minX, g.nx), qy = g.cell(y, g.minY, g.ny), qz = g.cell(z, g.minZ, g.nz);
+    int maxRing = Math.max(Math.max(Math.max(qx, g.nx - 1 - qx), Math.max(qy, g.ny - 1 - qy)),
+        Math.max(qz, g.nz - 1 - qz));
+    int count = 0;
+    // The kth squared distance so far, the worst of the points in out.
+    float worst = Float.MAX_VALUE;
+    for (int ring = 0; ring <= maxRing; ring++) {
+      int x0 = Math.max(0, qx - ring), x1 = Math.min(g.nx - 1, qx + ring);
+      int y0 = Math.max(0, qy - ring), y1 = Math.min(g.ny - 1, qy + ring);
+      int z0 = Math.max(0, qz - ring), z1 = Math.min(g.nz - 1, qz + ring);
+      for (int cz = z0; cz <= z1; cz++) {
+        boolean zEdge = cz == qz - ring || cz == qz + ring;
+        for (int cy = y0; cy <= y1; cy++) {
+          boolean yzEdge = zEdge || cy == qy - ring || cy == qy + ring;
+          for (int cx = x0; cx <= x1; cx++) {
+            // Only the shell, the inside was searched by the previous rings.
+            if (!yzEdge && cx != qx - ring && cx != qx + ring) {
+              continue;
+            }
+            int c = g.cellOf(cx, cy, cz);
+            for (int i = g.cellStart[c]; i < g.cellStart[c + 1]; i++) {
+              float dx = g.sortedX[i] - x;
+              float dy = g.sortedY[i] - y;
+              float dz = g.sortedZ[i] - z;
+              float distSq = dx * dx + dy * dy + dz * dz;
+              if (count == k && distSq >= worst) {
+                continue;
+              }
+              count = insert(out, outDistSq, count, k, g.sortedIndex[i], distSq);
+              if (count == k) {
+                worst = outDistSq[k - 1];
+              }
+            }
+          }
+        }
+      }
+      if (count == k) {
+        // Everything not searched yet is outside the block of cells searched so far.
+        float bound = Float.MAX_VALUE;
+        bound = Math.min(bound, outside(x, g.minX, g.cellSize, x0, x1, g.nx));
+        bound = Math.min(bound, outside(y, g.minY, g.cellSize, y0, y1, g.ny));
+        bound = Math.min(bound, outside(z, g.minZ, g.cellSize, z0, z1, g.nz));
+        if (bound * bound >= worst) {
+          break;
+        }
+      }
+    }
+    return count;
+  }
+
+  // Distance from v to the nearest face of cells c0 to c1 that has cells beyond it, 0 if v is outside them.
+  static private float outside(float v, float min, float cellSize, int c0, int c1, int n) {
+    float lo = min + c0 * cellSize;
+    float hi = min + (c1 + 1) * cellSize;
+    if (v < lo || v > hi) {
+      return 0;
+    }
+    float bound = Float.MAX_VALUE;
+    if (c0 > 0) {
+      bound = Math.min(bound, v - lo);
+    }
+    if (c1 < n - 1) {
+      bound = Math.min(bound, hi - v);
+    }
+    return bound;
+  }
+
+  // Inserts into the k best so far, kept sorted by distance.  Returns the new count.
+  static private int insert(int[] out, float[] outDistSq, int count, int k, int index, float distSq) {
+    int i = count < k ? count++ : k - 1;
+    while (i > 0 && outDistSq[i - 1] > distSq) {
+      out[i] = out[i - 1];
+      outDistSq[i] = outDistSq[i - 1];
+      i--;
+    }
+    out[i] = index;
+    outDistSq[i] = distSq;
+    return count;
+  }
+}
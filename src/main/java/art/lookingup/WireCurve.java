@@ -0,0 +1,267 @@
+package art.lookingup;
+
+/**
+ * The shape of a run's steel wire, a chain of Bezier curves end to end, parameterized by distance along the
+ * wire in inches.  A Bezier's t parameter does not move along the curve at a constant speed, so fixtures
+ * placed at even steps of t are bunched up where the curve bends and spread out where it is straight.  The
+ * wire instead samples each curve into a lookup table of cumulative arc length at construction, and maps a
+ * distance to t by a binary search in the table and linear interpolation between samples, which is well
+ * under a hundredth of an inch off with the default number of samples.  Positions and tangents are then
+ * evaluated exactly on the curve at that t.
+ *
+ * Distances before the start or past the end of the wire continue in a straight line along the tangent at
+ * that end, so a strand configured longer than the modeled curves still gets evenly spaced fixtures.
+ *
+ * Positions are in the plane of the Beziers, x and y, which the model maps to x and z.  Nothing is allocated
+ * after construction, and the batch methods write into arrays supplied by the caller.  A wire is not
+ * modified after construction.
+ */
+public class WireCurve {
+  public static final int DEFAULT_SAMPLES_PER_BEZIER = 256;
+
+  private final KaledoscopeModel.Bezier[] beziers;
+  private final int samplesPerBezier;
+  // Arc length from the start of the wire to each sample.  Sample k is at t = (k % samplesPerBezier) /
+  // samplesPerBezier on bezier k / samplesPerBezier, with the last sample at t = 1 on the last bezier.
+  private final float[] sampleDistance;
+  private final float[] sampleX;
+  private final float[] sampleY;
+  private final float length;
+
+  public WireCurve(KaledoscopeModel.Bezier... beziers) {
+    this(DEFAULT_SAMPLES_PER_BEZIER, beziers);
+  }
+
+  public WireCurve(int samplesPerBezier, KaledoscopeModel.Bezier... beziers) {
+    if (beziers.length == 0 || samplesPerBezier < 1) {
+      throw new IllegalArgumentException("A wire needs at least one bezier and one sample per bezier");
+    }
+    this.beziers = beziers.clone();
+    this.samplesPerBezier = samplesPerBezier;
+    int numSamples = beziers.length * samplesPerBezier + 1;
+    sampleDistance = new float[numSamples];
+    sampleX = new float[numSamples];
+    sampleY = new float[numSamples];
+    // Accumulate in double so long wires don't lose precision.
+    double distance = 0;
+    for (int k = 0; k < numSamples; k++) {
+      KaledoscopeModel.Bezier bezier = bezierOfSample(k);
+      float t = tOfSample(k);
+      sampleX[k] = bezier.x(t);
+      sampleY[k] = bezier.y(t);
+      if (k > 0) {
+        double dx = sampleX[k] - sampleX[k - 1];
+        double dy = sampleY[k] - sampleY[k - 1];
+        distance += Math.sqrt(dx * dx + dy * dy);
+      }
+      sampleDistance[k] = (float) distance;
+    }
+    length = (float) distance;
+  }
+
+  /**
+   * A wire with tables computed before, see ModelCache.  The tables are used as they are, not copied.
+   */
+  WireCurve(int samplesPerBezier, float[] sampleDistance, float[] sampleX, float[] sampleY,
+            KaledoscopeModel.Bezier... beziers) {
+    int numSamples = beziers.length * samplesPerBezier + 1;
+    if (beziers.length == 0 || samplesPerBezier < 1 || sampleDistance.length != numSamples
+        || sampleX.length != numSamples || sampleY.length != numSamples) {
+      throw new IllegalArgumentException("Wire tables do not match " + beziers.length + " beziers of "
+          + samplesPerBezier + " samples");
+    }
+    this.beziers = beziers.clone();
+    this.samplesPerBezier = samplesPerBezier;
+    this.sampleDistance = sampleDistance;
+    this.sampleX = sampleX;
+    this.sampleY = sampleY;
+    length = sampleDistance[numSamples - 1];
+  }
+
+  private KaledoscopeModel.Bezier bezierOfSample(int k) {
+    return beziers[Math.min(k / samplesPerBezier, beziers.length - 1)];
+  }
+
+  private float tOfSample(int k) {
+    return k == sampleDistance.length - 1 ? 1f : (float) (k % samplesPerBezier) / samplesPerBezier;
+  }
+
+  /**
+   * Length of the wire in inches.
+   */
+  public float getLength() {
+    return length;
+  }
+
+  public int getNumBeziers() {
+    return beziers.length;
+  }
+
+  int getSamplesPerBezier() {
+    return samplesPerBezier;
+  }
+
+  // The tables, for ModelCache.  Not to be modified.
+  float[] getSampleDistances() {
+    return sampleDistance;
+  }
+
+  float[] getSampleXs() {
+    return sampleX;
+  }
+
+  float[] getSampleYs() {
+    return sampleY;
+  }
+
+  /**
+   * Distance along the wire of the point at t on one of its beziers.
+   */
+  public float distanceAt(int bezierIndex, float t) {
+    float sample = bezierIndex * samplesPerBezier + Math.max(0f, Math.min(1f, t)) * samplesPerBezier;
+    int k = Math.min((int) sample, sampleDistance.length - 2);
+    float f = sample - k;
+    return sampleDistance[k] + f * (sampleDistance[k + 1] - sampleDistance[k]);
+  }
+
+  /**
+   * The sample segment containing distance, searching from hint first since batch lookups usually move
+   * forward a little at a time.
+   */
+  private int segmentOf(float distance, int hint) {
+    int last = sampleDistance.length - 2;
+    if (distance <= 0) {
+      return 0;
+    }
+    if (distance >= length) {
+      return last;
+    }
+    if (hint >= 0 && hint <= last && sampleDistance[hint] <= distance) {
+      // Walk forward a few segments before falling back to the binary search.
+      for (int k = hint, end = Math.min(last, hint + 8); k <= end; k++) {
+        if (distance < sampleDistance[k + 1]) {
+          return k;
+        }
+      }
+    }
+    int lo = 0;
+    int hi = last;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (sampleDistance[mid] <= distance) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Writes the position at distance, and if tangents is not null the unit tangent, then returns the segment
+   * for the next lookup's hint.
+   */
+  private int evaluate(float distance, int hint, float[] positions, int positionOffset, float[] tangents,
+                       int tangentOffset) {
+    int k = segmentOf(distance, hint);
+    float segmentLength = sampleDistance[k + 1] - sampleDistance[k];
+    float f = segmentLength > 0 ? (distance - sampleDistance[k]) / segmentLength : 0f;
+    // Beyond the ends, stay at the end of the curve and go along the tangent from there.
+    float overshoot = 0;
+    if (distance < 0) {
+      overshoot = distance;
+      f = 0;
+    } else if (distance > length) {
+      overshoot = distance - length;
+      f = 1;
+    }
+    KaledoscopeModel.Bezier bezier = bezierOfSample(k);
+    float t = tOfSample(k) + f / samplesPerBezier;
+    if (t > 1f) {
+      t = 1f;
+    }
+    float dx = bezier.dx(t);
+    float dy = bezier.dy(t);
+    float norm = (float) Math.sqrt(dx * dx + dy * dy);
+    if (norm > 0) {
+      dx /= norm;
+      dy /= norm;
+    } else {
+      dx = 0;
+      dy = 0;
+    }
+    if (positions != null) {
+      positions[positionOffset] = bezier.x(t) + overshoot * dx;
+      positions[positionOffset + 1] = bezier.y(t) + overshoot * dy;
+    }
+    if (tangents != null) {
+      tangents[tangentOffset] = dx;
+      tangents[tangentOffset + 1] = dy;
+    }
+    return k;
+  }
+
+  /**
+   * Writes the x and y of the point at distance into out[offset] and out[offset + 1].
+   */
+  public void position(float distance, float[] out, int offset) {
+    evaluate(distance, -1, out, offset, null, 0);
+  }
+
+  /**
+   * Writes the unit tangent, pointing away from the start of the wire, at distance into out[offset] and
+   * out[offset + 1].
+   */
+  public void tangent(float distance, float[] out, int offset) {
+    evaluate(distance, -1, null, 0, out, offset);
+  }
+
+  /**
+   * Evaluates count distances in one pass.  Fastest when the distances are in increasing order.
+   *
+   * @param distances Distances along the wire, from distances[offset].
+   * @param positions Receives x, y pairs, 2 * count floats from positions[0], or null.
+   * @param tangents Receives unit tangent x, y pairs, 2 * count floats from tangents[0], or null.
+   */
+  public void evaluate(float[] distances, int offset, int count, float[] positions, float[] tangents) {
+    int hint = 0;
+    for (int i = 0; i < count; i++) {
+      hint = evaluate(distances[offset + i], hint, positions, 2 * i, tangents, 2 * i);
+    }
+  }
+
+  /**
+   * Writes count distances, spacing apart from start, into out from offset.
+   */
+  static public void spaced(float start, float spacing, int count, float[] out, int offset) {
+    for (int i = 0; i < count; i++) {
+      out[offset + i] = start + i * spacing;
+    }
+  }
+
+  /**
+   * Distance along the wire of the point on the wire closest to x, y.  Searches every sample, so for
+   * fixtures look up their cached distance instead, see LUButterfly.wireDistance.
+   */
+  public float nearestDistance(float x, float y) {
+    float best = Float.MAX_VALUE;
+    float bestDistance = 0;
+    for (int k = 0; k < sampleDistance.length - 1; k++) {
+      float ax = sampleX[k];
+      float ay = sampleY[k];
+      float sx = sampleX[k + 1] - ax;
+      float sy = sampleY[k + 1] - ay;
+      float lengthSq = sx * sx + sy * sy;
+      float f = lengthSq > 0 ? ((x - ax) * sx + (y - ay) * sy) / lengthSq : 0f;
+      f = Math.max(0f, Math.min(1f, f));
+      float px = ax + f * sx - x;
+      float py = ay + f * sy - y;
+      float distSq = px * px + py * py;
+      if (distSq < best) {
+        best = distSq;
+        bestDistance = sampleDistance[k] + f * (sampleDistance[k + 1] - sampleDistance[k]);
+      }
+    }
+    return bestDistance;
+  }
+}
@@ -0,0 +1,98 @@
+package art.lookingup.output;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * ArtDmx data packets and an ArtSync packet, all unicast to a single controller.
+ */
+public class ArtNetProtocol extends DmxProtocol {
+
+  public static final int ARTNET_PORT = 6454;
+  public static final int ARTNET_HEADER_LENGTH = 18;
+  public static final int ARTSYNC_LENGTH = 14;
+  static final int SEQUENCE_INDEX = 12;
+
+  private final InetSocketAddress destination;
+
+  public ArtNetProtocol(InetAddress address, int port) {
+    this.destination = new InetSocketAddress(address, port);
+  }
+
+  @Override
+  public String getName() {
+    return "ArtNet";
+  }
+
+  @Override
+  public int getHeaderLength() {
+    return ARTNET_HEADER_LENGTH;
+  }
+
+  /**
+   * DMX requires an even number of data bytes.
+   */
+  @Override
+  public int getDataLength(int numPixels) {
+    int len = numPixels * 3;
+    return len + (len % 2);
+  }
+
+  static void writeArtNetId(ByteBuffer buf, int offset) {
+    buf.put(offset, (byte)'A');
+    buf.put(offset + 1, (byte)'r');
+    buf.put(offset + 2, (byte)'t');
+    buf.put(offset + 3, (byte)'-');
+    buf.put(offset + 4, (byte)'N');
+    buf.put(offset + 5, (byte)'e');
+    buf.put(offset + 6, (byte)'t');
+    buf.put(offset + 7, (byte)0);
+  }
+
+  @Override
+  public void writeDataHeader(ByteBuffer buf, int offset, int universeNumber, int dataLength) {
+    writeArtNetId(buf, offset);
+    buf.put(offset + 8, (byte)0x00); // ArtDMX opcode
+    buf.put(offset + 9, (byte)0x50); // ArtDMX opcode
+    buf.put(offset + 10, (byte)0); // Protocol version
+    buf.put(offset + 11, (byte)14); // Protocol version
+    buf.put(offset + SEQUENCE_INDEX, (byte)0); // Sequence
+    buf.put(offset + 13, (byte)0); // Physical
+    buf.put(offset + 14, (byte)(universeNumber & 0xff)); // Universe LSB
+    buf.put(offset + 15, (byte)((universeNumber >>> 8) & 0xff)); // Universe MSB
+    buf.put(offset + 16, (byte)((dataLength >>> 8) & 0xff));
+    buf.put(offset + 17, (byte)(dataLength & 0xff));
+  }
+
+  @Override
+  public void writeSequence(ByteBuffer buf, int offset, byte sequence) {
+    buf.put(offset + SEQUENCE_INDEX, sequence);
+  }
+
+  @Override
+  public int getSyncLength() {
+    return ARTSYNC_LENGTH;
+  }
+
+  @Override
+  public void writeSyncPacket(ByteBuffer buf, int offset) {
+    writeArtNetId(buf, offset);
+    buf.put(offset + 8, (byte)0x00); // OpSync low byte
+    buf.put(offset + 9, (byte)0x52); // OpSync hi byte
+    buf.put(offset + 10, (byte)0); // Protocol version
+    buf.put(offset + 11, (byte)14); // Protocol version
+    buf.put(offset + 12, (byte)0); // Aux1
+    buf.put(offset + 13, (byte)0); // Aux2
+  }
+
+  @Override
+  public InetSocketAddress getDataDestination(int universeNumber) {
+    return destination;
+  }
+
+  @Override
+  public InetSocketAddress getSyncDestination() {
+    return destination;
+  }
+}
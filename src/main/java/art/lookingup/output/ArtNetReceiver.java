@@ -0,0 +1,456 @@
+package art.lookingup.output;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Locale;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A stand-in for a Pixlite that listens on loopback, decodes ArtDmx and ArtSync packets and rebuilds the
+ * per-output LED frames, so the whole output path can be benchmarked and regression tested without hardware.
+ * Point the pixlite topology at it, for example "127.0.0.1:6455:16:0", and either run it in-process, where it
+ * finds each output's pixels from the compiled OutputPlan, or standalone with main(), where each universe is
+ * its own output.
+ *
+ * A frame is everything received between two ArtSync packets.  For each one-second window it reports packets
+ * per second, frames per second, how many of the expected universes arrived before each sync, the jitter of
+ * the interval between syncs, and when given the engine's frame clock, the latency from the engine frame to
+ * its sync arriving.  Windows close on time whether or not packets arrive, so a stalled sender reports 0 packets
+ * and frames per second.
+ */
+public class ArtNetReceiver implements Runnable {
+  private static final Logger logger = Logger.getLogger(ArtNetReceiver.class.getName());
+
+  static final int OP_DMX = 0x5000;
+  static final int OP_SYNC = 0x5200;
+  static final int MAX_UNIVERSES = 32768;
+  static final long WINDOW_NANOS = 1000000000L;
+
+  /**
+   * Statistics for one reporting window.
+   */
+  static public class Stats {
+    public float packetsPerSecond;
+    public float framesPerSecond;
+    // Average fraction of expected universes received per frame, 0-1.
+    public float completeness;
+    public long incompleteFrames;
+    // Standard deviation of the interval between syncs.
+    public float jitterMicros;
+    public float meanIntervalMicros;
+    // Engine frame to sync received, only if a frame clock was set.
+    public float meanLatencyMicros;
+    public float maxLatencyMicros;
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT, "pps=%.0f fps=%.1f complete=%.3f incomplete=%d interval=%.0fus jitter=%.0fus latency=%.0fus max=%.0fus",
+          packetsPerSecond, framesPerSecond, completeness, incompleteFrames, meanIntervalMicros, jitterMicros,
+          meanLatencyMicros, maxLatencyMicros);
+    }
+  }
+
+  /**
+   * Where each output's pixels are in the expected universes.  Not modified after it is created, so a new one
+   * can be handed to the receive thread while it runs.
+   */
+  static private class Mapping {
+    // Universe number to slot, -1 if not expected.
+    final int[] universeSlot = new int[MAX_UNIVERSES];
+    int numSlots = 0;
+    // For each output, the slot, first pixel and pixel count of each run of its pixels, in wire order.
+    final int[][] runSlots;
+    final int[][] runFirstPixels;
+    final int[][] runPixelCounts;
+    final int[] outputPixels;
+
+    Mapping(int numOutputs) {
+      java.util.Arrays.fill(universeSlot, -1);
+      runSlots = new int[numOutputs][];
+      runFirstPixels = new int[numOutputs][];
+      runPixelCounts = new int[numOutputs][];
+      outputPixels = new int[numOutputs];
+    }
+
+    int addUniverse(int universe) {
+      if (universeSlot[universe] < 0) {
+        universeSlot[universe] = numSlots++;
+      }
+      return universeSlot[universe];
+    }
+  }
+
+  private final int port;
+  private volatile Mapping mapping;
+
+  // Receive state for the mapping in use, only touched by the receive thread.
+  private Mapping current;
+  private byte[][] universeData;
+  private int[] universeLength;
+  private boolean[] receivedThisFrame;
+  private int receivedCount = 0;
+
+  // Completed frames, per output, as packed RGB ints.  Replaced along with the mapping.
+  private final Object frameLock = new Object();
+  private int[][] outputFrames = new int[0][];
+
+  private DatagramChannel channel;
+  private Selector selector;
+  private Thread thread;
+  private volatile LongSupplier engineFrameNanos = null;
+
+  // Window accumulators, only touched by the receive thread.
+  private long windowStartNanos;
+  private long windowPackets;
+  private long windowFrames;
+  private double windowCompleteness;
+  private long windowIncomplete;
+  private long lastSyncNanos = 0;
+  private long intervalCount;
+  private double intervalSum;
+  private double intervalSumSquares;
+  private long latencyCount;
+  private double latencySum;
+  private double latencyMax;
+
+  private volatile Stats lastStats = new Stats();
+  private volatile boolean logStats = false;
+
+  /**
+   * A receiver that expects nothing until it is given the outputs with mapOutputs().
+   *
+   * @param port UDP port to listen on.  Use something other than 6454 to run alongside a real node.
+   */
+  public ArtNetReceiver(int port) {
+    this(port, new int[0][]);
+  }
+
+  /**
+   * @param port UDP port to listen on.  Use something other than 6454 to run alongside a real node.
+   * @param outputUniverses For each output, its universe numbers in wire order, each filled with pixels.
+   */
+  public ArtNetReceiver(int port, int[][] outputUniverses) {
+    this.port = port;
+    Mapping mapping = new Mapping(outputUniverses.length);
+    for (int o = 0; o < outputUniverses.length; o++) {
+      int[] universes = outputUniverses[o];
+      mapping.runSlots[o] = new int[universes.length];
+      mapping.runFirstPixels[o] = new int[universes.length];
+      mapping.runPixelCounts[o] = new int[universes.length];
+      for (int r = 0; r < universes.length; r++) {
+        mapping.runSlots[o][r] = mapping.addUniverse(universes[r]);
+        mapping.runPixelCounts[o][r] = PackedOutput.MAX_PIXELS_PER_UNIVERSE;
+      }
+      mapping.outputPixels[o] = universes.length * PackedOutput.MAX_PIXELS_PER_UNIVERSE;
+    }
+    this.mapping = mapping;
+  }
+
+  /**
+   * Expects the universes of the plan's controller that sends to this receiver, and rebuilds each of its
+   * outputs from where the plan packed it: its start universe and channel, continuing into the following
+   * universes for its LED count.  Outputs share a universe when they are packed.  Takes effect from the next
+   * packet and is safe to call from any thread.
+   *
+   * @return false if no controller in the plan sends ArtNet to this receiver's port on loopback.
+   */
+  public boolean mapOutputs(OutputPlan plan) {
+    for (OutputPlan.ControllerPlan controller : plan.controllers) {
+      if (!(controller.protocol instanceof ArtNetProtocol) || controller.universeNumbers.length == 0) {
+        continue;
+      }
+      InetSocketAddress destination = controller.protocol.getDataDestination(controller.universeNumbers[0]);
+      if (destination.getPort() != port || !destination.getAddress().isLoopbackAddress()) {
+        continue;
+      }
+      int numOutputs = controller.getNumOutputs();
+      Mapping mapping = new Mapping(numOutputs);
+      for (int universe : controller.universeNumbers) {
+        mapping.addUniverse(universe);
+      }
+      for (int o = 0; o < numOutputs; o++) {
+        int universe = controller.outputStartUniverse[o];
+        int firstPixel = (controller.outputStartChannel[o] - 1) / 3;
+        int remaining = controller.outputLedCounts[o];
+        int runs = remaining > 0
+            ? (firstPixel + remaining + PackedOutput.MAX_PIXELS_PER_UNIVERSE - 1) / PackedOutput.MAX_PIXELS_PER_UNIVERSE
+            : 0;
+        mapping.runSlots[o] = new int[runs];
+        mapping.runFirstPixels[o] = new int[runs];
+        mapping.runPixelCounts[o] = new int[runs];
+        for (int r = 0; r < runs; r++) {
+          int count = Math.min(remaining, PackedOutput.MAX_PIXELS_PER_UNIVERSE - firstPixel);
+          mapping.runSlots[o][r] = mapping.addUniverse(universe);
+          mapping.runFirstPixels[o][r] = firstPixel;
+          mapping.runPixelCounts[o][r] = count;
+          remaining -= count;
+          firstPixel = 0;
+          ++universe;
+        }
+        mapping.outputPixels[o] = controller.outputLedCounts[o];
+      }
+      this.mapping = mapping;
+      logger.info("ArtNet receiver :" + port + " expecting " + mapping.numSlots + " universes, " + numOutputs
+          + " outputs from " + controller.name);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Expects numUniverses consecutive universes starting at firstUniverse, each its own output.  For the
+   * standalone receiver, which has no output plan to map from.
+   */
+  static public int[][] consecutiveUniverses(int firstUniverse, int numUniverses) {
+    int[][] outputUniverses = new int[numUniverses][];
+    for (int i = 0; i < numUniverses; i++) {
+      outputUniverses[i] = new int[] { firstUniverse + i };
+    }
+    return outputUniverses;
+  }
+
+  /**
+   * Supplies the System.nanoTime() of the engine frame most recently sent, for latency measurement.  Only
+   * meaningful when the receiver runs in the same process as the output, see PackedOutput.getLastFrameNanos().
+   */
+  public void setEngineFrameClock(LongSupplier engineFrameNanos) {
+    this.engineFrameNanos = engineFrameNanos;
+  }
+
+  /**
+   * Whether to log the stats at the end of each window.
+   */
+  public void setLogStats(boolean logStats) {
+    this.logStats = logStats;
+  }
+
+  public void start() throws IOException {
+    channel = DatagramChannel.open();
+    channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    channel.configureBlocking(false);
+    selector = Selector.open();
+    channel.register(selector, SelectionKey.OP_READ);
+    thread = new Thread(this, "Kaledoscope ArtNet Receiver :" + port);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void stop() {
+    try {
+      channel.close();
+      selector.wakeup();
+      thread.join(1000);
+    } catch (IOException ioex) {
+      logger.log(Level.WARNING, "Error closing receiver", ioex);
+    } catch (InterruptedException iex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Statistics from the last complete one-second window.
+   */
+  public Stats getStats() {
+    return lastStats;
+  }
+
+  /**
+   * Copies the most recently completed frame for an output into dest.
+   *
+   * @return the number of pixels copied.
+   */
+  public int copyOutputFrame(int output, int[] dest) {
+    synchronized (frameLock) {
+      if (output >= outputFrames.length) {
+        return 0;
+      }
+      int[] frame = outputFrames[output];
+      int len = Math.min(frame.length, dest.length);
+      System.arraycopy(frame, 0, dest, 0, len);
+      return len;
+    }
+  }
+
+  @Override
+  public void run() {
+    ByteBuffer packet = ByteBuffer.allocateDirect(1024);
+    windowStartNanos = System.nanoTime();
+    while (channel.isOpen()) {
+      try {
+        // Wake by the end of the window at the latest, so it closes even if nothing arrives.
+        long waitMillis = (windowStartNanos + WINDOW_NANOS - System.nanoTime()) / 1000000;
+        selector.select(Math.max(1, waitMillis));
+        selector.selectedKeys().clear();
+        while (true) {
+          packet.clear();
+          if (channel.receive(packet) == null) {
+            break;
+          }
+          packet.flip();
+          onPacket(packet, System.nanoTime());
+        }
+      } catch (ClosedChannelException | ClosedSelectorException cex) {
+        break;
+      } catch (IOException ioex) {
+        logger.log(Level.WARNING, "Receive error", ioex);
+      }
+      long now = System.nanoTime();
+      if (now - windowStartNanos >= WINDOW_NANOS) {
+        endWindow(now);
+      }
+    }
+    try {
+      selector.close();
+    } catch (IOException ioex) {
+      logger.log(Level.WARNING, "Error closing receiver", ioex);
+    }
+  }
+
+  /**
+   * Switches the receive state to the newest mapping, dropping the frame in progress.
+   */
+  private void useMapping(Mapping next) {
+    current = next;
+    universeData = new byte[next.numSlots][512];
+    universeLength = new int[next.numSlots];
+    receivedThisFrame = new boolean[next.numSlots];
+    receivedCount = 0;
+    int[][] frames = new int[next.outputPixels.length][];
+    for (int o = 0; o < frames.length; o++) {
+      frames[o] = new int[next.outputPixels[o]];
+    }
+    synchronized (frameLock) {
+      outputFrames = frames;
+    }
+  }
+
+  private void onPacket(ByteBuffer packet, long now) {
+    Mapping next = mapping;
+    if (next != current) {
+      useMapping(next);
+    }
+    ++windowPackets;
+    if (packet.limit() >= 10 && packet.get(0) == 'A' && packet.get(1) == 'r' && packet.get(2) == 't') {
+      int opcode = (packet.get(8) & 0xff) | ((packet.get(9) & 0xff) << 8);
+      if (opcode == OP_DMX && packet.limit() >= ArtNetProtocol.ARTNET_HEADER_LENGTH) {
+        onDmx(packet);
+      } else if (opcode == OP_SYNC) {
+        onSync(now);
+      }
+    }
+  }
+
+  private void onDmx(ByteBuffer packet) {
+    int universe = (packet.get(14) & 0xff) | ((packet.get(15) & 0x7f) << 8);
+    int slot = current.universeSlot[universe];
+    if (slot < 0) {
+      return;
+    }
+    int length = ((packet.get(16) & 0xff) << 8) | (packet.get(17) & 0xff);
+    length = Math.min(length, Math.min(512, packet.limit() - ArtNetProtocol.ARTNET_HEADER_LENGTH));
+    packet.position(ArtNetProtocol.ARTNET_HEADER_LENGTH);
+    packet.get(universeData[slot], 0, length);
+    universeLength[slot] = length;
+    if (!receivedThisFrame[slot]) {
+      receivedThisFrame[slot] = true;
+      ++receivedCount;
+    }
+  }
+
+  private void onSync(long now) {
+    ++windowFrames;
+    float complete = receivedThisFrame.length > 0 ? (float)receivedCount / receivedThisFrame.length : 1;
+    windowCompleteness += complete;
+    if (receivedCount < receivedThisFrame.length) {
+      ++windowIncomplete;
+    }
+    synchronized (frameLock) {
+      for (int o = 0; o < outputFrames.length; o++) {
+        int[] frame = outputFrames[o];
+        int[] runSlots = current.runSlots[o];
+        int pixel = 0;
+        for (int r = 0; r < runSlots.length; r++) {
+          byte[] data = universeData[runSlots[r]];
+          int length = universeLength[runSlots[r]];
+          int i = current.runFirstPixels[o][r] * 3;
+          for (int p = 0; p < current.runPixelCounts[o][r]; p++, i += 3) {
+            if (i + 2 < length) {
+              frame[pixel] = 0xff000000 | ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8) | (data[i + 2] & 0xff);
+            }
+            ++pixel;
+          }
+        }
+      }
+    }
+    java.util.Arrays.fill(receivedThisFrame, false);
+    receivedCount = 0;
+
+    if (lastSyncNanos != 0) {
+      double interval = (now - lastSyncNanos) / 1000.0;
+      ++intervalCount;
+      intervalSum += interval;
+      intervalSumSquares += interval * interval;
+    }
+    lastSyncNanos = now;
+
+    LongSupplier clock = engineFrameNanos;
+    if (clock != null) {
+      double latency = (now - clock.getAsLong()) / 1000.0;
+      ++latencyCount;
+      latencySum += latency;
+      latencyMax = Math.max(latencyMax, latency);
+    }
+  }
+
+  private void endWindow(long now) {
+    double seconds = (now - windowStartNanos) / 1e9;
+    Stats stats = new Stats();
+    stats.packetsPerSecond = (float)(windowPackets / seconds);
+    stats.framesPerSecond = (float)(windowFrames / seconds);
+    stats.completeness = windowFrames > 0 ? (float)(windowCompleteness / windowFrames) : 0;
+    stats.incompleteFrames = windowIncomplete;
+    if (intervalCount > 0) {
+      double mean = intervalSum / intervalCount;
+      stats.meanIntervalMicros = (float)mean;
+      stats.jitterMicros = (float)Math.sqrt(Math.max(0, intervalSumSquares / intervalCount - mean * mean));
+    }
+    if (latencyCount > 0) {
+      stats.meanLatencyMicros = (float)(latencySum / latencyCount);
+      stats.maxLatencyMicros = (float)latencyMax;
+    }
+    lastStats = stats;
+    if (logStats) {
+      logger.info("ArtNet receiver :" + port + " " + stats);
+    }
+    windowStartNanos = now;
+    windowPackets = windowFrames = windowIncomplete = 0;
+    windowCompleteness = 0;
+    intervalCount = latencyCount = 0;
+    intervalSum = intervalSumSquares = latencySum = latencyMax = 0;
+  }
+
+  /**
+   * Runs a standalone receiver and logs stats every second.
+   *
+   * Usage: ArtNetReceiver [port] [firstUniverse] [numUniverses]
+   */
+  public static void main(String[] args) throws Exception {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 6455;
+    int firstUniverse = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+    int numUniverses = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+    ArtNetReceiver receiver = new ArtNetReceiver(port, consecutiveUniverses(firstUniverse, numUniverses));
+    receiver.setLogStats(true);
+    receiver.start();
+    logger.info("Listening for ArtNet on loopback:" + port + " universes " + firstUniverse + "-" + (firstUniverse + numUniverses - 1));
+    receiver.thread.join();
+  }
+}
@@ -0,0 +1,213 @@
+package art.lookingup.output;
+
+import heronarts.lx.output.LXBufferOutput.ByteOrder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-output gamma, brightness and color order applied while packing, so patterns never need to correct
+ * for the LEDs by hand.  Gamma and brightness are folded together with the engine's own gamma/brightness
+ * lookup table into a single 256 entry byte table, so the packing loop does one array lookup per channel.
+ * The table is only rebuilt when one of the parameters changes, the engine hands us a different lookup
+ * table, which happens when the master brightness moves, or the engine gamma changes, since LX rewrites its
+ * lookup tables in place for that.
+ *
+ * An output may also be temporally dithered.  Instead of rounding to 8 bits, the transform then produces
+ * 8.8 fixed point values from a 16 bit table and the packer carries each channel's rounding error into the
+ * next frame, so that at low brightness a fade moves through in-between levels rather than visible steps.
+ * The 16 bit table is computed from the raw engine brightness and the engine's gamma rather than the engine's
+ * 8 bit lookup table, since that table has already thrown the precision away.  A dithered output therefore
+ * gets the same engine gamma as the 8 bit path, before its own.  Dithering only pays off on outputs that can
+ * sustain a high frame rate.
+ *
+ * Setters may be called from any thread.  getTable() and getTable16() must only be called from the
+ * thread doing the packing.
+ */
+public class ColorTransform {
+
+  private volatile double gamma = 1.0;
+  private volatile double brightness = 1.0;
+  private volatile ByteOrder byteOrder = ByteOrder.RGB;
+  private volatile boolean dither = false;
+  private volatile int version = 0;
+
+  // Owned by the packing thread.
+  private final byte[] baseTable = new byte[256];
+  private final byte[] table = new byte[256];
+  private int tableVersion = -1;
+  private byte[] tableGlut = null;
+  private double tableEngineGamma = -1;
+  // 8.8 fixed point values, 0 to 255 * 256.
+  private final char[] table16 = new char[256];
+  private int table16Version = -1;
+  private double table16Brightness = -1;
+  private double table16EngineGamma = -1;
+
+  public ColorTransform() {
+  }
+
+  public ColorTransform(double gamma, double brightness, ByteOrder byteOrder) {
+    this(gamma, brightness, byteOrder, false);
+  }
+
+  public ColorTransform(double gamma, double brightness, ByteOrder byteOrder, boolean dither) {
+    setGamma(gamma);
+    setBrightness(brightness);
+    setByteOrder(byteOrder);
+    setDither(dither);
+  }
+
+  public ColorTransform copy() {
+    return new ColorTransform(gamma, brightness, byteOrder, dither);
+  }
+
+  public ColorTransform setGamma(double gamma) {
+    if (gamma <= 0) {
+      throw new IllegalArgumentException("Gamma must be positive: " + gamma);
+    }
+    this.gamma = gamma;
+    ++version;
+    return this;
+  }
+
+  public ColorTransform setBrightness(double brightness) {
+    this.brightness = Math.max(0, Math.min(1, brightness));
+    ++version;
+    return this;
+  }
+
+  /**
+   * Sets the order color channels are written on the wire.  Only 3 byte orders are supported.
+   */
+  public ColorTransform setByteOrder(ByteOrder byteOrder) {
+    if (byteOrder.getNumBytes() != 3) {
+      throw new IllegalArgumentException("Only RGB byte orders are supported: " + byteOrder);
+    }
+    this.byteOrder = byteOrder;
+    ++version;
+    return this;
+  }
+
+  public ColorTransform setDither(boolean dither) {
+    this.dither = dither;
+    ++version;
+    return this;
+  }
+
+  public boolean isDithering() {
+    return dither;
+  }
+
+  /**
+   * Whether other produces the same bytes as this, so pixels of both can share a universe.
+   */
+  public boolean hasSameSettings(ColorTransform other) {
+    return other != null && gamma == other.gamma && brightness == other.brightness && byteOrder == other.byteOrder
+        && dither == other.dither;
+  }
+
+  public double getGamma() {
+    return gamma;
+  }
+
+  public double getBrightness() {
+    return brightness;
+  }
+
+  public ByteOrder getByteOrder() {
+    return byteOrder;
+  }
+
+  /**
+   * Offsets of the red, green and blue bytes within a pixel.
+   */
+  public int[] getByteOffsets() {
+    return byteOrder.getByteOffset();
+  }
+
+  /**
+   * Returns the lookup table mapping an 8 bit color channel to an output byte, with the engine's table glut
+   * applied first.
+   *
+   * @param glut The engine's gamma/brightness lookup table for this frame.
+   * @param engineGamma The gamma glut was built with.
+   */
+  public byte[] getTable(byte[] glut, double engineGamma) {
+    int v = version;
+    if (v != tableVersion) {
+      double g = gamma;
+      double b = brightness;
+      for (int in = 0; in < 256; in++) {
+        baseTable[in] = (byte)Math.round(Math.pow(in / 255.0, g) * b * 255.0);
+      }
+      tableVersion = v;
+      tableGlut = null;
+    }
+    if (glut != tableGlut || engineGamma != tableEngineGamma) {
+      for (int in = 0; in < 256; in++) {
+        table[in] = baseTable[glut[in] & 0xff];
+      }
+      tableGlut = glut;
+      tableEngineGamma = engineGamma;
+    }
+    return table;
+  }
+
+  /**
+   * Returns the 8.8 fixed point lookup table used when dithering.
+   *
+   * @param engineBrightness The brightness the engine is sending this frame at, 0-1.
+   * @param engineGamma The gamma of the engine's lookup table.
+   */
+  public char[] getTable16(double engineBrightness, double engineGamma) {
+    int v = version;
+    if (v != table16Version || engineBrightness != table16Brightness || engineGamma != table16EngineGamma) {
+      // The engine applies its gamma to the brightness scaled value, then ours is applied on top.
+      double g = engineGamma * gamma;
+      double b = brightness;
+      for (int in = 0; in < 256; in++) {
+        table16[in] = (char)Math.round(Math.pow(in * engineBrightness / 255.0, g) * b * 255.0 * 256.0);
+      }
+      table16Version = v;
+      table16Brightness = engineBrightness;
+      table16EngineGamma = engineGamma;
+    }
+    return table16;
+  }
+
+  /**
+   * Parses per-output overrides of the form output:order:gamma:brightness:dither, separated by semicolons,
+   * for example "3:GRB:2.2:0.5:dither;4:GRB".  Trailing fields may be omitted and default to the given
+   * transform's values.  Outputs are numbered from 1 like MappingConfig.
+   *
+   * @return map from 0-based global output number to its transform.
+   * @throws IllegalArgumentException if an entry can not be parsed.
+   */
+  static public Map<Integer, ColorTransform> parseOverrides(String overrides, ColorTransform defaults) {
+    Map<Integer, ColorTransform> transforms = new HashMap<Integer, ColorTransform>();
+    for (String entry : overrides.split(";")) {
+      entry = entry.trim();
+      if (entry.length() == 0) {
+        continue;
+      }
+      String[] fields = entry.split(":");
+      try {
+        int outputNum = Integer.parseInt(fields[0].trim());
+        ByteOrder order = fields.length > 1 ? ByteOrder.valueOf(fields[1].trim().toUpperCase()) : defaults.getByteOrder();
+        double gamma = fields.length > 2 ? Double.parseDouble(fields[2].trim()) : defaults.getGamma();
+        double brightness = fields.length > 3 ? Double.parseDouble(fields[3].trim()) : defaults.getBrightness();
+        boolean dither = defaults.isDithering();
+        if (fields.length > 4) {
+          String d = fields[4].trim().toLowerCase();
+          dither = "dither".equals(d) || "true".equals(d) || "1".equals(d);
+        }
+        transforms.put(outputNum - 1, new ColorTransform(gamma, brightness, order, dither));
+      } catch (IllegalArgumentException iaex) {
+        // Includes NumberFormatException and unknown ByteOrder names.
+        throw new IllegalArgumentException("Invalid color override: " + entry, iaex);
+      }
+    }
+    return transforms;
+  }
+}
@@ -0,0 +1,88 @@
+package art.lookingup.output;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes one LED controller in the output topology.  Each controller has its own address, its own
+ * number of outputs (16, or 32 for a Pixlite in expanded mode), and the universe number its first output
+ * starts on.  Outputs are numbered globally across controllers in topology order, so with two 16 output
+ * controllers MappingConfig output17 is the first output of the second controller.
+ *
+ * A topology is written as semicolon separated controllers of the form ip:port:outputs:universeBase, for
+ * example "192.168.2.134:6454:32:0;192.168.2.135:6454:16:200".  Trailing fields may be omitted.
+ */
+public class ControllerConfig {
+  public static final int DEFAULT_OUTPUTS = 16;
+  public static final int MAX_OUTPUTS = 32;  // 32 outputs in expanded mode.
+
+  public final String address;
+  public final int port;
+  public final int numOutputs;
+  public final int universeBase;
+
+  public ControllerConfig(String address, int port, int numOutputs, int universeBase) {
+    if (numOutputs < 1 || numOutputs > MAX_OUTPUTS) {
+      throw new IllegalArgumentException("Controller " + address + " outputs must be 1-" + MAX_OUTPUTS + ": " + numOutputs);
+    }
+    if (universeBase < 0 || universeBase > 0x7fff) {
+      throw new IllegalArgumentException("Controller " + address + " has invalid universe base: " + universeBase);
+    }
+    this.address = address;
+    this.port = port;
+    this.numOutputs = numOutputs;
+    this.universeBase = universeBase;
+  }
+
+  /**
+   * Parses a topology string.
+   *
+   * @param topology Semicolon separated ip:port:outputs:universeBase entries.
+   * @param defaultPort Port to use when an entry does not specify one.
+   * @return The controllers in order.  Empty if the topology is blank.
+   * @throws IllegalArgumentException if an entry can not be parsed.
+   */
+  static public List<ControllerConfig> parseTopology(String topology, int defaultPort) {
+    List<ControllerConfig> controllers = new ArrayList<ControllerConfig>();
+    for (String entry : topology.split(";")) {
+      entry = entry.trim();
+      if (entry.length() == 0) {
+        continue;
+      }
+      String[] fields = entry.split(":");
+      try {
+        int port = fields.length > 1 ? Integer.parseInt(fields[1].trim()) : defaultPort;
+        int outputs = fields.length > 2 ? Integer.parseInt(fields[2].trim()) : DEFAULT_OUTPUTS;
+        int universeBase = fields.length > 3 ? Integer.parseInt(fields[3].trim()) : -1;
+        if (universeBase < 0) {
+          // Default to following the previous controller, leaving room for 4 universes per output.
+          universeBase = 0;
+          if (!controllers.isEmpty()) {
+            ControllerConfig prev = controllers.get(controllers.size() - 1);
+            universeBase = prev.universeBase + prev.numOutputs * 4;
+          }
+        }
+        controllers.add(new ControllerConfig(fields[0].trim(), port, outputs, universeBase));
+      } catch (NumberFormatException nfex) {
+        throw new IllegalArgumentException("Invalid controller entry: " + entry, nfex);
+      }
+    }
+    return controllers;
+  }
+
+  /**
+   * Total number of outputs across all controllers.
+   */
+  static public int totalOutputs(List<ControllerConfig> controllers) {
+    int total = 0;
+    for (ControllerConfig controller : controllers) {
+      total += controller.numOutputs;
+    }
+    return total;
+  }
+
+  @Override
+  public String toString() {
+    return address + ":" + port + " outputs=" + numOutputs + " universeBase=" + universeBase;
+  }
+}
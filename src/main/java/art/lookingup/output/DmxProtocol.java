@@ -0,0 +1,64 @@
+package art.lookingup.output;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * The wire format of a DMX-over-UDP protocol as far as PackedOutput is concerned.  Headers are written
+ * once when the output is built, so per-frame work is limited to the payload and the sequence number.
+ */
+public abstract class DmxProtocol {
+
+  /**
+   * Both ArtNet and sACN carry 512 channels per universe, which is 170 RGB pixels.
+   */
+  public static final int MAX_PIXELS_PER_UNIVERSE = 170;
+
+  public abstract String getName();
+
+  /**
+   * Number of bytes in front of the DMX data in a data packet.
+   */
+  public abstract int getHeaderLength();
+
+  /**
+   * Number of DMX data bytes to send for the given number of pixels.
+   */
+  public abstract int getDataLength(int numPixels);
+
+  /**
+   * Writes a complete data packet header at offset.
+   */
+  public abstract void writeDataHeader(ByteBuffer buf, int offset, int universeNumber, int dataLength);
+
+  /**
+   * Writes a sequence number into the data packet starting at offset.
+   */
+  public abstract void writeSequence(ByteBuffer buf, int offset, byte sequence);
+
+  /**
+   * Length of the sync packet, or 0 if this protocol is configured to not send sync.
+   */
+  public abstract int getSyncLength();
+
+  /**
+   * Writes a complete sync packet at offset.
+   */
+  public abstract void writeSyncPacket(ByteBuffer buf, int offset);
+
+  /**
+   * Writes a sequence number into the sync packet starting at offset.
+   */
+  public void writeSyncSequence(ByteBuffer buf, int offset, byte sequence) {
+  }
+
+  /**
+   * Where to send the data packet for the given universe.
+   */
+  public abstract InetSocketAddress getDataDestination(int universeNumber);
+
+  /**
+   * Where to send the sync packet.
+   */
+  public abstract InetSocketAddress getSyncDestination();
+}
@@ -0,0 +1,112 @@
+package art.lookingup.output;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free triple buffer for handing finished color frames from the engine thread to an output sender
+ * thread.  The writer always owns one buffer, the reader always owns one buffer, and the third buffer is
+ * the most recently published frame.  Publishing and acquiring are each a single atomic swap, so neither
+ * side ever waits on the other.  If the writer publishes again before the reader has picked up the previous
+ * frame, that frame is overwritten and counted.
+ *
+ * Exactly one thread may call {@link #getBackBuffer()}/{@link #publish(byte[], double, long)} and exactly one other
+ * thread may call {@link #acquire()}/{@link #getFrontBuffer()}.
+ */
+public class FrameExchange {
+  private static final int INDEX_MASK = 0x3;
+  private static final int FRESH = 0x4;
+
+  private final int[][] frames;
+  private final byte[][] gluts;
+  private final double[] brightness;
+  private final long[] timestamps;
+  private final long[] frameNumbers;
+
+  // Index of the shared middle buffer, with FRESH set if the reader has not yet taken it.
+  private final AtomicInteger middle = new AtomicInteger(1);
+  private int back = 0;
+  private int front = 2;
+
+  private volatile long overwrittenFrames = 0;
+
+  public FrameExchange(int frameSize) {
+    frames = new int[3][frameSize];
+    gluts = new byte[3][];
+    brightness = new double[3];
+    timestamps = new long[3];
+    frameNumbers = new long[3];
+  }
+
+  /**
+   * The buffer the writer should fill before calling publish().
+   */
+  public int[] getBackBuffer() {
+    return frames[back];
+  }
+
+  /**
+   * Makes the back buffer available to the reader and takes a new back buffer.
+   *
+   * @param glut The gamma/brightness lookup table to pack this frame with.
+   * @param brightness The brightness the engine sent this frame at.
+   * @param frameNumber The engine frame number, see SyncCoordinator.
+   */
+  public void publish(byte[] glut, double brightness, long frameNumber) {
+    gluts[back] = glut;
+    this.brightness[back] = brightness;
+    frameNumbers[back] = frameNumber;
+    timestamps[back] = System.nanoTime();
+    int prev = middle.getAndSet(back | FRESH);
+    if ((prev & FRESH) != 0) {
+      overwrittenFrames = overwrittenFrames + 1;
+    }
+    back = prev & INDEX_MASK;
+  }
+
+  /**
+   * Swaps the newest published frame into the front buffer.
+   *
+   * @return true if there was a new frame, false if the front buffer is unchanged.
+   */
+  public boolean acquire() {
+    if ((middle.get() & FRESH) == 0) {
+      return false;
+    }
+    front = middle.getAndSet(front) & INDEX_MASK;
+    return true;
+  }
+
+  public boolean hasFreshFrame() {
+    return (middle.get() & FRESH) != 0;
+  }
+
+  public int[] getFrontBuffer() {
+    return frames[front];
+  }
+
+  public byte[] getFrontGlut() {
+    return gluts[front];
+  }
+
+  public double getFrontBrightness() {
+    return brightness[front];
+  }
+
+  /**
+   * System.nanoTime() at which the front buffer was published.
+   */
+  public long getFrontTimestamp() {
+    return timestamps[front];
+  }
+
+  public long getFrontFrameNumber() {
+    return frameNumbers[front];
+  }
+
+  /**
+   * Frames published by the engine that were replaced before the sender picked them up.
+   */
+  public long getOverwrittenFrames() {
+    return overwrittenFrames;
+  }
+}
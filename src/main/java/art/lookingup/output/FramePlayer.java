@@ -0,0 +1,184 @@
+package art.lookingup.output;
+
+import heronarts.lx.output.LXOutput;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Reads a recording made by FrameRecorder.  Only one chunk of the file is mapped at a time and the OS pages
+ * it in as frames are touched, so a recording of any length can be played without holding it on the heap.
+ *
+ * {@link #play(LXOutput, boolean)} replays the recording at its original timing straight into an output,
+ * typically lx.engine.output, without the engine or any patterns running.
+ *
+ * A FramePlayer is not thread safe.
+ */
+public class FramePlayer {
+  private static final Logger logger = Logger.getLogger(FramePlayer.class.getName());
+
+  private final File file;
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+  private final int numPoints;
+  private final int numFrames;
+  private final long startEpochMillis;
+  private final int recordLength;
+  private final int framesPerChunk;
+
+  private int mappedChunk = -1;
+  private MappedByteBuffer chunk;
+  private IntBuffer chunkInts;
+
+  private volatile boolean stopped = false;
+
+  /**
+   * Opens a recording.
+   *
+   * @throws IOException if the file can not be read or is not a recording.
+   */
+  public FramePlayer(File file) throws IOException {
+    this.file = file;
+    raf = new RandomAccessFile(file, "r");
+    channel = raf.getChannel();
+    ByteBuffer header = ByteBuffer.allocate(FrameRecorder.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+    }
+    if (header.hasRemaining() || header.getInt(0) != FrameRecorder.MAGIC) {
+      close();
+      throw new IOException(file + " is not a frame recording");
+    }
+    if (header.getInt(4) != FrameRecorder.VERSION) {
+      close();
+      throw new IOException(file + " has unsupported version " + header.getInt(4));
+    }
+    numPoints = header.getInt(FrameRecorder.OFFSET_NUM_POINTS);
+    startEpochMillis = header.getLong(FrameRecorder.OFFSET_START_MILLIS);
+    recordLength = FrameRecorder.recordLength(numPoints);
+    framesPerChunk = FrameRecorder.framesPerChunk(recordLength);
+    // The header count is only updated once a record is complete, but never trust it past the end of file.
+    long framesInFile = (channel.size() - FrameRecorder.HEADER_LENGTH) / recordLength;
+    numFrames = (int)Math.min(header.getInt(FrameRecorder.OFFSET_FRAME_COUNT), framesInFile);
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public int getNumPoints() {
+    return numPoints;
+  }
+
+  public int getNumFrames() {
+    return numFrames;
+  }
+
+  public long getStartEpochMillis() {
+    return startEpochMillis;
+  }
+
+  /**
+   * Duration from the first frame to the last.
+   */
+  public long getDurationNanos() throws IOException {
+    return numFrames > 0 ? getTimestamp(numFrames - 1) : 0;
+  }
+
+  private int mapFrame(int frame) throws IOException {
+    if (frame < 0 || frame >= numFrames) {
+      throw new IndexOutOfBoundsException("Frame " + frame + " of " + numFrames);
+    }
+    int chunkIndex = frame / framesPerChunk;
+    if (chunkIndex != mappedChunk) {
+      long position = FrameRecorder.HEADER_LENGTH + (long)chunkIndex * framesPerChunk * recordLength;
+      long length = Math.min((long)framesPerChunk * recordLength, channel.size() - position);
+      chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+      chunk.order(ByteOrder.LITTLE_ENDIAN);
+      chunkInts = chunk.asIntBuffer();
+      mappedChunk = chunkIndex;
+    }
+    return (frame % framesPerChunk) * recordLength;
+  }
+
+  /**
+   * Nanoseconds from the first frame of the recording to the given frame.
+   */
+  public long getTimestamp(int frame) throws IOException {
+    return chunk.getLong(mapFrame(frame));
+  }
+
+  /**
+   * Copies a frame's colors into dest.  If dest is shorter than the recording, the extra points are
+   * dropped; if longer, the remainder of dest is left untouched.
+   *
+   * @return the frame's timestamp.
+   */
+  public long readFrame(int frame, int[] dest) throws IOException {
+    int offset = mapFrame(frame);
+    chunkInts.position((offset + 8) / 4);
+    chunkInts.get(dest, 0, Math.min(numPoints, dest.length));
+    return chunk.getLong(offset);
+  }
+
+  /**
+   * The last frame at or before the given time.
+   */
+  public int findFrame(long nanos) throws IOException {
+    int lo = 0;
+    int hi = numFrames - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (getTimestamp(mid) <= nanos) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Sends every frame to the output at the time it was recorded, on the calling thread.  If the output falls
+   * behind, late frames are sent immediately rather than skipped, so every recorded frame goes out.
+   *
+   * @param output Where to send the frames, normally lx.engine.output.
+   * @param loop Whether to start again from the beginning after the last frame.
+   */
+  public void play(LXOutput output, boolean loop) throws IOException {
+    int[] frame = new int[numPoints];
+    logger.info("Playing " + numFrames + " frames of " + numPoints + " points from " + file);
+    do {
+      long start = System.nanoTime();
+      for (int f = 0; f < numFrames && !stopped; f++) {
+        long timestamp = readFrame(f, frame);
+        long wait = start + timestamp - System.nanoTime();
+        if (wait > 0) {
+          LockSupport.parkNanos(wait);
+        }
+        output.send(frame);
+      }
+    } while (loop && !stopped && numFrames > 0);
+  }
+
+  /**
+   * Ends play() after the current frame.  May be called from any thread.
+   */
+  public void stop() {
+    stopped = true;
+  }
+
+  public void close() throws IOException {
+    chunk = null;
+    chunkInts = null;
+    channel.close();
+    raf.close();
+  }
+}
@@ -0,0 +1,233 @@
+package art.lookingup.output;
+
+import heronarts.lx.LX;
+import heronarts.lx.output.LXOutput;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the final color buffer of every engine frame into an append-only memory-mapped file.  Added as an
+ * output, so it sees exactly the colors that are sent to the controllers, before output brightness.
+ *
+ * The file is a 32 byte header followed by fixed size records, so any frame can be found without an index:
+ *
+ *   header: int magic, int version, int numPoints, int frameCount, long startEpochMillis, 8 bytes reserved
+ *   record: long nanos since the first frame, int[numPoints] colors
+ *
+ * Everything is little endian.  The file is mapped a chunk at a time and frameCount in the header is updated
+ * after each record is complete, so a recording that is cut short by a crash is still readable up to the
+ * last whole frame.  Writing a frame is a copy into mapped memory; the OS writes it back to disk.
+ *
+ * Every record in a file has the same number of points.  When the model is rebuilt with a different number of
+ * points, the file is closed and recording continues in a new one next to it, "show-2.kfr" after "show.kfr".
+ *
+ * See FramePlayer for playback.
+ */
+public class FrameRecorder extends LXOutput {
+  private static final Logger logger = Logger.getLogger(FrameRecorder.class.getName());
+
+  public static final int MAGIC = 0x3152464b;  // "KFR1"
+  public static final int VERSION = 1;
+  public static final int HEADER_LENGTH = 32;
+  static final int OFFSET_NUM_POINTS = 8;
+  static final int OFFSET_FRAME_COUNT = 12;
+  static final int OFFSET_START_MILLIS = 16;
+  // Size of each mapped region.  Rounded down to whole records.
+  static final long CHUNK_BYTES = 64L * 1024 * 1024;
+
+  private final File firstFile;
+  // The file being recorded to, replaced when the number of points changes.
+  private int fileNumber = 1;
+  private File file;
+  private RandomAccessFile raf;
+  private FileChannel channel;
+  private MappedByteBuffer header;
+  private int numPoints;
+  private int recordLength;
+  private int framesPerChunk;
+
+  private MappedByteBuffer chunk = null;
+  private IntBuffer chunkInts = null;
+  private int frameInChunk = 0;
+  private int frameCount = 0;
+  private long startNanos = 0;
+  private volatile boolean closed = false;
+
+  /**
+   * Creates a recorder, truncating any existing file.
+   *
+   * @param lx LX instance
+   * @param file The recording file.
+   * @param numPoints Number of points in each frame, normally the size of the model.
+   * @throws IOException if the file can not be created.
+   */
+  public FrameRecorder(LX lx, File file, int numPoints) throws IOException {
+    super(lx, "Recorder");
+    this.firstFile = file;
+    open(file, numPoints);
+  }
+
+  private void open(File file, int numPoints) throws IOException {
+    this.file = file;
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    MappedByteBuffer header;
+    try {
+      raf.setLength(0);
+      header = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH);
+    } catch (IOException ioex) {
+      raf.close();
+      throw ioex;
+    }
+    header.order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(0, MAGIC);
+    header.putInt(4, VERSION);
+    header.putInt(OFFSET_NUM_POINTS, numPoints);
+    header.putInt(OFFSET_FRAME_COUNT, 0);
+    header.putLong(OFFSET_START_MILLIS, System.currentTimeMillis());
+    this.raf = raf;
+    this.channel = raf.getChannel();
+    this.header = header;
+    this.numPoints = numPoints;
+    this.recordLength = recordLength(numPoints);
+    this.framesPerChunk = framesPerChunk(recordLength);
+    frameInChunk = 0;
+    frameCount = 0;
+  }
+
+  /**
+   * The file a recording continues in after the number of points has changed fileNumber - 1 times, with the
+   * number added before the extension.
+   */
+  static File numberedFile(File file, int fileNumber) {
+    if (fileNumber == 1) {
+      return file;
+    }
+    String name = file.getName();
+    int dot = name.lastIndexOf('.');
+    String numbered = dot > 0
+        ? name.substring(0, dot) + "-" + fileNumber + name.substring(dot)
+        : name + "-" + fileNumber;
+    return new File(file.getParentFile(), numbered);
+  }
+
+  static int recordLength(int numPoints) {
+    return 8 + 4 * numPoints;
+  }
+
+  static int framesPerChunk(int recordLength) {
+    return (int)Math.max(1, CHUNK_BYTES / recordLength);
+  }
+
+  /**
+   * The file being recorded to, which changes when the number of points does.
+   */
+  public synchronized File getFile() {
+    return file;
+  }
+
+  /**
+   * The number of frames in the current file.
+   */
+  public synchronized int getFrameCount() {
+    return frameCount;
+  }
+
+  @Override
+  protected synchronized void onSend(int[] colors, byte[] glut) {
+    if (closed) {
+      return;
+    }
+    try {
+      append(colors);
+    } catch (IOException ioex) {
+      logger.log(Level.SEVERE, "Error recording to " + file + ", recording stopped", ioex);
+      close();
+    }
+  }
+
+  private void append(int[] colors) throws IOException {
+    if (colors.length != numPoints) {
+      // The model was rebuilt.  Records are fixed size, so the new size needs a file of its own.
+      int previousPoints = numPoints;
+      finishFile();
+      File next = numberedFile(firstFile, ++fileNumber);
+      logger.warning("Model changed from " + previousPoints + " to " + colors.length + " points, recording continues in "
+          + next);
+      open(next, colors.length);
+    }
+    long now = System.nanoTime();
+    if (frameCount == 0) {
+      startNanos = now;
+    }
+    if (chunk == null || frameInChunk == framesPerChunk) {
+      long chunkLength = (long)framesPerChunk * recordLength;
+      long position = HEADER_LENGTH + (long)frameCount * recordLength;
+      // Mapping past the end of the file grows it.
+      chunk = channel.map(FileChannel.MapMode.READ_WRITE, position, chunkLength);
+      chunk.order(ByteOrder.LITTLE_ENDIAN);
+      chunkInts = chunk.asIntBuffer();
+      frameInChunk = 0;
+    }
+    int offset = frameInChunk * recordLength;
+    chunk.putLong(offset, now - startNanos);
+    chunkInts.position((offset + 8) / 4);
+    chunkInts.put(colors, 0, numPoints);
+    ++frameInChunk;
+    ++frameCount;
+    header.putInt(OFFSET_FRAME_COUNT, frameCount);
+  }
+
+  /**
+   * Stops recording and trims the file to the frames written.  The recorder ignores frames after this.
+   */
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (raf != null) {
+      finishFile();
+    }
+  }
+
+  /**
+   * Flushes, trims and closes the current file.
+   */
+  private void finishFile() {
+    try {
+      if (chunk != null) {
+        chunk.force();
+      }
+      header.force();
+      chunk = null;
+      chunkInts = null;
+      // The last chunk was mapped past the final record.  Truncating a file that is still mapped fails on
+      // Windows, in which case the tail is left in place; frameCount in the header is authoritative.
+      try {
+        channel.truncate(HEADER_LENGTH + (long)frameCount * recordLength);
+      } catch (IOException ioex) {
+        logger.info("Could not trim " + file + ": " + ioex.getMessage());
+      }
+      channel.close();
+      raf.close();
+      logger.info("Recorded " + frameCount + " frames to " + file);
+    } catch (IOException ioex) {
+      logger.log(Level.WARNING, "Error closing recording " + file, ioex);
+    }
+    raf = null;
+  }
+
+  @Override
+  public void dispose() {
+    close();
+    super.dispose();
+  }
+}
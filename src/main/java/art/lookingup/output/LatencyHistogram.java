@@ -0,0 +1,134 @@
+package art.lookingup.output;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size log-linear histogram of durations in nanoseconds, in the style of HdrHistogram.  Values below
+ * 64ns get a bucket each.  Above that every power of two is split into 32 buckets, so any recorded value is
+ * reported to within about 3% over the whole range up to MAX_VALUE_NANOS, which is larger than anything the
+ * output path should ever see.  Larger values are clamped.
+ *
+ * All storage is allocated at construction.  Recording is lock-free and allocation free and may be done from
+ * any number of threads, so the sending threads record while a reporting thread reads.  Reads while values
+ * are being recorded, and {@link #reset()}, are not atomic with respect to recording, so a report may be off by
+ * the samples recorded while it was taken.
+ */
+public class LatencyHistogram {
+  static final int SUB_BUCKET_BITS = 5;
+  static final int SUB_BUCKET_HALF = 1 << SUB_BUCKET_BITS;
+  static final int LINEAR_LIMIT = SUB_BUCKET_HALF << 1;
+  // About 18 minutes.
+  public static final long MAX_VALUE_NANOS = 1L << 40;
+
+  static final double[] REPORT_PERCENTILES = { 50, 90, 99, 99.9 };
+
+  private final AtomicLongArray counts = new AtomicLongArray(bucketIndex(MAX_VALUE_NANOS) + 1);
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  /**
+   * The bucket for a value.  Values under LINEAR_LIMIT index directly.  Above that, a value with highest bit
+   * n is shifted right by n - SUB_BUCKET_BITS, leaving a sub-bucket in [SUB_BUCKET_HALF, LINEAR_LIMIT), and
+   * each shift adds another SUB_BUCKET_HALF buckets.
+   */
+  static int bucketIndex(long value) {
+    if (value < LINEAR_LIMIT) {
+      return (int)value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return shift * SUB_BUCKET_HALF + (int)(value >>> shift);
+  }
+
+  /**
+   * The largest value that falls in the given bucket.
+   */
+  static long bucketHighestValue(int index) {
+    if (index < LINEAR_LIMIT) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKET_HALF) / SUB_BUCKET_HALF;
+    long subBucket = index - shift * SUB_BUCKET_HALF;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    } else if (nanos > MAX_VALUE_NANOS) {
+      nanos = MAX_VALUE_NANOS;
+    }
+    counts.incrementAndGet(bucketIndex(nanos));
+    totalNanos.addAndGet(nanos);
+    long max = maxNanos.get();
+    while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+      max = maxNanos.get();
+    }
+  }
+
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  public long getMaxNanos() {
+    return maxNanos.get();
+  }
+
+  public double getMeanNanos() {
+    long count = getCount();
+    return count > 0 ? (double)totalNanos.get() / count : 0;
+  }
+
+  /**
+   * The value that percentile percent of recorded values are at or below, to within the bucket resolution.
+   *
+   * @param percentile 0-100
+   * @return the value in nanoseconds, or 0 if nothing has been recorded.
+   */
+  public long getValueAtPercentile(double percentile) {
+    long count = getCount();
+    if (count == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long)Math.ceil(Math.min(100, percentile) / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= target) {
+        return Math.min(bucketHighestValue(i), maxNanos.get());
+      }
+    }
+    return maxNanos.get();
+  }
+
+  /**
+   * Clears all recorded values.
+   */
+  public void reset() {
+    for (int i = 0; i < counts.length(); i++) {
+      counts.set(i, 0);
+    }
+    totalNanos.set(0);
+    maxNanos.set(0);
+  }
+
+  /**
+   * Count, mean, the report percentiles and max, in microseconds.
+   */
+  public String summary() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("n=").append(getCount());
+    sb.append(String.format(Locale.ROOT, " mean=%.0f", getMeanNanos() / 1000));
+    for (double percentile : REPORT_PERCENTILES) {
+      sb.append(String.format(Locale.ROOT, " p%s=%.0f", percentile == (int)percentile ? Integer.toString((int)percentile)
+          : Double.toString(percentile), getValueAtPercentile(percentile) / 1000.0));
+    }
+    sb.append(String.format(Locale.ROOT, " max=%.0fus", getMaxNanos() / 1000.0));
+    return sb.toString();
+  }
+}
@@ -0,0 +1,259 @@
+package art.lookingup.output;
+
+import heronarts.lx.LX;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything needed to build the outputs for a configuration, compiled ahead of time: for each controller
+ * its protocol with the resolved address and sync settings, the color buffer index table of every universe,
+ * and the per-output transforms and pacing.  A plan is not modified after it is created, so it can be
+ * compiled and validated on a background thread while the current outputs keep running, and only then
+ * built and swapped in, see SwappableOutput.
+ */
+public class OutputPlan {
+
+  static public class ControllerPlan {
+    public final String name;
+    public final DmxProtocol protocol;
+    final int[][] universeIndices;
+    final int[] universeNumbers;
+    final ColorTransform[] universeTransforms;
+    // For each universe, the indices in outputLedCounts and outputNumbers of the outputs it carries.
+    final int[][] universeOutputs;
+    final int[] outputLedCounts;
+    final int[] outputNumbers;
+    // The universe number and 1-based channel where each output's first pixel is.
+    final int[] outputStartUniverse;
+    final int[] outputStartChannel;
+
+    /**
+     * @param name Name for logging and timing reports.
+     * @param protocol Packet format and destinations.
+     * @param universeIndices For each universe, the color buffer indices of its points in wire order.
+     * @param universeNumbers The universe number of each universe.
+     * @param universeTransforms The color transform of each universe.  Universes of the same output share one.
+     * @param universeOutputs For each universe, the indices of the outputs it carries pixels for.
+     * @param outputLedCounts The number of LEDs on each output.
+     * @param outputNumbers The 1-based global number of each output.
+     * @param outputStartUniverse The universe number each output starts in.
+     * @param outputStartChannel The 1-based channel each output starts at in its start universe.
+     */
+    public ControllerPlan(String name, DmxProtocol protocol, int[][] universeIndices, int[] universeNumbers,
+                          ColorTransform[] universeTransforms, int[][] universeOutputs, int[] outputLedCounts,
+                          int[] outputNumbers, int[] outputStartUniverse, int[] outputStartChannel) {
+      this.name = name;
+      this.protocol = protocol;
+      this.universeIndices = new int[universeIndices.length][];
+      for (int u = 0; u < universeIndices.length; u++) {
+        this.universeIndices[u] = universeIndices[u].clone();
+      }
+      this.universeNumbers = universeNumbers.clone();
+      this.universeTransforms = universeTransforms.clone();
+      this.universeOutputs = new int[universeOutputs.length][];
+      for (int u = 0; u < universeOutputs.length; u++) {
+        this.universeOutputs[u] = universeOutputs[u].clone();
+      }
+      this.outputLedCounts = outputLedCounts.clone();
+      this.outputNumbers = outputNumbers.clone();
+      this.outputStartUniverse = outputStartUniverse.clone();
+      this.outputStartChannel = outputStartChannel.clone();
+    }
+
+    public int getNumUniverses() {
+      return universeIndices.length;
+    }
+
+    public int getNumOutputs() {
+      return outputNumbers.length;
+    }
+
+    public int getNumPixels() {
+      int total = 0;
+      for (int[] indices : universeIndices) {
+        total += indices.length;
+      }
+      return total;
+    }
+  }
+
+  public final List<ControllerPlan> controllers;
+  public final boolean senderThread;
+  public final float senderFps;
+  public final boolean skipUnchanged;
+  public final int keepaliveMs;
+  // 0 to send every output every frame.
+  public final int pixelClockKhz;
+  // Where to broadcast a single sync for all controllers, or null to sync each controller.
+  public final InetSocketAddress syncBroadcast;
+  public final int syncTimeoutMs;
+  // Null to send colors without power limiting.
+  public final PowerLimiter.Budget powerBudget;
+
+  /**
+   * @param controllers One plan per controller, in topology order.
+   * @param senderThread Whether each controller packs and sends on its own thread.
+   * @param senderFps Maximum frame rate of the sender threads, 0 for no limit.
+   * @param skipUnchanged Whether to skip unchanged universes.
+   * @param keepaliveMs Maximum time between sends of an unchanged universe.
+   * @param pixelClockKhz Pixel data rate to pace outputs for, 0 to not pace.
+   * @param syncBroadcast Where to broadcast one sync for every controller, or null for each controller's own.
+   * @param syncTimeoutMs How long coordinated sync waits for a late controller, see SyncCoordinator.
+   * @param powerBudget Strand power budgets to limit colors to, or null to not limit.
+   */
+  public OutputPlan(List<ControllerPlan> controllers, boolean senderThread, float senderFps, boolean skipUnchanged,
+                    int keepaliveMs, int pixelClockKhz, InetSocketAddress syncBroadcast, int syncTimeoutMs,
+                    PowerLimiter.Budget powerBudget) {
+    this.controllers = Collections.unmodifiableList(new ArrayList<ControllerPlan>(controllers));
+    this.senderThread = senderThread;
+    this.senderFps = senderFps;
+    this.skipUnchanged = skipUnchanged;
+    this.keepaliveMs = keepaliveMs;
+    this.pixelClockKhz = pixelClockKhz;
+    this.syncBroadcast = syncBroadcast;
+    this.syncTimeoutMs = syncTimeoutMs;
+    this.powerBudget = powerBudget;
+  }
+
+  /**
+   * Whether sync is sent by a SyncCoordinator rather than by each output after its own data.  That is needed
+   * when controllers send on their own threads, or when sync is broadcast.
+   */
+  public boolean isSyncCoordinated() {
+    return !controllers.isEmpty() && ((senderThread && controllers.size() > 1) || syncBroadcast != null);
+  }
+
+  public int getNumUniverses() {
+    int total = 0;
+    for (ControllerPlan controller : controllers) {
+      total += controller.getNumUniverses();
+    }
+    return total;
+  }
+
+  /**
+   * Checks that the plan can be built and sent for a model of the given size.  Every index must be in the
+   * model, every universe must fit in a packet, and no two universes may go to the same destination with
+   * the same universe number, which would have them overwrite each other on the controller.
+   *
+   * @throws IllegalArgumentException describing the first problem found.
+   */
+  public void validate(int modelSize) {
+    if (powerBudget != null && powerBudget.getMaxIndex() >= modelSize) {
+      throw new IllegalArgumentException("Power budget has point " + powerBudget.getMaxIndex() + " but the model has "
+          + modelSize + " points");
+    }
+    Map<String, String> destinations = new HashMap<String, String>();
+    for (ControllerPlan controller : controllers) {
+      int numUniverses = controller.universeIndices.length;
+      if (controller.universeNumbers.length != numUniverses || controller.universeTransforms.length != numUniverses
+          || controller.universeOutputs.length != numUniverses) {
+        throw new IllegalArgumentException(controller.name + " has mismatched universe tables");
+      }
+      if (controller.outputLedCounts.length != controller.outputNumbers.length) {
+        throw new IllegalArgumentException(controller.name + " has mismatched output tables");
+      }
+      for (int u = 0; u < numUniverses; u++) {
+        int[] indices = controller.universeIndices[u];
+        int universeNumber = controller.universeNumbers[u];
+        if (indices.length > DmxProtocol.MAX_PIXELS_PER_UNIVERSE) {
+          throw new IllegalArgumentException(controller.name + " universe " + universeNumber + " has " + indices.length
+              + " points, max is " + DmxProtocol.MAX_PIXELS_PER_UNIVERSE);
+        }
+        for (int index : indices) {
+          if (index < 0 || index >= modelSize) {
+            throw new IllegalArgumentException(controller.name + " universe " + universeNumber + " sends point " + index
+                + " but the model has " + modelSize + " points");
+          }
+        }
+        if (controller.universeOutputs[u].length == 0) {
+          throw new IllegalArgumentException(controller.name + " universe " + universeNumber + " has no output");
+        }
+        for (int output : controller.universeOutputs[u]) {
+          if (output < 0 || output >= controller.outputNumbers.length) {
+            throw new IllegalArgumentException(controller.name + " universe " + universeNumber + " has unknown output "
+                + output);
+          }
+        }
+        InetSocketAddress destination = controller.protocol.getDataDestination(universeNumber);
+        String key = destination + "/" + universeNumber;
+        String previous = destinations.put(key, controller.name);
+        if (previous != null) {
+          throw new IllegalArgumentException("Universe " + universeNumber + " is sent to " + destination + " by both "
+              + previous + " and " + controller.name);
+        }
+      }
+    }
+  }
+
+  /**
+   * Builds one PackedOutput per controller.  Opens their channels and starts their sender threads, but does
+   * not add them to the engine.  Transforms are copied so the plan can be built again.  PackedOutputs register
+   * themselves with LX, so this must be called on the engine thread, or before the engine starts.
+   *
+   * @throws IOException if a channel can not be opened, after disposing any outputs already built.
+   */
+  public PackedOutput[] build(LX lx) throws IOException {
+    List<PackedOutput> built = new ArrayList<PackedOutput>();
+    try {
+      for (ControllerPlan controller : controllers) {
+        Map<ColorTransform, ColorTransform> copies = new IdentityHashMap<ColorTransform, ColorTransform>();
+        ColorTransform[] transforms = new ColorTransform[controller.universeTransforms.length];
+        for (int u = 0; u < transforms.length; u++) {
+          ColorTransform transform = controller.universeTransforms[u];
+          if (transform != null) {
+            transforms[u] = copies.computeIfAbsent(transform, ColorTransform::copy);
+          }
+        }
+        PackedOutput packedOutput = new PackedOutput(lx, controller.protocol, controller.universeIndices,
+            controller.universeNumbers, transforms, senderThread, senderFps);
+        built.add(packedOutput);
+        packedOutput.setDirtySuppression(skipUnchanged, keepaliveMs);
+        if (pixelClockKhz > 0) {
+          packedOutput.setScheduler(new OutputScheduler(controller.universeOutputs, controller.outputLedCounts, pixelClockKhz));
+        }
+        packedOutput.setTimings(new SendTimings(controller.name, controller.universeOutputs, controller.outputNumbers));
+      }
+    } catch (IOException | RuntimeException ex) {
+      for (PackedOutput packedOutput : built) {
+        packedOutput.dispose();
+      }
+      throw ex;
+    }
+    return built.toArray(new PackedOutput[0]);
+  }
+
+  /**
+   * Creates the sync coordinator for outputs built from this plan, and hands it their sync.
+   *
+   * @return the coordinator, or null if each output sends its own sync.
+   * @throws IOException if the broadcast channel can not be opened.
+   */
+  public SyncCoordinator buildSyncCoordinator(PackedOutput[] outputs) throws IOException {
+    if (!isSyncCoordinated()) {
+      return null;
+    }
+    SyncCoordinator coordinator = new SyncCoordinator(outputs, syncTimeoutMs,
+        syncBroadcast != null ? controllers.get(0).protocol : null, syncBroadcast);
+    for (int i = 0; i < outputs.length; i++) {
+      outputs[i].setSyncCoordinator(coordinator, i);
+    }
+    return coordinator;
+  }
+
+  /**
+   * Creates the power limiter for this plan.
+   *
+   * @return the limiter, or null if colors are not limited.
+   */
+  public PowerLimiter buildPowerLimiter(int modelSize) {
+    return powerBudget != null ? new PowerLimiter(powerBudget, modelSize) : null;
+  }
+}
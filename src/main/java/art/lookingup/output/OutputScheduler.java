@@ -0,0 +1,127 @@
+package art.lookingup.output;
+
+/**
+ * Paces sends per controller output based on how long the output takes to clock its pixels out.  A WS2811
+ * style pixel needs 24 bit times per pixel plus a latch/reset gap, so an output with 320 LEDs can refresh
+ * less often than a short flower strand.  Sending a long output faster than it can shift out just wastes
+ * packets, so each output is only sent once its previous frame has had time to reach the last pixel.
+ *
+ * The static helpers are also used at configuration time to warn about outputs that are over their LED
+ * budget for the target frame rate.
+ *
+ * beginFrame() and isDue() must only be called from the thread doing the sending.
+ */
+public class OutputScheduler {
+  public static final int DEFAULT_PIXEL_CLOCK_KHZ = 800;
+  public static final int BITS_PER_PIXEL = 24;
+  public static final int RESET_MICROS = 300;
+  // An output is due this much of its interval early, so frame jitter does not skip an output whose clock
+  // out time is close to the engine frame period.
+  static final int SLACK_DIVISOR = 10;
+
+  // The local output numbers of each universe.  A universe shared by several outputs is due when any is.
+  private final int[][] universeOutputs;
+  private final long[] minIntervalNanos;
+  private final long[] nextSendNanos;
+  private final boolean[] due;
+
+  /**
+   * @param universeOutputs For each universe, the indices of the outputs it carries pixels for.
+   * @param outputLedCounts The number of LEDs on each output.
+   * @param pixelClockKhz The pixel data rate of the outputs.
+   */
+  public OutputScheduler(int[][] universeOutputs, int[] outputLedCounts, int pixelClockKhz) {
+    this.universeOutputs = new int[universeOutputs.length][];
+    int numOutputs = outputLedCounts.length;
+    minIntervalNanos = new long[numOutputs];
+    nextSendNanos = new long[numOutputs];
+    due = new boolean[numOutputs];
+    long now = System.nanoTime();
+    for (int o = 0; o < numOutputs; o++) {
+      minIntervalNanos[o] = frameMicros(outputLedCounts[o], pixelClockKhz) * 1000L;
+      nextSendNanos[o] = now;
+    }
+    for (int u = 0; u < universeOutputs.length; u++) {
+      if (universeOutputs[u].length == 0) {
+        throw new IllegalArgumentException("Universe " + u + " belongs to no output");
+      }
+      for (int output : universeOutputs[u]) {
+        if (output < 0 || output >= numOutputs) {
+          throw new IllegalArgumentException("Universe " + u + " belongs to unknown output " + output);
+        }
+      }
+      this.universeOutputs[u] = universeOutputs[u].clone();
+    }
+  }
+
+  /**
+   * Time to clock one frame out to numLeds pixels, including the reset gap.  pixelClockKhz must be positive.
+   */
+  static public long frameMicros(int numLeds, int pixelClockKhz) {
+    return (long)numLeds * BITS_PER_PIXEL * 1000L / pixelClockKhz + RESET_MICROS;
+  }
+
+  /**
+   * The fastest an output with numLeds pixels can refresh.
+   */
+  static public float maxRefreshHz(int numLeds, int pixelClockKhz) {
+    return 1000000f / frameMicros(numLeds, pixelClockKhz);
+  }
+
+  /**
+   * The most LEDs an output can have while still refreshing at targetFps, which must be positive.
+   */
+  static public int ledBudget(float targetFps, int pixelClockKhz) {
+    long frameMicros = (long)(1000000f / targetFps) - RESET_MICROS;
+    return (int)Math.max(0, frameMicros * pixelClockKhz / (BITS_PER_PIXEL * 1000L));
+  }
+
+  public int getNumOutputs() {
+    return minIntervalNanos.length;
+  }
+
+  public float getMaxRefreshHz(int output) {
+    return 1e9f / minIntervalNanos[output];
+  }
+
+  /**
+   * Decides which outputs are sent this frame.  The next send is scheduled from when this one was due rather
+   * than from now, so a late frame does not push the schedule back, unless the output fell a whole interval
+   * behind, in which case it is scheduled from now.
+   */
+  public void beginFrame(long nowNanos) {
+    for (int o = 0; o < due.length; o++) {
+      long interval = minIntervalNanos[o];
+      due[o] = nowNanos - (nextSendNanos[o] - interval / SLACK_DIVISOR) >= 0;
+      if (due[o]) {
+        nextSendNanos[o] += interval;
+        if (nowNanos - nextSendNanos[o] >= 0) {
+          nextSendNanos[o] = nowNanos + interval;
+        }
+      }
+    }
+  }
+
+  /**
+   * Whether any of the given universe's outputs is being sent this frame.
+   */
+  public boolean isDue(int universe) {
+    int[] outputs = universeOutputs[universe];
+    for (int i = 0; i < outputs.length; i++) {
+      if (due[outputs[i]]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Forces every output to be sent on the next frame.
+   */
+  public void reset() {
+    long now = System.nanoTime();
+    for (int o = 0; o < nextSendNanos.length; o++) {
+      nextSendNanos[o] = now;
+    }
+  }
+}
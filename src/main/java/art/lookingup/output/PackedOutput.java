@@ -0,0 +1,640 @@
+package art.lookingup.output;
+
+import heronarts.lx.LX;
+import heronarts.lx.output.LXOutput;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends all of our DMX universes from a single LXOutput.  Rather than one ArtNetDatagram child per
+ * universe, each of which gathers its own colors and sends on its own, every data packet lives in one
+ * preallocated direct ByteBuffer with the headers written once at construction time.  Each frame we only
+ * rewrite the RGB payload bytes and sequence numbers in place from a flat index table and then send each
+ * packet as a slice of that buffer through one DatagramChannel.  The trailing sync packet lives in the same
+ * buffer.  The packet format and destinations come from a DmxProtocol, currently ArtNet or sACN.
+ *
+ * Each universe may have a ColorTransform which applies gamma, brightness and channel order through a
+ * precomputed lookup table as the bytes are packed.  Transforms are per output; every universe of an
+ * output shares the same instance.  Transforms that dither keep their per-channel rounding error in a
+ * preallocated int array here.
+ *
+ * Sends can be paced per controller output with an OutputScheduler, so that short outputs refresh as fast
+ * as the engine runs while long outputs are only sent as often as their pixels can clock the data out.
+ *
+ * Universes whose payload did not change since they were last sent can be skipped, see
+ * {@link #setDirtySuppression(boolean, int)}.  Change detection is free since the packet buffer always holds
+ * the last bytes sent for each universe, so we compare each byte as it is written.
+ *
+ * When several outputs send on their own threads, a SyncCoordinator can take over sending sync so that it
+ * only goes out once every output has sent the frame, see {@link #setSyncCoordinator(SyncCoordinator, int)}.
+ *
+ * Send times can be recorded into histograms, see SendTimings, to tell a slow frame apart from a slow link.
+ *
+ * Optionally the packing and sending can be moved off of the engine thread.  In that mode the engine only
+ * gathers this output's colors into a FrameExchange and returns, and a dedicated sender thread packs and
+ * transmits the newest frame, including sync, on its own clock.  A network stall then no longer delays
+ * rendering.
+ *
+ * Nothing is allocated per frame.
+ */
+public class PackedOutput extends LXOutput {
+  private static final Logger logger = Logger.getLogger(PackedOutput.class.getName());
+
+  public static final int MAX_PIXELS_PER_UNIVERSE = DmxProtocol.MAX_PIXELS_PER_UNIVERSE;
+  // Pixlite controllers hold their last frame for a few seconds without data, so resend at least this often.
+  public static final int DEFAULT_KEEPALIVE_MS = 1000;
+
+  private final DmxProtocol protocol;
+  private final DatagramChannel channel;
+
+  // Every data packet followed by the sync packet, back to back.
+  private final ByteBuffer buffer;
+  // Preallocated views into buffer, one per universe.
+  private final ByteBuffer[] packets;
+  private final InetSocketAddress[] destinations;
+  // Null if the protocol is not sending sync.
+  private final ByteBuffer syncPacket;
+  private final InetSocketAddress syncDestination;
+  private final int syncOffset;
+
+  // Color buffer index for every pixel we send, in wire order across all universes.
+  private final int[] indexTable;
+  // Index into indexTable of the first pixel of each universe.  Has numUniverses + 1 entries.
+  private final int[] universeStart;
+  // Offset into buffer of each packet, and of each packet's payload.
+  private final int[] packetOffset;
+  private final int[] payloadOffset;
+  private final int[] universeNumbers;
+  // Null entries are sent as RGB through the engine lookup table only.
+  private final ColorTransform[] universeTransforms;
+
+  // Carried rounding error for each channel of each pixel, in 1/256ths.  Only used by dithered universes.
+  private final int[] ditherError;
+  // Brightness of the frame currently being sent on the engine thread.
+  private double frameBrightness = 1.0;
+  // Gamma of the engine lookup table, for dithered universes.  Set on the engine thread, read when packing.
+  private volatile double engineGamma = 1.0;
+  private LXOutput gammaDelegate = null;
+
+  // Identity table used to pack frames that have already been gathered into wire order.
+  private final int[] identityTable;
+
+  private byte sequence = 0;
+
+  private final FrameExchange exchange;
+  private final SenderThread senderThread;
+
+  // Frames that were not sent because of a send failure or backoff.  Only written by the sending thread.
+  private volatile long droppedFrames = 0;
+
+  // Dirty-universe suppression.  Written from the UI thread, read by the sending thread.
+  private volatile boolean suppressUnchanged = false;
+  private volatile int keepaliveMillis = DEFAULT_KEEPALIVE_MS;
+  // Time each universe was last sent, 0 to force a send.
+  private final long[] lastSentMillis;
+  // Per-output pacing, null to send every universe every frame.
+  private volatile OutputScheduler scheduler = null;
+  // Sends sync on our behalf once all of its outputs have sent a frame, null to send our own.
+  private volatile SyncCoordinator syncCoordinator = null;
+  private volatile int syncParticipant = 0;
+  private boolean syncFailed = false;
+  // Send time histograms, null to not time sends.
+  private volatile SendTimings timings = null;
+  private volatile int lastFrameSent = 0;
+  private volatile int lastFrameSkipped = 0;
+  private volatile long totalSent = 0;
+  private volatile long totalSkipped = 0;
+  // System.nanoTime() when the engine produced the frame most recently packed.
+  private volatile long lastFrameNanos = 0;
+
+  // Backoff state after consecutive send failures, similar to LXDatagram.
+  private int failureCount = 0;
+  private long sendAfter = 0;
+
+  /**
+   * Creates a packed DMX output.
+   *
+   * @param lx LX instance
+   * @param protocol Packet format and destinations.
+   * @param universeIndices For each universe, the color buffer indices of its points in wire order.  At
+   *                        most 170 points per universe.
+   * @param universeNumbers The universe number for each entry in universeIndices.
+   * @param universeTransforms The color transform for each universe, or null for none.  Entries may be null.
+   * @param threaded If true, pack and send on a dedicated sender thread instead of the engine thread.
+   * @param senderFps Maximum frames per second for the sender thread, 0 for no limit.
+   * @throws IOException if the DatagramChannel cannot be opened.
+   */
+  public PackedOutput(LX lx, DmxProtocol protocol, int[][] universeIndices, int[] universeNumbers,
+                      ColorTransform[] universeTransforms, boolean threaded, float senderFps) throws IOException {
+    super(lx, "Packed" + protocol.getName());
+    if (universeIndices.length != universeNumbers.length) {
+      throw new IllegalArgumentException("Universe index count " + universeIndices.length
+          + " != universe number count " + universeNumbers.length);
+    }
+    this.protocol = protocol;
+    this.universeNumbers = universeNumbers.clone();
+    this.universeTransforms = universeTransforms != null
+        ? universeTransforms.clone() : new ColorTransform[universeIndices.length];
+    if (this.universeTransforms.length != universeIndices.length) {
+      throw new IllegalArgumentException("Universe transform count " + this.universeTransforms.length
+          + " != universe count " + universeIndices.length);
+    }
+
+    int numUniverses = universeIndices.length;
+    int headerLength = protocol.getHeaderLength();
+    universeStart = new int[numUniverses + 1];
+    int totalPixels = 0;
+    int totalBytes = 0;
+    for (int u = 0; u < numUniverses; u++) {
+      if (universeIndices[u].length > MAX_PIXELS_PER_UNIVERSE) {
+        throw new IllegalArgumentException("Universe " + universeNumbers[u] + " has " + universeIndices[u].length
+            + " points, max is " + MAX_PIXELS_PER_UNIVERSE);
+      }
+      universeStart[u] = totalPixels;
+      totalPixels += universeIndices[u].length;
+      totalBytes += headerLength + protocol.getDataLength(universeIndices[u].length);
+    }
+    universeStart[numUniverses] = totalPixels;
+
+    indexTable = new int[totalPixels];
+    for (int u = 0; u < numUniverses; u++) {
+      System.arraycopy(universeIndices[u], 0, indexTable, universeStart[u], universeIndices[u].length);
+    }
+
+    int syncLength = protocol.getSyncLength();
+    buffer = ByteBuffer.allocateDirect(totalBytes + syncLength);
+    packets = new ByteBuffer[numUniverses];
+    destinations = new InetSocketAddress[numUniverses];
+    packetOffset = new int[numUniverses];
+    payloadOffset = new int[numUniverses];
+    int offset = 0;
+    for (int u = 0; u < numUniverses; u++) {
+      int dataLength = protocol.getDataLength(universeIndices[u].length);
+      protocol.writeDataHeader(buffer, offset, universeNumbers[u], dataLength);
+      packetOffset[u] = offset;
+      payloadOffset[u] = offset + headerLength;
+      packets[u] = slice(buffer, offset, headerLength + dataLength);
+      destinations[u] = protocol.getDataDestination(universeNumbers[u]);
+      offset += headerLength + dataLength;
+    }
+    syncOffset = offset;
+    lastSentMillis = new long[numUniverses];
+    if (syncLength > 0) {
+      protocol.writeSyncPacket(buffer, offset);
+      syncPacket = slice(buffer, offset, syncLength);
+      syncDestination = protocol.getSyncDestination();
+    } else {
+      syncPacket = null;
+      syncDestination = null;
+    }
+
+    ditherError = new int[totalPixels * 3];
+
+    identityTable = new int[totalPixels];
+    for (int i = 0; i < totalPixels; i++) {
+      identityTable[i] = i;
+    }
+
+    channel = DatagramChannel.open();
+
+    if (threaded) {
+      exchange = new FrameExchange(totalPixels);
+      senderThread = new SenderThread(senderFps);
+      senderThread.start();
+    } else {
+      exchange = null;
+      senderThread = null;
+    }
+  }
+
+  static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+    ByteBuffer dup = buffer.duplicate();
+    dup.position(offset);
+    dup.limit(offset + length);
+    return dup.slice();
+  }
+
+  public DmxProtocol getProtocol() {
+    return protocol;
+  }
+
+  public int getNumUniverses() {
+    return packets.length;
+  }
+
+  public int getNumPixels() {
+    return indexTable.length;
+  }
+
+  public int[] getUniverseNumbers() {
+    return universeNumbers.clone();
+  }
+
+  public boolean isThreaded() {
+    return senderThread != null;
+  }
+
+  /**
+   * Enables skipping universes whose payload has not changed since they were last sent.  Each universe is
+   * still resent at least every keepaliveMillis so the controller does not time out, and the sync packet is
+   * only sent on frames where something changed.
+   *
+   * @param enabled Whether to skip unchanged universes.
+   * @param keepaliveMillis Maximum time between sends of an unchanged universe.
+   */
+  public void setDirtySuppression(boolean enabled, int keepaliveMillis) {
+    this.keepaliveMillis = keepaliveMillis;
+    this.suppressUnchanged = enabled;
+  }
+
+  /**
+   * Paces each output to its maximum refresh rate.  The scheduler's universe count must match this output's.
+   *
+   * @param scheduler The scheduler, or null to send every output every frame.
+   */
+  public void setScheduler(OutputScheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  public OutputScheduler getScheduler() {
+    return scheduler;
+  }
+
+  /**
+   * Hands sending sync to a coordinator.  Instead of sending sync after its universes, this output reports
+   * each frame to the coordinator, which sends sync once all of its outputs have reported.
+   *
+   * @param coordinator The coordinator, or null to send our own sync.
+   * @param participant This output's index in the coordinator.
+   */
+  public void setSyncCoordinator(SyncCoordinator coordinator, int participant) {
+    this.syncParticipant = participant;
+    this.syncCoordinator = coordinator;
+  }
+
+  public SyncCoordinator getSyncCoordinator() {
+    return syncCoordinator;
+  }
+
+  /**
+   * Sends our sync packet with the given sequence number.  Called by the SyncCoordinator, from whichever
+   * thread releases the sync.
+   *
+   * @return false if there is no sync packet or it could not be sent.
+   */
+  boolean sendSync(byte syncSequence) {
+    if (syncPacket == null) {
+      return false;
+    }
+    protocol.writeSyncSequence(buffer, syncOffset, syncSequence);
+    syncPacket.rewind();
+    try {
+      channel.send(syncPacket, syncDestination);
+      syncFailed = false;
+      return true;
+    } catch (IOException ioex) {
+      if (!syncFailed) {
+        logger.log(Level.WARNING, "Error sending " + protocol.getName() + " sync", ioex);
+      }
+      syncFailed = true;
+      return false;
+    }
+  }
+
+  /**
+   * Records send times into timings.  Its universe count must match this output's.
+   *
+   * @param timings The histograms to record into, or null to stop timing.
+   */
+  public void setTimings(SendTimings timings) {
+    if (timings != null && timings.getNumUniverses() != packets.length) {
+      throw new IllegalArgumentException("Timings for " + timings.getNumUniverses() + " universes, output has "
+          + packets.length);
+    }
+    this.timings = timings;
+  }
+
+  public SendTimings getTimings() {
+    return timings;
+  }
+
+  /**
+   * Number of universe packets sent on the most recent frame.
+   */
+  public int getLastFrameSent() {
+    return lastFrameSent;
+  }
+
+  /**
+   * Number of universe packets skipped on the most recent frame, either as unchanged or because their
+   * output was not due yet.
+   */
+  public int getLastFrameSkipped() {
+    return lastFrameSkipped;
+  }
+
+  public long getTotalSent() {
+    return totalSent;
+  }
+
+  public long getTotalSkipped() {
+    return totalSkipped;
+  }
+
+  /**
+   * Frames the engine published that the sender thread never picked up because a newer frame replaced
+   * them first.  Always 0 when not threaded.
+   */
+  public long getOverwrittenFrames() {
+    return exchange != null ? exchange.getOverwrittenFrames() : 0;
+  }
+
+  /**
+   * The System.nanoTime() at which the engine handed us the frame most recently packed.  It is updated
+   * before that frame's packets go out, so a loopback receiver can measure engine-to-wire latency.
+   */
+  public long getLastFrameNanos() {
+    return lastFrameNanos;
+  }
+
+  /**
+   * Frames that were packed but not sent because of a send error or error backoff.
+   */
+  public long getDroppedFrames() {
+    return droppedFrames;
+  }
+
+  @Override
+  public void setGammaDelegate(LXOutput gammaDelegate) {
+    this.gammaDelegate = gammaDelegate;
+    super.setGammaDelegate(gammaDelegate);
+  }
+
+  @Override
+  protected void onSend(int[] colors, double brightness) {
+    // Dithering needs the brightness at full precision, not just the engine's 8 bit lookup table, and the
+    // gamma that table was built with.
+    frameBrightness = brightness;
+    engineGamma = lookupGamma();
+    super.onSend(colors, brightness);
+  }
+
+  /**
+   * The gamma of the lookup table LXOutput.getGammaLut() hands us, found the same way it finds the table.
+   */
+  private double lookupGamma() {
+    LXOutput output = this;
+    while (output.gammaMode.getEnum() == LXOutput.GammaMode.INHERIT) {
+      LXOutput next = output == this && gammaDelegate != null ? gammaDelegate : null;
+      if (next == null && output.getParent() instanceof LXOutput) {
+        next = (LXOutput)output.getParent();
+      }
+      if (next == null) {
+        return 1.0;
+      }
+      output = next;
+    }
+    return output.gamma.getValue();
+  }
+
+  @Override
+  protected void onSend(int[] colors, byte[] glut) {
+    SyncCoordinator coordinator = syncCoordinator;
+    long frameNumber = coordinator != null ? coordinator.getEngineFrame() : 0;
+    if (senderThread != null) {
+      int[] frame = exchange.getBackBuffer();
+      for (int i = 0; i < indexTable.length; i++) {
+        frame[i] = colors[indexTable[i]];
+      }
+      exchange.publish(glut, frameBrightness, frameNumber);
+      LockSupport.unpark(senderThread);
+    } else {
+      packAndSend(colors, indexTable, glut, frameBrightness, System.nanoTime(), frameNumber);
+    }
+  }
+
+  /**
+   * Writes the payload of every universe and sends the packets followed by the sync packet.
+   *
+   * @param colors Color values.
+   * @param table Index into colors for each pixel in wire order.
+   * @param glut Gamma/brightness lookup table.
+   * @param brightness Engine brightness, used by dithered universes instead of glut.
+   * @param frameNanos System.nanoTime() when the engine produced this frame.
+   * @param frameNumber The engine frame number for the sync coordinator.
+   */
+  private void packAndSend(int[] colors, int[] table, byte[] glut, double brightness, long frameNanos,
+                           long frameNumber) {
+    long now = System.currentTimeMillis();
+    SyncCoordinator coordinator = syncCoordinator;
+    if (sendAfter > now) {
+      droppedFrames = droppedFrames + 1;
+      // Don't hold up the other outputs' sync.
+      if (coordinator != null) {
+        coordinator.arrive(syncParticipant, frameNumber, false);
+      }
+      return;
+    }
+    lastFrameNanos = frameNanos;
+    if (++sequence == 0) {
+      ++sequence;
+    }
+    boolean suppress = suppressUnchanged;
+    int keepalive = keepaliveMillis;
+    OutputScheduler sched = scheduler;
+    SendTimings times = timings;
+    double glutGamma = engineGamma;
+    long startNanos = System.nanoTime();
+    if (sched != null) {
+      sched.beginFrame(startNanos);
+    }
+    int sent = 0;
+    boolean anyChanged = false;
+    try {
+      for (int u = 0; u < packets.length; u++) {
+        if (sched != null && !sched.isDue(u)) {
+          continue;
+        }
+        int offset = payloadOffset[u];
+        int diff = 0;
+        ColorTransform transform = universeTransforms[u];
+        if (transform != null && transform.isDithering()) {
+          diff = packDithered(colors, table, u, transform.getTable16(brightness, glutGamma), transform.getByteOffsets());
+        } else {
+          byte[] lut = glut;
+          int rOffset = 0, gOffset = 1, bOffset = 2;
+          if (transform != null) {
+            lut = transform.getTable(glut, glutGamma);
+            int[] byteOffsets = transform.getByteOffsets();
+            rOffset = byteOffsets[0];
+            gOffset = byteOffsets[1];
+            bOffset = byteOffsets[2];
+          }
+          for (int i = universeStart[u]; i < universeStart[u + 1]; i++) {
+            int color = colors[table[i]];
+            byte r = lut[(color >> 16) & 0xff];
+            byte g = lut[(color >> 8) & 0xff];
+            byte b = lut[color & 0xff];
+            diff |= (buffer.get(offset + rOffset) ^ r) | (buffer.get(offset + gOffset) ^ g) | (buffer.get(offset + bOffset) ^ b);
+            buffer.put(offset + rOffset, r);
+            buffer.put(offset + gOffset, g);
+            buffer.put(offset + bOffset, b);
+            offset += 3;
+          }
+        }
+        anyChanged |= diff != 0;
+        if (!suppress || diff != 0 || now - lastSentMillis[u] >= keepalive) {
+          protocol.writeSequence(buffer, packetOffset[u], sequence);
+          packets[u].rewind();
+          long sendNanos = System.nanoTime();
+          channel.send(packets[u], destinations[u]);
+          if (times != null) {
+            times.recordUniverse(u, System.nanoTime() - sendNanos);
+          }
+          lastSentMillis[u] = now;
+          ++sent;
+        }
+      }
+      boolean sync = coordinator == null && syncPacket != null && (!suppress || anyChanged);
+      if (coordinator != null) {
+        coordinator.arrive(syncParticipant, frameNumber, !suppress || anyChanged);
+      } else if (sync) {
+        protocol.writeSyncSequence(buffer, syncOffset, sequence);
+        syncPacket.rewind();
+        long sendNanos = System.nanoTime();
+        channel.send(syncPacket, syncDestination);
+        if (times != null) {
+          times.recordSync(System.nanoTime() - sendNanos);
+        }
+      }
+      if (times != null && (sent > 0 || sync)) {
+        times.recordFrame(frameNanos, startNanos, System.nanoTime());
+      }
+      if (failureCount > 0) {
+        logger.info("Recovered " + protocol.getName() + " connectivity");
+      }
+      failureCount = 0;
+      sendAfter = 0;
+    } catch (IOException ioex) {
+      // The buffer no longer matches what the controller has, so resend everything next time.
+      Arrays.fill(lastSentMillis, 0);
+      if (sched != null) {
+        sched.reset();
+      }
+      if (coordinator != null) {
+        coordinator.arrive(syncParticipant, frameNumber, false);
+      }
+      droppedFrames = droppedFrames + 1;
+      if (failureCount == 0) {
+        logger.log(Level.WARNING, "Error sending " + protocol.getName(), ioex);
+      }
+      ++failureCount;
+      if (failureCount >= 3) {
+        long waitFor = (long) (50 * Math.pow(2, Math.min(5, failureCount - 3)));
+        sendAfter = now + waitFor;
+      }
+    }
+    lastFrameSent = sent;
+    lastFrameSkipped = packets.length - sent;
+    totalSent = totalSent + sent;
+    totalSkipped = totalSkipped + packets.length - sent;
+  }
+
+  /**
+   * Packs a universe from 8.8 fixed point values, carrying each channel's fractional part into the next
+   * frame.  The error is always 0-255, so the sum never exceeds 65535 and never needs clamping.
+   *
+   * @return non-zero if any byte changed.
+   */
+  private int packDithered(int[] colors, int[] table, int u, char[] table16, int[] byteOffsets) {
+    int offset = payloadOffset[u];
+    int diff = 0;
+    for (int i = universeStart[u]; i < universeStart[u + 1]; i++) {
+      int color = colors[table[i]];
+      int e = i * 3;
+      for (int c = 0; c < 3; c++) {
+        int channel = (color >> (16 - 8 * c)) & 0xff;
+        int v = table16[channel] + ditherError[e + c];
+        int out = v >> 8;
+        ditherError[e + c] = v - (out << 8);
+        int pos = offset + byteOffsets[c];
+        diff |= buffer.get(pos) ^ (byte)out;
+        buffer.put(pos, (byte)out);
+      }
+      offset += 3;
+    }
+    return diff;
+  }
+
+  /**
+   * Packs and sends the newest published frame.  Parks until the engine publishes a frame, and never sends
+   * faster than the configured frame rate.
+   */
+  private class SenderThread extends Thread {
+    private final long minFrameNanos;
+    private volatile boolean running = true;
+
+    SenderThread(float fps) {
+      super("Kaledoscope " + protocol.getName() + " Sender");
+      setDaemon(true);
+      minFrameNanos = fps > 0 ? (long)(1000000000L / fps) : 0;
+    }
+
+    @Override
+    public void run() {
+      long lastSendNanos = System.nanoTime() - minFrameNanos;
+      while (running) {
+        long wait = lastSendNanos + minFrameNanos - System.nanoTime();
+        if (wait > 0) {
+          LockSupport.parkNanos(this, wait);
+          continue;
+        }
+        if (!exchange.acquire()) {
+          LockSupport.park(this);
+          continue;
+        }
+        lastSendNanos = System.nanoTime();
+        packAndSend(exchange.getFrontBuffer(), identityTable, exchange.getFrontGlut(), exchange.getFrontBrightness(),
+            exchange.getFrontTimestamp(), exchange.getFrontFrameNumber());
+      }
+    }
+
+    void shutdown() {
+      running = false;
+      LockSupport.unpark(this);
+      try {
+        join(1000);
+      } catch (InterruptedException iex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Stops the sender thread and closes the channel, without touching the LX component registry, so it can be
+   * called from any thread.  dispose() must still be called on the engine thread afterwards.
+   */
+  public void close() {
+    if (senderThread != null) {
+      senderThread.shutdown();
+    }
+    try {
+      channel.close();
+    } catch (IOException ioex) {
+      logger.log(Level.WARNING, "Error closing " + protocol.getName() + " channel", ioex);
+    }
+  }
+
+  @Override
+  public void dispose() {
+    close();
+    super.dispose();
+  }
+}
@@ -0,0 +1,274 @@
+package art.lookingup.output;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Estimates the current each strand draws from the colors about to be sent, and dims the strands that would
+ * draw more than their power supply and cable can deliver.  Long runs brown out at the far end on full white
+ * otherwise.
+ *
+ * Each LED is modeled as an idle current plus a fixed current per color channel at full, scaled by the channel
+ * value and the engine brightness.  Gamma is ignored, which overestimates, so the limiter errs on the safe
+ * side.  Points are the addresses that are sent, and a point drives one LED per address, or several where
+ * LEDs are wired together like a flower's petals.  A strand is powered at its start and again every
+ * injectLeds LEDs, and each injection point is assumed to feed the LEDs up to the next one.  A strand is over budget if the whole strand is over the strand
+ * budget or any of its injection segments is over the injection budget.  Only the channel current of an over
+ * budget strand is scaled, uniformly across the strand, by just enough to bring it back within budget.  Other
+ * strands are left as they are.
+ *
+ * All tables are built at construction, and limiting is one pass over the points summing channels into
+ * primitive arrays, plus a copy and a scaling pass only on frames where some strand is over.  Nothing is
+ * allocated per frame.  limit() must only be called from one thread.
+ */
+public class PowerLimiter {
+  public static final float DEFAULT_MA_PER_CHANNEL = 20f;
+  public static final float DEFAULT_IDLE_MA = 1f;
+
+  /**
+   * The strands and their budgets.  Not modified after construction.
+   */
+  static public class Budget {
+    final int[] strandIds;
+    // Color buffer indices of every point, strand by strand in wire order.
+    final int[] points;
+    // Number of LEDs driven by each point.
+    final int[] pointLeds;
+    // Index into points of the first point of each strand, numStrands + 1 entries.
+    final int[] strandStart;
+    // Index into points of the first point of each injection segment, numSegments + 1 entries.
+    final int[] segmentStart;
+    // Number of LEDs in each strand and each segment.
+    final int[] strandLeds;
+    final int[] segmentLeds;
+    // Index of the first segment of each strand, numStrands + 1 entries.
+    final int[] strandFirstSegment;
+    final float strandMaxMa;
+    final float segmentMaxMa;
+    final float maPerChannel;
+    final float idleMa;
+
+    /**
+     * @param strandIds Strand id of each strand, for reports.
+     * @param strandPoints Color buffer indices of the points of each strand, in wire order.
+     * @param strandPointLeds Number of LEDs driven by each point of each strand, or null for one each.
+     * @param injectLeds LEDs fed by each power injection point, 0 if each strand is only powered at its start.
+     * @param strandMaxAmps Most current a strand may draw.
+     * @param injectMaxAmps Most current an injection point may supply.
+     * @param maPerChannel Current of one color channel at full, in mA.
+     * @param idleMa Current of a dark LED, in mA.
+     */
+    public Budget(int[] strandIds, int[][] strandPoints, int[][] strandPointLeds, int injectLeds,
+                  float strandMaxAmps, float injectMaxAmps, float maPerChannel, float idleMa) {
+      if (strandIds.length != strandPoints.length) {
+        throw new IllegalArgumentException("Strand id count " + strandIds.length + " != strand count " + strandPoints.length);
+      }
+      if (strandMaxAmps <= 0 || injectMaxAmps <= 0) {
+        throw new IllegalArgumentException("Power budgets must be positive");
+      }
+      this.strandIds = strandIds.clone();
+      int numStrands = strandPoints.length;
+      strandStart = new int[numStrands + 1];
+      strandFirstSegment = new int[numStrands + 1];
+      strandLeds = new int[numStrands];
+      int totalPoints = 0;
+      for (int s = 0; s < numStrands; s++) {
+        strandStart[s] = totalPoints;
+        totalPoints += strandPoints[s].length;
+        if (strandPointLeds != null && strandPointLeds[s].length != strandPoints[s].length) {
+          throw new IllegalArgumentException("Strand " + strandIds[s] + " has " + strandPoints[s].length
+              + " points but " + strandPointLeds[s].length + " LED counts");
+        }
+      }
+      strandStart[numStrands] = totalPoints;
+      points = new int[totalPoints];
+      pointLeds = new int[totalPoints];
+      for (int s = 0; s < numStrands; s++) {
+        System.arraycopy(strandPoints[s], 0, points, strandStart[s], strandPoints[s].length);
+        for (int i = 0; i < strandPoints[s].length; i++) {
+          int leds = strandPointLeds != null ? strandPointLeds[s][i] : 1;
+          if (leds < 1) {
+            throw new IllegalArgumentException("Strand " + strandIds[s] + " point " + i + " drives " + leds + " LEDs");
+          }
+          pointLeds[strandStart[s] + i] = leds;
+        }
+      }
+
+      // A segment ends at the first point that brings it to injectLeds LEDs, so the segments of points that
+      // drive several LEDs may run slightly over.
+      List<Integer> starts = new ArrayList<Integer>();
+      List<Integer> ledCounts = new ArrayList<Integer>();
+      for (int s = 0; s < numStrands; s++) {
+        strandFirstSegment[s] = starts.size();
+        int segLeds = 0;
+        for (int i = strandStart[s]; i < strandStart[s + 1]; i++) {
+          if (i == strandStart[s] || (injectLeds > 0 && segLeds >= injectLeds)) {
+            if (i != strandStart[s]) {
+              ledCounts.add(segLeds);
+            }
+            starts.add(i);
+            segLeds = 0;
+          }
+          segLeds += pointLeds[i];
+          strandLeds[s] += pointLeds[i];
+        }
+        if (strandStart[s + 1] > strandStart[s]) {
+          ledCounts.add(segLeds);
+        }
+      }
+      strandFirstSegment[numStrands] = starts.size();
+      segmentStart = new int[starts.size() + 1];
+      segmentLeds = new int[starts.size()];
+      for (int seg = 0; seg < segmentLeds.length; seg++) {
+        segmentStart[seg] = starts.get(seg);
+        segmentLeds[seg] = ledCounts.get(seg);
+      }
+      segmentStart[segmentLeds.length] = totalPoints;
+      this.strandMaxMa = strandMaxAmps * 1000f;
+      this.segmentMaxMa = injectMaxAmps * 1000f;
+      this.maPerChannel = maPerChannel;
+      this.idleMa = idleMa;
+    }
+
+    public int getNumStrands() {
+      return strandIds.length;
+    }
+
+    public int getMaxIndex() {
+      int max = -1;
+      for (int index : points) {
+        max = Math.max(max, index);
+      }
+      return max;
+    }
+  }
+
+  private final Budget budget;
+  private final int[] limited;
+  // Channel sum of each segment this frame.
+  private final int[] segmentChannels;
+  // Estimated current of each strand this frame, before limiting.
+  private final float[] strandMa;
+  // Channel scale of each strand this frame, 0-256.
+  private final int[] strandScale;
+
+  private volatile long limitedFrames = 0;
+  private volatile long frames = 0;
+  private volatile float maxStrandMa = 0;
+
+  /**
+   * @param budget The strands and budgets.
+   * @param numColors Size of the color buffer.
+   */
+  public PowerLimiter(Budget budget, int numColors) {
+    this.budget = budget;
+    limited = new int[numColors];
+    segmentChannels = new int[budget.segmentStart.length - 1];
+    strandMa = new float[budget.strandIds.length];
+    strandScale = new int[budget.strandIds.length];
+  }
+
+  /**
+   * Returns colors with over budget strands dimmed.
+   *
+   * @param colors The colors to send.  Not modified.
+   * @param brightness The engine brightness the colors will be sent at.
+   * @return colors itself if every strand is within budget, otherwise an internal buffer that is only valid
+   * until the next call.
+   */
+  public int[] limit(int[] colors, double brightness) {
+    int[] points = budget.points;
+    int[] pointLeds = budget.pointLeds;
+    int[] segmentStart = budget.segmentStart;
+    float channelMa = (float)(budget.maPerChannel * brightness / 255.0);
+    float idleMa = budget.idleMa;
+    boolean anyOver = false;
+    float frameMaxMa = 0;
+
+    for (int seg = 0; seg < segmentChannels.length; seg++) {
+      int sum = 0;
+      for (int i = segmentStart[seg]; i < segmentStart[seg + 1]; i++) {
+        int c = colors[points[i]];
+        sum += (((c >> 16) & 0xff) + ((c >> 8) & 0xff) + (c & 0xff)) * pointLeds[i];
+      }
+      segmentChannels[seg] = sum;
+    }
+
+    for (int s = 0; s < strandMa.length; s++) {
+      // The largest fraction of channel current the strand and each of its segments can take.
+      float fraction = 1f;
+      float totalChannelMa = 0;
+      for (int seg = budget.strandFirstSegment[s]; seg < budget.strandFirstSegment[s + 1]; seg++) {
+        float segChannelMa = segmentChannels[seg] * channelMa;
+        float segIdleMa = budget.segmentLeds[seg] * idleMa;
+        if (segIdleMa + segChannelMa > budget.segmentMaxMa) {
+          fraction = Math.min(fraction, Math.max(0, budget.segmentMaxMa - segIdleMa) / segChannelMa);
+        }
+        totalChannelMa += segChannelMa;
+      }
+      float strandIdleMa = budget.strandLeds[s] * idleMa;
+      float total = strandIdleMa + totalChannelMa;
+      if (total > budget.strandMaxMa) {
+        fraction = Math.min(fraction, Math.max(0, budget.strandMaxMa - strandIdleMa) / totalChannelMa);
+      }
+      strandMa[s] = total;
+      frameMaxMa = Math.max(frameMaxMa, total);
+      strandScale[s] = (int)(fraction * 256);
+      anyOver |= fraction < 1f;
+    }
+    frames = frames + 1;
+    if (frameMaxMa > maxStrandMa) {
+      maxStrandMa = frameMaxMa;
+    }
+    if (!anyOver) {
+      return colors;
+    }
+
+    System.arraycopy(colors, 0, limited, 0, Math.min(colors.length, limited.length));
+    for (int s = 0; s < strandScale.length; s++) {
+      int scale = strandScale[s];
+      if (scale >= 256) {
+        continue;
+      }
+      for (int i = budget.strandStart[s]; i < budget.strandStart[s + 1]; i++) {
+        int index = points[i];
+        int c = limited[index];
+        int r = (((c >> 16) & 0xff) * scale) >> 8;
+        int g = (((c >> 8) & 0xff) * scale) >> 8;
+        int b = ((c & 0xff) * scale) >> 8;
+        limited[index] = (c & 0xff000000) | (r << 16) | (g << 8) | b;
+      }
+    }
+    limitedFrames = limitedFrames + 1;
+    return limited;
+  }
+
+  public Budget getBudget() {
+    return budget;
+  }
+
+  /**
+   * Estimated current of a strand on the last frame, before limiting, in mA.
+   */
+  public float getStrandMilliamps(int strand) {
+    return strandMa[strand];
+  }
+
+  public long getLimitedFrames() {
+    return limitedFrames;
+  }
+
+  @Override
+  public String toString() {
+    int highest = 0;
+    for (int s = 1; s < strandMa.length; s++) {
+      if (strandMa[s] > strandMa[highest]) {
+        highest = s;
+      }
+    }
+    return String.format(Locale.ROOT, "power limiter: limited %d of %d frames, peak strand %.2fA, last frame highest strand %d at %.2fA",
+        limitedFrames, frames, maxStrandMa / 1000f, strandMa.length > 0 ? budget.strandIds[highest] : -1,
+        strandMa.length > 0 ? strandMa[highest] / 1000f : 0f);
+  }
+}
@@ -0,0 +1,153 @@
+package art.lookingup.output;
+
+/**
+ * Send timing histograms for one PackedOutput, i.e. one controller.  When the lights stutter these separate
+ * the possible causes:
+ *
+ *   latency   engine frame to last packet of that frame out.  Includes any wait for the sender thread.
+ *   interval  between the last packets of consecutive frames.  Its spread is the jitter the pixels see.
+ *   frame     first packet to last packet of a frame, i.e. the whole send.
+ *   universe  each universe's send call, for the controller and per output.
+ *   sync      the sync packet's send call.
+ *
+ * A slow frame shows up as high latency with normal send times, while a slow or congested link to one
+ * controller shows up in that controller's universe and sync times, and an overloaded output in its own.
+ *
+ * Only the sending thread of the output records, and nothing is allocated while recording.
+ */
+public class SendTimings {
+  private final String name;
+  private final int[][] universeOutputs;
+  private final int[] outputNumbers;
+
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final LatencyHistogram interval = new LatencyHistogram();
+  private final LatencyHistogram frameSend = new LatencyHistogram();
+  private final LatencyHistogram universeSend = new LatencyHistogram();
+  private final LatencyHistogram syncSend = new LatencyHistogram();
+  private final LatencyHistogram[] outputSend;
+
+  private long lastFrameEndNanos = 0;
+
+  /**
+   * @param name Name of the controller for reports.
+   * @param universeOutputs For each universe, the indices of the outputs it carries pixels for.
+   * @param outputNumbers For each output, its 1-based output number as shown in MappingConfig.
+   */
+  public SendTimings(String name, int[][] universeOutputs, int[] outputNumbers) {
+    this.name = name;
+    this.universeOutputs = new int[universeOutputs.length][];
+    this.outputNumbers = outputNumbers.clone();
+    outputSend = new LatencyHistogram[outputNumbers.length];
+    for (int o = 0; o < outputSend.length; o++) {
+      outputSend[o] = new LatencyHistogram();
+    }
+    for (int u = 0; u < universeOutputs.length; u++) {
+      for (int output : universeOutputs[u]) {
+        if (output < 0 || output >= outputNumbers.length) {
+          throw new IllegalArgumentException("Universe " + u + " belongs to unknown output " + output);
+        }
+      }
+      this.universeOutputs[u] = universeOutputs[u].clone();
+    }
+  }
+
+  public int getNumUniverses() {
+    return universeOutputs.length;
+  }
+
+  /**
+   * Records a universe's send time, against each output the universe carries pixels for.
+   */
+  public void recordUniverse(int universe, long sendNanos) {
+    universeSend.record(sendNanos);
+    int[] outputs = universeOutputs[universe];
+    for (int i = 0; i < outputs.length; i++) {
+      outputSend[outputs[i]].record(sendNanos);
+    }
+  }
+
+  public void recordSync(long sendNanos) {
+    syncSend.record(sendNanos);
+  }
+
+  /**
+   * Records a frame once its last packet is out.
+   *
+   * @param engineNanos System.nanoTime() when the engine produced the frame.
+   * @param startNanos System.nanoTime() before the first packet was sent.
+   * @param endNanos System.nanoTime() after the last packet was sent.
+   */
+  public void recordFrame(long engineNanos, long startNanos, long endNanos) {
+    latency.record(endNanos - engineNanos);
+    frameSend.record(endNanos - startNanos);
+    if (lastFrameEndNanos != 0) {
+      interval.record(endNanos - lastFrameEndNanos);
+    }
+    lastFrameEndNanos = endNanos;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public LatencyHistogram getLatency() {
+    return latency;
+  }
+
+  public LatencyHistogram getInterval() {
+    return interval;
+  }
+
+  public LatencyHistogram getFrameSend() {
+    return frameSend;
+  }
+
+  public LatencyHistogram getUniverseSend() {
+    return universeSend;
+  }
+
+  public LatencyHistogram getSyncSend() {
+    return syncSend;
+  }
+
+  public int getNumOutputs() {
+    return outputSend.length;
+  }
+
+  public int getOutputNumber(int output) {
+    return outputNumbers[output];
+  }
+
+  public LatencyHistogram getOutputSend(int output) {
+    return outputSend[output];
+  }
+
+  public void reset() {
+    latency.reset();
+    interval.reset();
+    frameSend.reset();
+    universeSend.reset();
+    syncSend.reset();
+    for (LatencyHistogram histogram : outputSend) {
+      histogram.reset();
+    }
+  }
+
+  /**
+   * A multi-line report of every histogram, controller first and then each output.
+   */
+  public String report() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(name).append('\n');
+    sb.append("  latency  ").append(latency.summary()).append('\n');
+    sb.append("  interval ").append(interval.summary()).append('\n');
+    sb.append("  frame    ").append(frameSend.summary()).append('\n');
+    sb.append("  universe ").append(universeSend.summary()).append('\n');
+    sb.append("  sync     ").append(syncSend.summary());
+    for (int o = 0; o < outputSend.length; o++) {
+      sb.append('\n').append("  output ").append(outputNumbers[o]).append(' ').append(outputSend[o].summary());
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,213 @@
+package art.lookingup.output;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Streaming ACN (E1.31-2016) data packets with a configurable priority, sent either unicast to a single
+ * controller or to the standard per-universe multicast group 239.255.{hi}.{lo}.  If a sync universe is
+ * configured, every data packet references it and an E1.31 synchronization packet is sent after each frame.
+ *
+ * Priority lets a backup node run at a lower priority on the same network; receivers follow the highest
+ * priority source they can hear.
+ *
+ * See: https://tsp.esta.org/tsp/documents/docs/ANSI_E1-31-2018.pdf
+ */
+public class StreamingACNProtocol extends DmxProtocol {
+
+  public static final int SACN_PORT = 5568;
+  public static final int DEFAULT_PRIORITY = 100;
+  public static final int MAX_PRIORITY = 200;
+
+  static final int OFFSET_DMX_DATA = 126;
+  static final int OFFSET_PRIORITY = 108;
+  static final int OFFSET_SYNC_ADDRESS = 109;
+  static final int OFFSET_SEQUENCE_NUMBER = 111;
+  static final int OFFSET_UNIVERSE_NUMBER = 113;
+
+  static final int SYNC_PACKET_LENGTH = 49;
+  static final int OFFSET_SYNC_SEQUENCE_NUMBER = 44;
+
+  static final int VECTOR_ROOT_E131_DATA = 0x00000004;
+  static final int VECTOR_ROOT_E131_EXTENDED = 0x00000008;
+  static final int VECTOR_E131_DATA_PACKET = 0x00000002;
+  static final int VECTOR_E131_EXTENDED_SYNCHRONIZATION = 0x00000001;
+
+  private static final String SOURCE_NAME = "Kaledoscope";
+
+  private final InetAddress unicastAddress;
+  private final int port;
+  private final int priority;
+  private final int syncUniverse;
+  private final byte[] cid;
+
+  /**
+   * Creates an sACN protocol.
+   *
+   * @param unicastAddress Controller address, or null to send each universe to its multicast group.
+   * @param priority Source priority, 0-200.  Default is 100.
+   * @param syncUniverse Universe to send synchronization packets on, or 0 for no sync.
+   */
+  public StreamingACNProtocol(InetAddress unicastAddress, int priority, int syncUniverse) {
+    if (priority < 0 || priority > MAX_PRIORITY) {
+      throw new IllegalArgumentException("sACN priority must be 0-" + MAX_PRIORITY + ": " + priority);
+    }
+    this.unicastAddress = unicastAddress;
+    this.port = SACN_PORT;
+    this.priority = priority;
+    this.syncUniverse = syncUniverse;
+    // Component identifier, unique per sender for the life of this process.
+    UUID uuid = UUID.randomUUID();
+    ByteBuffer uuidBytes = ByteBuffer.allocate(16);
+    uuidBytes.putLong(uuid.getMostSignificantBits());
+    uuidBytes.putLong(uuid.getLeastSignificantBits());
+    this.cid = uuidBytes.array();
+  }
+
+  /**
+   * The standard multicast group for an sACN universe.
+   */
+  static public InetAddress multicastAddress(int universeNumber) {
+    byte[] addr = new byte[] { (byte)239, (byte)255, (byte)((universeNumber >> 8) & 0xff), (byte)(universeNumber & 0xff) };
+    try {
+      return InetAddress.getByAddress(addr);
+    } catch (UnknownHostException uhex) {
+      // Only thrown for an illegal address length.
+      throw new IllegalStateException(uhex);
+    }
+  }
+
+  public boolean isMulticast() {
+    return unicastAddress == null;
+  }
+
+  public int getPriority() {
+    return priority;
+  }
+
+  @Override
+  public String getName() {
+    return "sACN";
+  }
+
+  @Override
+  public int getHeaderLength() {
+    return OFFSET_DMX_DATA;
+  }
+
+  @Override
+  public int getDataLength(int numPixels) {
+    return numPixels * 3;
+  }
+
+  private static void putShort(ByteBuffer buf, int offset, int value) {
+    buf.put(offset, (byte)((value >> 8) & 0xff));
+    buf.put(offset + 1, (byte)(value & 0xff));
+  }
+
+  private static void putInt(ByteBuffer buf, int offset, int value) {
+    buf.put(offset, (byte)((value >> 24) & 0xff));
+    buf.put(offset + 1, (byte)((value >> 16) & 0xff));
+    buf.put(offset + 2, (byte)((value >> 8) & 0xff));
+    buf.put(offset + 3, (byte)(value & 0xff));
+  }
+
+  private static void putFlagsAndLength(ByteBuffer buf, int offset, int length) {
+    putShort(buf, offset, 0x7000 | (length & 0x0fff));
+  }
+
+  /**
+   * Root layer shared by data and sync packets, bytes 0-37.
+   */
+  private void writeRootLayer(ByteBuffer buf, int offset, int packetLength, int vector) {
+    // Preamble size
+    putShort(buf, offset, 0x0010);
+    // Post-amble size
+    putShort(buf, offset + 2, 0x0000);
+    // ACN Packet Identifier
+    byte[] acnId = { 0x41, 0x53, 0x43, 0x2d, 0x45, 0x31, 0x2e, 0x31, 0x37, 0x00, 0x00, 0x00 };
+    for (int i = 0; i < acnId.length; i++) {
+      buf.put(offset + 4 + i, acnId[i]);
+    }
+    putFlagsAndLength(buf, offset + 16, packetLength - 16);
+    putInt(buf, offset + 18, vector);
+    for (int i = 0; i < 16; i++) {
+      buf.put(offset + 22 + i, cid[i]);
+    }
+  }
+
+  @Override
+  public void writeDataHeader(ByteBuffer buf, int offset, int universeNumber, int dataLength) {
+    int packetLength = OFFSET_DMX_DATA + dataLength;
+    writeRootLayer(buf, offset, packetLength, VECTOR_ROOT_E131_DATA);
+
+    // Framing layer
+    putFlagsAndLength(buf, offset + 38, packetLength - 38);
+    putInt(buf, offset + 40, VECTOR_E131_DATA_PACKET);
+    byte[] name = SOURCE_NAME.getBytes(StandardCharsets.UTF_8);
+    for (int i = 0; i < 64; i++) {
+      buf.put(offset + 44 + i, i < name.length ? name[i] : 0);
+    }
+    buf.put(offset + OFFSET_PRIORITY, (byte)priority);
+    putShort(buf, offset + OFFSET_SYNC_ADDRESS, syncUniverse);
+    buf.put(offset + OFFSET_SEQUENCE_NUMBER, (byte)0);
+    // Options
+    buf.put(offset + 112, (byte)0);
+    putShort(buf, offset + OFFSET_UNIVERSE_NUMBER, universeNumber);
+
+    // DMP layer
+    putFlagsAndLength(buf, offset + 115, packetLength - 115);
+    // DMP Set Property Message PDU
+    buf.put(offset + 117, (byte)0x02);
+    // Address Type & Data Type
+    buf.put(offset + 118, (byte)0xa1);
+    // First Property Address
+    putShort(buf, offset + 119, 0x0000);
+    // Address Increment
+    putShort(buf, offset + 121, 0x0001);
+    // Property value count, including the start code
+    putShort(buf, offset + 123, 1 + dataLength);
+    // DMX Start code
+    buf.put(offset + 125, (byte)0x00);
+  }
+
+  @Override
+  public void writeSequence(ByteBuffer buf, int offset, byte sequence) {
+    buf.put(offset + OFFSET_SEQUENCE_NUMBER, sequence);
+  }
+
+  @Override
+  public int getSyncLength() {
+    return syncUniverse > 0 ? SYNC_PACKET_LENGTH : 0;
+  }
+
+  @Override
+  public void writeSyncPacket(ByteBuffer buf, int offset) {
+    writeRootLayer(buf, offset, SYNC_PACKET_LENGTH, VECTOR_ROOT_E131_EXTENDED);
+    putFlagsAndLength(buf, offset + 38, SYNC_PACKET_LENGTH - 38);
+    putInt(buf, offset + 40, VECTOR_E131_EXTENDED_SYNCHRONIZATION);
+    buf.put(offset + OFFSET_SYNC_SEQUENCE_NUMBER, (byte)0);
+    putShort(buf, offset + 45, syncUniverse);
+    // Reserved
+    putShort(buf, offset + 47, 0x0000);
+  }
+
+  @Override
+  public void writeSyncSequence(ByteBuffer buf, int offset, byte sequence) {
+    buf.put(offset + OFFSET_SYNC_SEQUENCE_NUMBER, sequence);
+  }
+
+  @Override
+  public InetSocketAddress getDataDestination(int universeNumber) {
+    return new InetSocketAddress(unicastAddress != null ? unicastAddress : multicastAddress(universeNumber), port);
+  }
+
+  @Override
+  public InetSocketAddress getSyncDestination() {
+    return new InetSocketAddress(unicastAddress != null ? unicastAddress : multicastAddress(syncUniverse), port);
+  }
+}
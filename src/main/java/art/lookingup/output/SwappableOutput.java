@@ -0,0 +1,166 @@
+package art.lookingup.output;
+
+import heronarts.lx.LX;
+import heronarts.lx.output.LXOutput;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A permanent child of the engine output that sends to a set of PackedOutputs which can be replaced while
+ * running.  New outputs are handed over with {@link #swap(PackedOutput[], SyncCoordinator, PowerLimiter, int)}.
+ * The engine picks them up at the start of its next frame, so every frame goes entirely to either the old or
+ * the new outputs, and nothing is ever removed from the engine's output group, which can not be modified
+ * while the engine is iterating it.
+ *
+ * PackedOutputs are LX components, and the LX component registry is not thread safe, so they must be built
+ * and disposed on the engine thread, or before the engine starts.  Replaced outputs are closed on a
+ * background thread, since closing a threaded PackedOutput waits for its sender thread to stop, and then
+ * disposed by an engine task.
+ *
+ * The outputs may come with a SyncCoordinator, which is told about each engine frame before it is sent to
+ * the outputs, and a PowerLimiter, which dims the frame's over budget strands before it is sent.
+ */
+public class SwappableOutput extends LXOutput {
+
+  // A set of outputs with the coordinator syncing them and the limiter for their colors, swapped as one.
+  static private class OutputSet {
+    final PackedOutput[] outputs;
+    final SyncCoordinator coordinator;
+    final PowerLimiter limiter;
+    // Size of the model the outputs were built for, or -1 for any.
+    final int modelSize;
+
+    OutputSet(PackedOutput[] outputs, SyncCoordinator coordinator, PowerLimiter limiter, int modelSize) {
+      this.outputs = outputs;
+      this.coordinator = coordinator;
+      this.limiter = limiter;
+      this.modelSize = modelSize;
+    }
+  }
+
+  private volatile OutputSet active = new OutputSet(new PackedOutput[0], null, null, -1);
+  private final AtomicReference<OutputSet> pending = new AtomicReference<OutputSet>();
+  private final ExecutorService disposer = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "Kaledoscope Output Disposer");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public SwappableOutput(LX lx) {
+    super(lx, "Swappable");
+  }
+
+  /**
+   * Replaces the outputs at the next frame boundary.  If a previous swap has not been picked up yet, its
+   * outputs are disposed without ever being sent to.
+   *
+   * @param outputs The new outputs.  They must not be in any output group.
+   * @param coordinator Coordinates their sync, or null if they each send their own.  Closed when the outputs
+   *                    are replaced.
+   * @param limiter Limits the colors sent to them, or null to send colors as they are.
+   * @param modelSize Size of the model they were built for.  They are not picked up until the frames sent
+   *                  are from a model of that size, for when the model is being replaced.
+   */
+  public void swap(PackedOutput[] outputs, SyncCoordinator coordinator, PowerLimiter limiter, int modelSize) {
+    for (PackedOutput output : outputs) {
+      output.setGammaDelegate(this);
+    }
+    OutputSet replaced = pending.getAndSet(new OutputSet(outputs.clone(), coordinator, limiter, modelSize));
+    if (replaced != null) {
+      retire(replaced);
+    }
+  }
+
+  /**
+   * The outputs being sent to.
+   */
+  public PackedOutput[] getActive() {
+    return active.outputs;
+  }
+
+  /**
+   * The sync coordinator of the active outputs, or null.
+   */
+  public SyncCoordinator getSyncCoordinator() {
+    return active.coordinator;
+  }
+
+  /**
+   * The power limiter of the active outputs, or null.
+   */
+  public PowerLimiter getPowerLimiter() {
+    return active.limiter;
+  }
+
+  /**
+   * True while a swap is waiting for the next frame.
+   */
+  public boolean isSwapPending() {
+    return pending.get() != null;
+  }
+
+  private void retire(OutputSet set) {
+    if (set.outputs.length > 0 || set.coordinator != null) {
+      disposer.execute(() -> {
+        for (PackedOutput output : set.outputs) {
+          output.close();
+        }
+        if (set.coordinator != null) {
+          set.coordinator.close();
+        }
+        if (set.outputs.length > 0) {
+          lx.engine.addTask(() -> {
+            for (PackedOutput output : set.outputs) {
+              output.dispose();
+            }
+          });
+        }
+      });
+    }
+  }
+
+  @Override
+  protected void onSend(int[] colors, double brightness) {
+    OutputSet next = pending.getAndSet(null);
+    if (next != null) {
+      if (next.modelSize >= 0 && next.modelSize != colors.length) {
+        // Still a frame of the previous model.  Put it back unless a newer swap came in meanwhile.
+        if (!pending.compareAndSet(null, next)) {
+          retire(next);
+        }
+      } else {
+        retire(active);
+        active = next;
+      }
+    }
+    OutputSet current = active;
+    if (current.coordinator != null) {
+      current.coordinator.beginFrame();
+    }
+    if (current.limiter != null) {
+      colors = current.limiter.limit(colors, brightness);
+    }
+    for (PackedOutput output : current.outputs) {
+      output.send(colors, brightness);
+    }
+  }
+
+  @Override
+  protected void onSend(int[] colors, byte[] glut) {
+    // Nothing, sent to the active outputs from onSend(int[], double).
+  }
+
+  @Override
+  public void dispose() {
+    OutputSet next = pending.getAndSet(null);
+    if (next != null) {
+      retire(next);
+    }
+    retire(active);
+    active = new OutputSet(new PackedOutput[0], null, null, -1);
+    disposer.shutdown();
+    super.dispose();
+  }
+}
@@ -0,0 +1,252 @@
+package art.lookingup.output;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends one sync per engine frame across several PackedOutputs, only once every one of them has sent its
+ * universes for that frame.  Without it each output sends its own sync right after its own data, which with
+ * controllers on separate sender threads means they latch at different times, and a controller can latch
+ * before another controller's data for the frame is even out.
+ *
+ * The engine numbers each frame with {@link #beginFrame()}.  Each participating output reports with
+ * {@link #arrive(int, long, boolean)} once it has sent, or given up on, its universes for a frame.  The sync is
+ * released by the last arrival, either as one broadcast packet from here or through each output's own sync
+ * packet.  If an output has not arrived within the timeout a watchdog releases the sync anyway and counts the
+ * frame as forced.  An output that skipped frames and arrives with a newer one starts that frame, and the
+ * unfinished older frame is counted as superseded.
+ *
+ * Nothing is allocated per frame.
+ */
+public class SyncCoordinator {
+  private static final Logger logger = Logger.getLogger(SyncCoordinator.class.getName());
+
+  public static final int DEFAULT_TIMEOUT_MS = 5;
+
+  private final PackedOutput[] participants;
+  private final long timeoutNanos;
+
+  // Broadcast mode only.
+  private final DatagramChannel broadcastChannel;
+  private final ByteBuffer broadcastPacket;
+  private final InetSocketAddress broadcastDestination;
+  private final DmxProtocol broadcastProtocol;
+
+  private volatile long engineFrame = 0;
+
+  // Guarded by this.
+  private long currentFrame = -1;
+  private final boolean[] arrived;
+  private int arrivedCount = 0;
+  private boolean anyChanged = false;
+  private boolean released = true;
+  private long firstArrivalNanos = 0;
+  private byte sequence = 0;
+  private boolean broadcastFailed = false;
+
+  private volatile long syncedFrames = 0;
+  private volatile long forcedFrames = 0;
+  private volatile long supersededFrames = 0;
+  private volatile long lateArrivals = 0;
+
+  private final Thread watchdog;
+  private boolean running = true;
+
+  /**
+   * @param participants The outputs to coordinate.  Each must be told its index with
+   *                     {@link PackedOutput#setSyncCoordinator(SyncCoordinator, int)}.
+   * @param timeoutMs How long to wait after the first output arrives before forcing the sync.
+   * @param broadcastProtocol Writes the broadcast sync packet.  Null to send each output's own sync instead.
+   * @param broadcastDestination Where to send the broadcast sync.  Ignored if broadcastProtocol is null.
+   * @throws IOException if the broadcast channel can not be opened.
+   */
+  public SyncCoordinator(PackedOutput[] participants, int timeoutMs, DmxProtocol broadcastProtocol,
+                         InetSocketAddress broadcastDestination) throws IOException {
+    this.participants = participants.clone();
+    this.timeoutNanos = timeoutMs * 1000000L;
+    arrived = new boolean[participants.length];
+    if (broadcastProtocol != null && broadcastProtocol.getSyncLength() > 0) {
+      this.broadcastProtocol = broadcastProtocol;
+      this.broadcastDestination = broadcastDestination;
+      broadcastPacket = ByteBuffer.allocateDirect(broadcastProtocol.getSyncLength());
+      broadcastProtocol.writeSyncPacket(broadcastPacket, 0);
+      broadcastChannel = DatagramChannel.open();
+      broadcastChannel.socket().setBroadcast(true);
+    } else {
+      this.broadcastProtocol = null;
+      this.broadcastDestination = null;
+      broadcastPacket = null;
+      broadcastChannel = null;
+    }
+    watchdog = new Thread(this::watch, "Kaledoscope Sync Watchdog");
+    watchdog.setDaemon(true);
+    watchdog.start();
+  }
+
+  public boolean isBroadcast() {
+    return broadcastChannel != null;
+  }
+
+  /**
+   * Starts a new engine frame.  Must only be called from the engine thread, before the frame is sent to any
+   * participant.
+   */
+  public void beginFrame() {
+    engineFrame = engineFrame + 1;
+  }
+
+  /**
+   * The number of the engine frame being sent.  Participants read this as the engine hands them the frame.
+   */
+  public long getEngineFrame() {
+    return engineFrame;
+  }
+
+  /**
+   * Reports that a participant is done sending a frame.
+   *
+   * @param participant The participant's index.
+   * @param frame The engine frame number it sent.
+   * @param changed Whether anything it sent needs a sync.  If no participant changed, no sync is sent.
+   */
+  public synchronized void arrive(int participant, long frame, boolean changed) {
+    if (frame < currentFrame || (frame == currentFrame && released)) {
+      lateArrivals = lateArrivals + 1;
+      return;
+    }
+    if (frame > currentFrame) {
+      if (!released) {
+        supersededFrames = supersededFrames + 1;
+      }
+      currentFrame = frame;
+      for (int i = 0; i < arrived.length; i++) {
+        arrived[i] = false;
+      }
+      arrivedCount = 0;
+      anyChanged = false;
+      released = false;
+      firstArrivalNanos = System.nanoTime();
+      notifyAll();
+    }
+    if (!arrived[participant]) {
+      arrived[participant] = true;
+      ++arrivedCount;
+    }
+    anyChanged |= changed;
+    if (arrivedCount == arrived.length) {
+      release();
+    }
+  }
+
+  // Called with the lock held.
+  private void release() {
+    released = true;
+    if (!anyChanged) {
+      return;
+    }
+    if (++sequence == 0) {
+      ++sequence;
+    }
+    if (broadcastChannel != null) {
+      broadcastProtocol.writeSyncSequence(broadcastPacket, 0, sequence);
+      broadcastPacket.rewind();
+      try {
+        broadcastChannel.send(broadcastPacket, broadcastDestination);
+        broadcastFailed = false;
+      } catch (IOException ioex) {
+        if (!broadcastFailed) {
+          logger.log(Level.WARNING, "Error sending sync to " + broadcastDestination, ioex);
+        }
+        broadcastFailed = true;
+      }
+    } else {
+      for (PackedOutput participant : participants) {
+        participant.sendSync(sequence);
+      }
+    }
+    syncedFrames = syncedFrames + 1;
+  }
+
+  private void watch() {
+    synchronized (this) {
+      try {
+        while (running) {
+          if (released) {
+            wait();
+            continue;
+          }
+          long remaining = firstArrivalNanos + timeoutNanos - System.nanoTime();
+          if (remaining <= 0) {
+            forcedFrames = forcedFrames + 1;
+            release();
+          } else {
+            wait(remaining / 1000000, (int)(remaining % 1000000));
+          }
+        }
+      } catch (InterruptedException iex) {
+        // Closed.
+      }
+    }
+  }
+
+  /**
+   * Frames a sync was sent for, including forced ones.
+   */
+  public long getSyncedFrames() {
+    return syncedFrames;
+  }
+
+  /**
+   * Frames whose sync was sent by the timeout before every participant arrived.
+   */
+  public long getForcedFrames() {
+    return forcedFrames;
+  }
+
+  /**
+   * Frames that were never synced because a participant moved on to a newer frame first.
+   */
+  public long getSupersededFrames() {
+    return supersededFrames;
+  }
+
+  /**
+   * Arrivals for a frame that was already synced or superseded.
+   */
+  public long getLateArrivals() {
+    return lateArrivals;
+  }
+
+  @Override
+  public String toString() {
+    return (isBroadcast() ? "broadcast sync to " + broadcastDestination : "per controller sync") + " for "
+        + participants.length + " outputs: synced=" + syncedFrames + " forced=" + forcedFrames + " superseded="
+        + supersededFrames + " late=" + lateArrivals;
+  }
+
+  /**
+   * Stops the watchdog and closes the broadcast channel.  The participants are not disposed.
+   */
+  public void close() {
+    synchronized (this) {
+      running = false;
+      notifyAll();
+    }
+    try {
+      watchdog.join(1000);
+    } catch (InterruptedException iex) {
+      Thread.currentThread().interrupt();
+    }
+    if (broadcastChannel != null) {
+      try {
+        broadcastChannel.close();
+      } catch (IOException ioex) {
+        logger.log(Level.WARNING, "Error closing sync channel", ioex);
+      }
+    }
+  }
+}
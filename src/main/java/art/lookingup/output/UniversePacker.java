@@ -0,0 +1,261 @@
+package art.lookingup.output;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Lays out the pixels of a controller's outputs into DMX universes.
+ *
+ * The naive layout starts every output on a new universe, so a short flower strand takes a whole packet for a
+ * handful of pixels.  A Pixlite output can also start at any channel of a universe, so outputs can follow on
+ * from each other and share universes, which needs only as many universes as the total pixel count requires.
+ * The packed layout does that within the following constraints:
+ *
+ *   - Pixels are never split across universes, so with 170 pixels per universe every output starts on a pixel
+ *     boundary.
+ *   - Every pixel of a universe is packed with one color transform, so only outputs with the same color
+ *     settings share a universe.  Each group of outputs with the same settings starts on a new universe.
+ *   - Universe numbers stay consecutive from the controller's universe base.
+ *
+ * Within those, each group is the fewest universes possible, and since every universe but a group's last is
+ * full, the fewest bytes too.  Outputs in a group are ordered longest first.  When outputs are paced, a
+ * universe shared by two outputs is sent at the rate of the faster one, so keeping outputs of similar length
+ * next to each other keeps the packets per second close to the minimum as well.
+ *
+ * The controller has to be configured with the start universe and channel of each output in the layout, see
+ * {@link #report(Layout, Layout, DmxProtocol, int, float)}.
+ */
+public class UniversePacker {
+
+  /**
+   * One controller output to lay out.
+   */
+  static public class OutputPixels {
+    public final int outputNumber;
+    public final int[] indices;
+    public final ColorTransform transform;
+
+    /**
+     * @param outputNumber 1-based global output number.
+     * @param indices Color buffer index of each pixel in wire order.
+     * @param transform The output's color transform.
+     */
+    public OutputPixels(int outputNumber, int[] indices, ColorTransform transform) {
+      this.outputNumber = outputNumber;
+      this.indices = indices;
+      this.transform = transform;
+    }
+  }
+
+  /**
+   * A universe layout.  Outputs are referred to by their index in the list the layout was made from.
+   */
+  static public class Layout {
+    public final List<OutputPixels> outputs;
+    public final int[][] universeIndices;
+    public final int[] universeNumbers;
+    public final ColorTransform[] universeTransforms;
+    // For each universe, the indices of the outputs it carries pixels for.
+    public final int[][] universeOutputs;
+    // For each output, its first universe number and 1-based DMX start channel.
+    public final int[] outputStartUniverse;
+    public final int[] outputStartChannel;
+
+    Layout(List<OutputPixels> outputs, List<int[]> universeIndices, List<Integer> universeNumbers,
+           List<ColorTransform> universeTransforms, List<int[]> universeOutputs, int[] outputStartUniverse,
+           int[] outputStartChannel) {
+      this.outputs = outputs;
+      this.universeIndices = universeIndices.toArray(new int[0][]);
+      this.universeNumbers = new int[universeNumbers.size()];
+      for (int u = 0; u < this.universeNumbers.length; u++) {
+        this.universeNumbers[u] = universeNumbers.get(u);
+      }
+      this.universeTransforms = universeTransforms.toArray(new ColorTransform[0]);
+      this.universeOutputs = universeOutputs.toArray(new int[0][]);
+      this.outputStartUniverse = outputStartUniverse;
+      this.outputStartChannel = outputStartChannel;
+    }
+
+    public int getNumUniverses() {
+      return universeIndices.length;
+    }
+
+    /**
+     * Packets sent for a full frame, including sync.
+     */
+    public int packetsPerFrame(DmxProtocol protocol) {
+      return universeIndices.length + (protocol.getSyncLength() > 0 ? 1 : 0);
+    }
+
+    /**
+     * Bytes of UDP payload sent for a full frame, including sync.
+     */
+    public int bytesPerFrame(DmxProtocol protocol) {
+      int bytes = protocol.getSyncLength();
+      for (int[] indices : universeIndices) {
+        bytes += protocol.getHeaderLength() + protocol.getDataLength(indices.length);
+      }
+      return bytes;
+    }
+
+    /**
+     * Data packets per second when each output is paced to its pixel refresh rate, see OutputScheduler.
+     * A universe is sent as often as the fastest output it carries.
+     */
+    public float packetsPerSecond(int pixelClockKhz, float targetFps) {
+      float total = 0;
+      for (int[] outputs : universeOutputs) {
+        float hz = 0;
+        for (int o : outputs) {
+          hz = Math.max(hz, OutputScheduler.maxRefreshHz(this.outputs.get(o).indices.length, pixelClockKhz));
+        }
+        total += Math.min(hz, targetFps);
+      }
+      return total;
+    }
+  }
+
+  /**
+   * Starts every output on a new universe.
+   */
+  static public Layout naive(List<OutputPixels> outputs, int firstUniverse) {
+    return layout(outputs, firstUniverse, false);
+  }
+
+  /**
+   * Packs outputs with the same color settings into shared universes.
+   */
+  static public Layout pack(List<OutputPixels> outputs, int firstUniverse) {
+    return layout(outputs, firstUniverse, true);
+  }
+
+  static Layout layout(List<OutputPixels> outputs, int firstUniverse, boolean share) {
+    // The order to lay out in.  Grouped by color settings in order of first appearance, longest first within
+    // a group.
+    List<Integer> order = new ArrayList<Integer>();
+    if (share) {
+      List<List<Integer>> groups = new ArrayList<List<Integer>>();
+      for (int o = 0; o < outputs.size(); o++) {
+        List<Integer> group = null;
+        for (List<Integer> g : groups) {
+          if (outputs.get(g.get(0)).transform.hasSameSettings(outputs.get(o).transform)) {
+            group = g;
+            break;
+          }
+        }
+        if (group == null) {
+          group = new ArrayList<Integer>();
+          groups.add(group);
+        }
+        group.add(o);
+      }
+      for (List<Integer> group : groups) {
+        group.sort(Comparator.comparingInt((Integer o) -> outputs.get(o).indices.length).reversed());
+        order.addAll(group);
+      }
+    } else {
+      for (int o = 0; o < outputs.size(); o++) {
+        order.add(o);
+      }
+    }
+
+    int max = DmxProtocol.MAX_PIXELS_PER_UNIVERSE;
+    List<int[]> universeIndices = new ArrayList<int[]>();
+    List<Integer> universeNumbers = new ArrayList<Integer>();
+    List<ColorTransform> universeTransforms = new ArrayList<ColorTransform>();
+    List<int[]> universeOutputs = new ArrayList<int[]>();
+    int[] outputStartUniverse = new int[outputs.size()];
+    int[] outputStartChannel = new int[outputs.size()];
+
+    // The universe being filled.
+    int[] current = new int[max];
+    int currentCount = 0;
+    List<Integer> currentOutputs = new ArrayList<Integer>();
+    ColorTransform currentTransform = null;
+    int universeNumber = firstUniverse;
+
+    for (int o : order) {
+      OutputPixels output = outputs.get(o);
+      if (output.indices.length == 0) {
+        continue;
+      }
+      boolean startNew = currentCount == max
+          || (currentCount > 0 && (!share || !currentTransform.hasSameSettings(output.transform)));
+      if (startNew) {
+        addUniverse(universeIndices, universeNumbers, universeTransforms, universeOutputs, current, currentCount,
+            universeNumber++, currentTransform, currentOutputs);
+        currentCount = 0;
+        currentOutputs.clear();
+      }
+      outputStartUniverse[o] = universeNumber;
+      outputStartChannel[o] = currentCount * 3 + 1;
+      currentTransform = output.transform;
+      for (int i = 0; i < output.indices.length; i++) {
+        if (currentCount == max) {
+          addUniverse(universeIndices, universeNumbers, universeTransforms, universeOutputs, current, currentCount,
+              universeNumber++, currentTransform, currentOutputs);
+          currentCount = 0;
+          currentOutputs.clear();
+        }
+        if (currentOutputs.isEmpty() || currentOutputs.get(currentOutputs.size() - 1) != o) {
+          currentOutputs.add(o);
+        }
+        current[currentCount++] = output.indices[i];
+      }
+    }
+    if (currentCount > 0) {
+      addUniverse(universeIndices, universeNumbers, universeTransforms, universeOutputs, current, currentCount,
+          universeNumber, currentTransform, currentOutputs);
+    }
+    return new Layout(outputs, universeIndices, universeNumbers, universeTransforms, universeOutputs,
+        outputStartUniverse, outputStartChannel);
+  }
+
+  static private void addUniverse(List<int[]> universeIndices, List<Integer> universeNumbers,
+                                  List<ColorTransform> universeTransforms, List<int[]> universeOutputs,
+                                  int[] indices, int count, int universeNumber, ColorTransform transform,
+                                  List<Integer> outputs) {
+    universeIndices.add(Arrays.copyOf(indices, count));
+    universeNumbers.add(universeNumber);
+    universeTransforms.add(transform);
+    int[] outputArray = new int[outputs.size()];
+    for (int i = 0; i < outputArray.length; i++) {
+      outputArray[i] = outputs.get(i);
+    }
+    universeOutputs.add(outputArray);
+  }
+
+  /**
+   * Compares two layouts of the same outputs, and lists where each output starts in the second one.
+   *
+   * @param pixelClockKhz Pixel clock for the packets per second with pacing, 0 to leave it out.
+   * @param targetFps The engine frame rate, the most any universe is sent.
+   */
+  static public String report(Layout naive, Layout packed, DmxProtocol protocol, int pixelClockKhz,
+                              float targetFps) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(Locale.ROOT, "%-8s %9s %13s %12s", "layout", "universes", "packets/frame", "bytes/frame"));
+    if (pixelClockKhz > 0) {
+      sb.append(String.format(Locale.ROOT, " %14s", "paced packets/s"));
+    }
+    for (int l = 0; l < 2; l++) {
+      Layout layout = l == 0 ? naive : packed;
+      sb.append('\n').append(String.format(Locale.ROOT, "%-8s %9d %13d %12d", l == 0 ? "naive" : "packed",
+          layout.getNumUniverses(), layout.packetsPerFrame(protocol), layout.bytesPerFrame(protocol)));
+      if (pixelClockKhz > 0) {
+        sb.append(String.format(Locale.ROOT, " %14.0f", layout.packetsPerSecond(pixelClockKhz, targetFps)));
+      }
+    }
+    for (int o = 0; o < packed.outputs.size(); o++) {
+      OutputPixels output = packed.outputs.get(o);
+      if (output.indices.length > 0) {
+        sb.append('\n').append(String.format(Locale.ROOT, "output %d: %d pixels, start universe %d channel %d",
+            output.outputNumber, output.indices.length, packed.outputStartUniverse[o], packed.outputStartChannel[o]));
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -2,6 +2,7 @@ package art.lookingup.pattern;
 
 import art.lookingup.KaledoscopeModel;
 import art.lookingup.LUButterfly;
+import art.lookingup.ModelSnapshot;
 import heronarts.lx.LX;
 import heronarts.lx.color.LXColor;
 import heronarts.lx.model.LXPoint;
@@ -13,6 +14,8 @@ abstract public class BPBase extends LXPattern {
 
   protected static final Random random = new Random();
   protected Map<LUButterfly, Integer> randomInts;
+  // The model for the frame being rendered, read at the start of run().
+  protected ModelSnapshot snapshot;
 
   public BPBase(LX lx) {
     super(lx);
@@ -20,22 +23,49 @@ abstract public class BPBase extends LXPattern {
   }
 
   public void onActive() {
+    snapshot = KaledoscopeModel.snapshot();
     randomInts = new HashMap<LUButterfly, Integer>();
-    for (LUButterfly butterfly : KaledoscopeModel.allButterflies) {
+    for (LUButterfly butterfly : snapshot.butterflies) {
       randomInts.put(butterfly, random.nextInt(1000));
     }
   }
 
+  /**
+   * Butterflies from runs reused by a rebuilt model keep their values, new ones get new values.
+   */
+  private void remap() {
+    Map<LUButterfly, Integer> remapped = new HashMap<LUButterfly, Integer>();
+    for (LUButterfly butterfly : snapshot.butterflies) {
+      remapped.put(butterfly, getRandom(butterfly));
+    }
+    randomInts = remapped;
+  }
+
   protected int getRandom(LUButterfly butterfly) {
-    return randomInts.get(butterfly);
+    if (randomInts == null) {
+      randomInts = new HashMap<LUButterfly, Integer>();
+    }
+    Integer randomInt = randomInts.get(butterfly);
+    if (randomInt == null) {
+      randomInt = random.nextInt(1000);
+      randomInts.put(butterfly, randomInt);
+    }
+    return randomInt;
   }
 
   @Override
   protected void run(double deltaMs) {
+    ModelSnapshot current = KaledoscopeModel.snapshot();
+    if (snapshot == null || current.version != snapshot.version) {
+      snapshot = current;
+      if (randomInts != null) {
+        remap();
+      }
+    }
     for (LXPoint p : model.points) {
       colors[p.index] = LXColor.rgb(0, 0, 0);
     }
-    for (LUButterfly butterfly : KaledoscopeModel.allButterflies) {
+    for (LUButterfly butterfly : snapshot.butterflies) {
       renderButterfly(deltaMs, butterfly, getRandom(butterfly));
     }
   }
@@ -4,10 +4,11 @@ import art.lookingup.KaledoscopeModel;
 import art.lookingup.LUButterfly;
 import heronarts.lx.LX;
 import heronarts.lx.color.LXColor;
-import heronarts.lx.model.LXPoint;
 import heronarts.lx.parameter.DiscreteParameter;
 import heronarts.lx.pattern.LXPattern;
 
+import java.util.Arrays;
+
 public class ButterflyPtrn extends LXPattern {
 
   DiscreteParameter which = new DiscreteParameter("which", 0, 0, 4);
@@ -20,36 +21,22 @@ public class ButterflyPtrn extends LXPattern {
 
   @Override
   protected void run(double deltaMs) {
-    for (LXPoint p : model.points) {
-      colors[p.index] = LXColor.rgb(0, 0, 0);
-    }
+    Arrays.fill(colors, LXColor.BLACK);
 
-    for (LUButterfly butterfly : KaledoscopeModel.allButterflies) {
-      if (which.getValuei() < 3) {
-        for (int i = 0; i < butterfly.allPoints.size(); i++) {
-          if (currentLed == i) {
-            LXPoint point;
-            if (which.getValuei() == 0)
-              point = butterfly.pointsClockwise.get(i);
-            else if (which.getValuei() == 1)
-              point = butterfly.pointsCounterClockwise.get(i);
-            else
-              point = butterfly.pointsByRow.get(i);
-            colors[point.index] = LXColor.rgb(255, 255, 255);
-          }
-        }
+    int which = this.which.getValuei();
+    int[] ordering = which == 0 ? LUButterfly.CLOCKWISE
+        : which == 1 ? LUButterfly.COUNTER_CLOCKWISE
+        : LUButterfly.BY_ROW;
+    for (LUButterfly butterfly : KaledoscopeModel.snapshot().butterflies) {
+      if (which < 3) {
+        colors[butterfly.pointIndex(ordering, currentLed)] = LXColor.rgb(255, 255, 255);
       } else {
-        for (int i = 0; i < butterfly.pointsByRow.size()/2; i++) {
-          if (currentLed/2 == i) {
-            LXPoint point = butterfly.pointsByRow.get(i * 2);
-            colors[point.index] = LXColor.rgb(255, 255, 255);
-            point = butterfly.pointsByRow.get(i * 2 + 1);
-            colors[point.index] = LXColor.rgb(255, 0, 0);
-          }
-        }
+        int row = currentLed / 2;
+        colors[butterfly.pointIndex(LUButterfly.BY_ROW, row * 2)] = LXColor.rgb(255, 255, 255);
+        colors[butterfly.pointIndex(LUButterfly.BY_ROW, row * 2 + 1)] = LXColor.rgb(255, 0, 0);
       }
     }
 
-    currentLed = (currentLed + 1) % 16;
+    currentLed = (currentLed + 1) % LUButterfly.NUM_LEDS;
   }
 }
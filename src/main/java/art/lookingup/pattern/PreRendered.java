@@ -0,0 +1,124 @@
+package art.lookingup.pattern;
+
+import art.lookingup.render.ChunkStream;
+import art.lookingup.render.PreRenderer;
+import heronarts.lx.LX;
+import heronarts.lx.LXCategory;
+import heronarts.lx.color.LXColor;
+import heronarts.lx.parameter.BooleanParameter;
+import heronarts.lx.parameter.LXParameter;
+import heronarts.lx.parameter.StringParameter;
+import heronarts.lx.pattern.LXPattern;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Plays back frames rendered offline with --prerender, so expensive looks can be shown at full frame rate.
+ * Plays every segment file in the directory in order at the frame rate they were rendered at.  Chunks are
+ * decoded ahead on a background thread, see ChunkStream.
+ */
+@LXCategory(LXCategory.OTHER)
+public class PreRendered extends LXPattern {
+  private static final Logger logger = Logger.getLogger(PreRendered.class.getName());
+
+  static final int READ_AHEAD_CHUNKS = 4;
+
+  public final StringParameter dir = new StringParameter("Dir", "prerender")
+      .setDescription("Directory of pre-rendered segment files");
+
+  public final BooleanParameter loop = new BooleanParameter("Loop", true)
+      .setDescription("Start over after the last segment");
+
+  private ChunkStream stream = null;
+  private double frameMs = 0;
+  private double elapsedMs = 0;
+  private int[] frame = null;
+  private boolean reopen = true;
+
+  public PreRendered(LX lx) {
+    super(lx);
+    addParameter("dir", dir);
+    addParameter("loop", loop);
+  }
+
+  @Override
+  public void onParameterChanged(LXParameter p) {
+    if (p == dir || p == loop) {
+      reopen = true;
+    }
+  }
+
+  private void open() {
+    closeStream();
+    reopen = false;
+    File[] files = new File(dir.getString()).listFiles((d, name) ->
+        name.startsWith(PreRenderer.SEGMENT_PREFIX) && name.endsWith(PreRenderer.SEGMENT_SUFFIX));
+    if (files == null || files.length == 0) {
+      logger.warning("No pre-rendered segments in " + dir.getString());
+      return;
+    }
+    Arrays.sort(files);
+    try {
+      stream = new ChunkStream(files, READ_AHEAD_CHUNKS, loop.isOn());
+      frameMs = 1000.0 / stream.getFps();
+      elapsedMs = frameMs;
+      if (stream.getNumPoints() != model.size) {
+        logger.warning("Pre-rendered frames have " + stream.getNumPoints() + " points but the model has " + model.size);
+      }
+    } catch (IOException ioex) {
+      logger.log(Level.WARNING, "Error opening pre-rendered segments in " + dir.getString(), ioex);
+    }
+  }
+
+  private void closeStream() {
+    if (stream != null) {
+      stream.close();
+      stream = null;
+    }
+    frame = null;
+  }
+
+  @Override
+  public void onActive() {
+    reopen = true;
+  }
+
+  @Override
+  public void onInactive() {
+    closeStream();
+  }
+
+  @Override
+  protected void run(double deltaMs) {
+    if (reopen) {
+      open();
+    }
+    if (stream == null) {
+      setColors(LXColor.BLACK);
+      return;
+    }
+    // Step through as many recorded frames as engine time has passed, so playback keeps the rendered
+    // frame rate regardless of the engine's.
+    elapsedMs += deltaMs;
+    while (elapsedMs >= frameMs) {
+      int[] next = stream.nextFrame();
+      if (next != null) {
+        frame = next;
+      }
+      elapsedMs -= frameMs;
+    }
+    if (frame != null) {
+      System.arraycopy(frame, 0, colors, 0, Math.min(frame.length, colors.length));
+    }
+  }
+
+  @Override
+  public void dispose() {
+    closeStream();
+    super.dispose();
+  }
+}
@@ -1,14 +1,16 @@
 package art.lookingup.pattern;
 
 import art.lookingup.KaledoscopeModel;
+import art.lookingup.ModelArrays;
 import heronarts.lx.LX;
 import heronarts.lx.LXCategory;
 import heronarts.lx.color.LXColor;
-import heronarts.lx.model.LXPoint;
 import heronarts.lx.parameter.BooleanParameter;
 import heronarts.lx.parameter.DiscreteParameter;
 import heronarts.lx.pattern.LXPattern;
 
+import java.util.Arrays;
+
 @LXCategory(LXCategory.TEST)
 public class RunPtrn extends LXPattern {
   DiscreteParameter runNum = new DiscreteParameter("run", 0, 0, 7);
@@ -26,20 +28,23 @@ public class RunPtrn extends LXPattern {
 
   @Override
   protected void run(double deltaMs) {
-    for (LXPoint p : model.points) {
-      colors[p.index] = LXColor.rgb(0, 0, 0);
+    Arrays.fill(colors, LXColor.BLACK);
+    ModelArrays arrays = KaledoscopeModel.snapshot().arrays;
+    int run = runNum.getValuei();
+    if (run >= arrays.numRuns) {
+      // The model was rebuilt with fewer runs.
+      return;
     }
-    KaledoscopeModel.Run run = KaledoscopeModel.allRuns.get(runNum.getValuei());
+    int start = arrays.runStart[run];
+    int end = arrays.runStart[run + 1];
     if (tracer.getValueb()) {
-      for (int i = 0; i < run.allPoints.size(); i++) {
-        if (currentIndex == i)
-          colors[run.allPoints.get(i).index] = LXColor.rgb(255, 255, 255);
+      if (end > start) {
+        currentIndex = currentIndex % (end - start);
+        colors[start + currentIndex] = LXColor.WHITE;
+        currentIndex = (currentIndex + 1) % (end - start);
       }
-      currentIndex = (currentIndex + 1) % run.allPoints.size();
     } else {
-      for (LXPoint p : run.allPoints) {
-        colors[p.index] = LXColor.rgb(255, 255, 255);
-      }
+      Arrays.fill(colors, start, end, LXColor.WHITE);
     }
   }
 }
@@ -1,14 +1,16 @@
 package art.lookingup.pattern;
 
 import art.lookingup.KaledoscopeModel;
+import art.lookingup.ModelArrays;
 import heronarts.lx.LX;
 import heronarts.lx.LXCategory;
 import heronarts.lx.color.LXColor;
-import heronarts.lx.model.LXPoint;
 import heronarts.lx.parameter.BooleanParameter;
 import heronarts.lx.parameter.DiscreteParameter;
 import heronarts.lx.pattern.LXPattern;
 
+import java.util.Arrays;
+
 @LXCategory(LXCategory.TEST)
 public class Strand extends LXPattern {
   DiscreteParameter strandNum = new DiscreteParameter("strand", 0, 0, 6);
@@ -20,11 +22,15 @@ public class Strand extends LXPattern {
 
   @Override
   protected void run(double deltaMs) {
-    for (LXPoint p : model.points) {
-      colors[p.index] = LXColor.rgb(0, 0, 0);
-    }
-    for (LXPoint p : KaledoscopeModel.allStrands.get(strandNum.getValuei()).allPoints) {
-      colors[p.index] = LXColor.rgb(255, 255, 255);
+    ModelArrays arrays = KaledoscopeModel.snapshot().arrays;
+    int strand = strandNum.getValuei();
+    if (strand >= arrays.numStrands) {
+      // The model was rebuilt with fewer strands.
+      Arrays.fill(colors, LXColor.BLACK);
+      return;
     }
+    Arrays.fill(colors, 0, arrays.strandStart[strand], LXColor.BLACK);
+    Arrays.fill(colors, arrays.strandStart[strand], arrays.strandStart[strand + 1], LXColor.WHITE);
+    Arrays.fill(colors, arrays.strandStart[strand + 1], arrays.numPoints, LXColor.BLACK);
   }
 }
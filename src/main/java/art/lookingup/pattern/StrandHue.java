@@ -1,6 +1,5 @@
 package art.lookingup.pattern;
 
-import art.lookingup.KaledoscopeModel;
 import art.lookingup.LUButterfly;
 import heronarts.lx.LX;
 import heronarts.lx.color.LXColor;
@@ -13,8 +12,8 @@ public class StrandHue extends BPBase {
   }
 
   protected void renderButterfly(double deltaMs, LUButterfly butterfly, int randomInt) {
+    float hue = 360f * (float)butterfly.runIndex / (float) snapshot.runs.get(0).butterflies.size();
     for (LXPoint p : butterfly.allPoints) {
-      float hue = 360f * (float)butterfly.runIndex / (float) KaledoscopeModel.allRuns.get(0).butterflies.size();
       colors[p.index] = LXColor.hsb(hue, 100, 100);
     }
   }
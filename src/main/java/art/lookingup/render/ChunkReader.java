@@ -0,0 +1,118 @@
+package art.lookingup.render;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the chunks written by ChunkWriter, one chunk at a time, into caller supplied frame buffers.  All
+ * buffers are allocated when the file is opened.
+ */
+public class ChunkReader {
+  private final File file;
+  private final DataInputStream in;
+  private final int numPoints;
+  private final float fps;
+  private final int framesPerChunk;
+  private final Inflater inflater = new Inflater();
+  private final byte[] compressed;
+  private final byte[] raw;
+
+  public ChunkReader(File file) throws IOException {
+    this.file = file;
+    in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    try {
+      if (in.readInt() != ChunkWriter.MAGIC) {
+        throw new IOException(file + " is not a pre-rendered chunk file");
+      }
+      int version = in.readInt();
+      if (version != ChunkWriter.VERSION) {
+        throw new IOException(file + " has unsupported version " + version);
+      }
+      numPoints = in.readInt();
+      fps = in.readFloat();
+      framesPerChunk = in.readInt();
+    } catch (IOException ioex) {
+      inflater.end();
+      in.close();
+      throw ioex;
+    }
+    raw = new byte[numPoints * 4 * framesPerChunk];
+    compressed = new byte[raw.length + raw.length / 1000 + 64];
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public int getNumPoints() {
+    return numPoints;
+  }
+
+  public float getFps() {
+    return fps;
+  }
+
+  public int getFramesPerChunk() {
+    return framesPerChunk;
+  }
+
+  /**
+   * Decodes the next chunk.
+   *
+   * @param frames At least framesPerChunk buffers of at least numPoints colors each.
+   * @return the number of frames decoded, or 0 at the end of the file.
+   */
+  public int readChunk(int[][] frames) throws IOException {
+    int numFrames;
+    try {
+      numFrames = in.readInt();
+    } catch (EOFException eofex) {
+      return 0;
+    }
+    int length = in.readInt();
+    if (numFrames < 1 || numFrames > framesPerChunk || length < 0 || length > compressed.length) {
+      throw new IOException(file + " has a corrupt chunk header");
+    }
+    in.readFully(compressed, 0, length);
+    inflater.reset();
+    inflater.setInput(compressed, 0, length);
+    int rawLength = numFrames * numPoints * 4;
+    try {
+      int inflated = 0;
+      while (inflated < rawLength && !inflater.finished()) {
+        int n = inflater.inflate(raw, inflated, rawLength - inflated);
+        if (n == 0 && inflater.needsInput()) {
+          break;
+        }
+        inflated += n;
+      }
+      if (inflated != rawLength) {
+        throw new IOException(file + " has a truncated chunk");
+      }
+    } catch (DataFormatException dfex) {
+      throw new IOException(file + " has a corrupt chunk", dfex);
+    }
+    int offset = 0;
+    for (int f = 0; f < numFrames; f++) {
+      int[] frame = frames[f];
+      int[] prev = f > 0 ? frames[f - 1] : null;
+      for (int i = 0; i < numPoints; i++) {
+        int v = (raw[offset] & 0xff) | ((raw[offset + 1] & 0xff) << 8) | ((raw[offset + 2] & 0xff) << 16) | (raw[offset + 3] << 24);
+        frame[i] = prev != null ? v ^ prev[i] : v;
+        offset += 4;
+      }
+    }
+    return numFrames;
+  }
+
+  public void close() throws IOException {
+    inflater.end();
+    in.close();
+  }
+}
@@ -0,0 +1,190 @@
+package art.lookingup.render;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams pre-rendered frames from a list of chunk files, in order, with decoding done ahead of time on a
+ * background thread.  The reader fills a small fixed pool of chunk buffers which are handed to the consumer
+ * through a queue and recycled once played, so nothing is allocated after construction.
+ *
+ * {@link #nextFrame()} never blocks.  If the reader has fallen behind, the last frame is repeated and the
+ * underrun is counted.  nextFrame() must only be called from one thread.
+ */
+public class ChunkStream {
+  private static final Logger logger = Logger.getLogger(ChunkStream.class.getName());
+
+  static class Chunk {
+    final int[][] frames;
+    int numFrames;
+
+    Chunk(int framesPerChunk, int numPoints) {
+      frames = new int[framesPerChunk][numPoints];
+    }
+  }
+
+  private final File[] files;
+  private final boolean loop;
+  private final int numPoints;
+  private final float fps;
+  private final int framesPerChunk;
+  private final BlockingQueue<Chunk> free;
+  private final BlockingQueue<Chunk> ready;
+  private final Thread readerThread;
+
+  // Owned by the consumer.
+  private Chunk current = null;
+  private int frameInChunk = 0;
+  private volatile long underruns = 0;
+  private volatile boolean finished = false;
+
+  /**
+   * Opens the first file to learn the frame size.  Every file must have the same number of points and frames
+   * per chunk; files that do not are skipped.
+   *
+   * @param files Chunk files in play order.
+   * @param readAheadChunks Number of decoded chunks to keep ready.
+   * @param loop Whether to start over after the last file.
+   * @throws IOException if there are no files or the first can not be read.
+   */
+  public ChunkStream(File[] files, int readAheadChunks, boolean loop) throws IOException {
+    if (files.length == 0) {
+      throw new IOException("No chunk files to play");
+    }
+    this.files = files.clone();
+    this.loop = loop;
+    ChunkReader first = new ChunkReader(files[0]);
+    numPoints = first.getNumPoints();
+    fps = first.getFps();
+    framesPerChunk = first.getFramesPerChunk();
+    first.close();
+
+    // One chunk is being played while the rest are queued or being decoded.
+    int poolSize = Math.max(2, readAheadChunks + 1);
+    free = new ArrayBlockingQueue<Chunk>(poolSize);
+    ready = new ArrayBlockingQueue<Chunk>(poolSize);
+    for (int i = 0; i < poolSize; i++) {
+      free.add(new Chunk(framesPerChunk, numPoints));
+    }
+    readerThread = new Thread(this::readLoop, "Kaledoscope Chunk Reader");
+    readerThread.setDaemon(true);
+    readerThread.start();
+  }
+
+  public int getNumPoints() {
+    return numPoints;
+  }
+
+  public float getFps() {
+    return fps;
+  }
+
+  /**
+   * Times nextFrame() had to repeat a frame because the reader was behind.
+   */
+  public long getUnderruns() {
+    return underruns;
+  }
+
+  /**
+   * True once every frame has been played and the stream is not looping.
+   */
+  public boolean isFinished() {
+    return finished && ready.isEmpty() && (current == null || frameInChunk + 1 >= current.numFrames);
+  }
+
+  private void readLoop() {
+    try {
+      do {
+        long passChunks = 0;
+        for (File file : files) {
+          ChunkReader reader;
+          try {
+            reader = new ChunkReader(file);
+          } catch (IOException ioex) {
+            logger.log(Level.WARNING, "Skipping " + file, ioex);
+            continue;
+          }
+          try {
+            if (reader.getNumPoints() != numPoints || reader.getFramesPerChunk() != framesPerChunk) {
+              logger.warning("Skipping " + file + ", frame layout does not match " + files[0]);
+              continue;
+            }
+            while (true) {
+              Chunk chunk = free.take();
+              try {
+                chunk.numFrames = reader.readChunk(chunk.frames);
+              } catch (IOException ioex) {
+                free.put(chunk);
+                throw ioex;
+              }
+              if (chunk.numFrames == 0) {
+                free.put(chunk);
+                break;
+              }
+              ready.put(chunk);
+              ++passChunks;
+            }
+          } catch (IOException ioex) {
+            logger.log(Level.WARNING, "Error reading " + file, ioex);
+          } finally {
+            try {
+              reader.close();
+            } catch (IOException ioex) {
+              // Nothing more to read from it anyway.
+            }
+          }
+        }
+        if (passChunks == 0) {
+          // Every file was skipped, so looping would only spin.
+          logger.warning("No frames could be read from any chunk file, stopping");
+          break;
+        }
+      } while (loop);
+    } catch (InterruptedException iex) {
+      // Closed.
+    }
+    finished = true;
+  }
+
+  /**
+   * Advances to the next frame.
+   *
+   * @return the frame's colors, or null if nothing has been decoded yet.  The array is reused, so it is only
+   * valid until the next call.
+   */
+  public int[] nextFrame() {
+    if (current != null && frameInChunk + 1 < current.numFrames) {
+      return current.frames[++frameInChunk];
+    }
+    Chunk next = ready.poll();
+    if (next == null) {
+      if (!finished) {
+        underruns = underruns + 1;
+      }
+      return current != null ? current.frames[frameInChunk] : null;
+    }
+    if (current != null) {
+      free.offer(current);
+    }
+    current = next;
+    frameInChunk = 0;
+    return current.frames[0];
+  }
+
+  /**
+   * Stops the reader thread.
+   */
+  public void close() {
+    readerThread.interrupt();
+    try {
+      readerThread.join(1000);
+    } catch (InterruptedException iex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package art.lookingup.render;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * Writes pre-rendered frames as a sequence of independently compressed chunks.
+ *
+ *   header: int magic, int version, int numPoints, float fps, int framesPerChunk
+ *   chunk:  int numFrames, int compressedLength, byte[compressedLength]
+ *
+ * Each chunk is deflated on its own so a reader can start at any chunk.  Within a chunk every frame after the
+ * first is stored as the XOR against the previous frame, which turns the mostly unchanged points of a frame
+ * into runs of zeros that deflate well.  Colors are written little endian.  Header fields are big endian,
+ * as written by DataOutputStream.
+ *
+ * All buffers are allocated up front, so writing does not allocate per frame.
+ */
+public class ChunkWriter {
+  public static final int MAGIC = 0x3152504b;  // "KPR1"
+  public static final int VERSION = 1;
+  public static final int DEFAULT_FRAMES_PER_CHUNK = 60;
+
+  private final DataOutputStream out;
+  private final int numPoints;
+  private final int framesPerChunk;
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+  // Raw chunk, frames back to back with all but the first XORed against the previous frame.
+  private final byte[] raw;
+  private final byte[] compressed;
+  private final int[] previous;
+  private int framesInChunk = 0;
+  private long framesWritten = 0;
+  private long bytesWritten = 0;
+
+  public ChunkWriter(File file, int numPoints, float fps, int framesPerChunk) throws IOException {
+    this.numPoints = numPoints;
+    this.framesPerChunk = framesPerChunk;
+    raw = new byte[numPoints * 4 * framesPerChunk];
+    // Deflate can expand incompressible input slightly.
+    compressed = new byte[raw.length + raw.length / 1000 + 64];
+    previous = new int[numPoints];
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(numPoints);
+    out.writeFloat(fps);
+    out.writeInt(framesPerChunk);
+  }
+
+  /**
+   * Adds a frame.  Only the first numPoints colors are used.
+   */
+  public void write(int[] colors) throws IOException {
+    int offset = framesInChunk * numPoints * 4;
+    boolean first = framesInChunk == 0;
+    for (int i = 0; i < numPoints; i++) {
+      int color = colors[i];
+      int v = first ? color : color ^ previous[i];
+      previous[i] = color;
+      raw[offset++] = (byte)v;
+      raw[offset++] = (byte)(v >> 8);
+      raw[offset++] = (byte)(v >> 16);
+      raw[offset++] = (byte)(v >> 24);
+    }
+    ++framesWritten;
+    if (++framesInChunk == framesPerChunk) {
+      flushChunk();
+    }
+  }
+
+  private void flushChunk() throws IOException {
+    if (framesInChunk == 0) {
+      return;
+    }
+    deflater.reset();
+    deflater.setInput(raw, 0, framesInChunk * numPoints * 4);
+    deflater.finish();
+    int length = 0;
+    while (!deflater.finished()) {
+      length += deflater.deflate(compressed, length, compressed.length - length);
+    }
+    out.writeInt(framesInChunk);
+    out.writeInt(length);
+    out.write(compressed, 0, length);
+    bytesWritten += 8 + length;
+    framesInChunk = 0;
+  }
+
+  public long getFramesWritten() {
+    return framesWritten;
+  }
+
+  /**
+   * Compressed bytes written so far, not counting the header.
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * Writes any partial chunk and closes the file.
+   */
+  public void close() throws IOException {
+    try {
+      flushChunk();
+    } finally {
+      deflater.end();
+      out.close();
+    }
+  }
+}
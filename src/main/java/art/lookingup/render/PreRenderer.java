@@ -0,0 +1,215 @@
+package art.lookingup.render;
+
+import heronarts.lx.LX;
+import heronarts.lx.LXEngine;
+import heronarts.lx.LXPlugin;
+import heronarts.lx.mixer.LXAbstractChannel;
+import heronarts.lx.mixer.LXChannel;
+import heronarts.lx.model.LXModel;
+import heronarts.lx.pattern.LXPattern;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Renders a timeline of pattern states offline, faster than real time, for patterns that are too expensive
+ * to run at full frame rate on the show computer.  The result is played back with the PreRendered pattern.
+ *
+ * A timeline is a text file with one segment per line:
+ *
+ *   channel pattern seconds
+ *
+ * where channel is the 0-based mixer channel in the project, pattern is the pattern's index in that channel
+ * or its label, and seconds is how long to render it for.  Blank lines and lines starting with # are
+ * ignored.  Each segment starts from the project as saved with the given pattern active, so segments do not
+ * depend on each other and are rendered in parallel, each on its own LX instance with a fixed frame time.
+ * Segment N is written to segment-NNN.kpr in the output directory, see ChunkWriter for the format.
+ */
+public class PreRenderer {
+  private static final Logger logger = Logger.getLogger(PreRenderer.class.getName());
+
+  public static final String SEGMENT_PREFIX = "segment-";
+  public static final String SEGMENT_SUFFIX = ".kpr";
+
+  static public class Segment {
+    public final int channel;
+    public final String pattern;
+    public final double seconds;
+
+    public Segment(int channel, String pattern, double seconds) {
+      this.channel = channel;
+      this.pattern = pattern;
+      this.seconds = seconds;
+    }
+
+    @Override
+    public String toString() {
+      return "channel " + channel + " pattern " + pattern + " for " + seconds + "s";
+    }
+  }
+
+  private final File projectFile;
+  private final Supplier<? extends LXModel> modelFactory;
+  private final LXPlugin plugin;
+  private final float fps;
+
+  /**
+   * @param projectFile The .lxp project to render.
+   * @param modelFactory Builds the model for each segment.  LX reindexes and normalizes the points of the model
+   *                     it is given, so render threads can not share one.  Every model built must have the
+   *                     same points as the model patterns read through KaledoscopeModel.snapshot().
+   * @param plugin Initializes each render LX instance, normally registering our patterns.
+   * @param fps Frame rate to render at.
+   */
+  public PreRenderer(File projectFile, Supplier<? extends LXModel> modelFactory, LXPlugin plugin, float fps) {
+    this.projectFile = projectFile;
+    this.modelFactory = modelFactory;
+    this.plugin = plugin;
+    this.fps = fps;
+  }
+
+  /**
+   * Parses a timeline file.
+   *
+   * @throws IOException if the file can not be read or a line can not be parsed.
+   */
+  static public List<Segment> parseTimeline(File timelineFile) throws IOException {
+    List<Segment> segments = new ArrayList<Segment>();
+    try (BufferedReader reader = new BufferedReader(new FileReader(timelineFile))) {
+      String line;
+      int lineNum = 0;
+      while ((line = reader.readLine()) != null) {
+        ++lineNum;
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#")) {
+          continue;
+        }
+        String[] fields = line.split("\\s+");
+        try {
+          if (fields.length != 3) {
+            throw new NumberFormatException("expected: channel pattern seconds");
+          }
+          segments.add(new Segment(Integer.parseInt(fields[0]), fields[1], Double.parseDouble(fields[2])));
+        } catch (NumberFormatException nfex) {
+          throw new IOException(timelineFile + ":" + lineNum + ": " + nfex.getMessage(), nfex);
+        }
+      }
+    }
+    return segments;
+  }
+
+  static public File segmentFile(File outDir, int index) {
+    return new File(outDir, String.format(Locale.ROOT, "%s%03d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+  }
+
+  /**
+   * Renders every segment, using up to threads segments at once.  Returns when all are written.
+   *
+   * @throws IOException if any segment failed.  Other segments are still rendered.
+   */
+  public void render(List<Segment> segments, File outDir, int threads) throws IOException, InterruptedException {
+    if (!outDir.isDirectory() && !outDir.mkdirs()) {
+      throw new IOException("Could not create " + outDir);
+    }
+    long start = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, segments.size())));
+    List<Future<Long>> results = new ArrayList<Future<Long>>();
+    for (int i = 0; i < segments.size(); i++) {
+      final int index = i;
+      final Segment segment = segments.get(i);
+      results.add(executor.submit(() -> renderSegment(segment, segmentFile(outDir, index))));
+    }
+    executor.shutdown();
+    long frames = 0;
+    IOException failure = null;
+    for (int i = 0; i < results.size(); i++) {
+      try {
+        frames += results.get(i).get();
+      } catch (ExecutionException eex) {
+        failure = new IOException("Rendering segment " + i + ", " + segments.get(i) + " failed", eex.getCause());
+        logger.severe(failure.getMessage() + ": " + eex.getCause());
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    logger.info(String.format(Locale.ROOT, "Rendered %d frames in %.1fs, %.1fx real time", frames, seconds,
+        frames / fps / seconds));
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private long renderSegment(Segment segment, File file) throws IOException {
+    LX.Flags flags = new LX.Flags();
+    flags.initialize = plugin;
+    LXModel model = modelFactory.get();
+    LX lx = new LX(flags, model) {};
+    ChunkWriter writer = null;
+    try {
+      lx.openProject(projectFile);
+      if (lx.getProject() == null) {
+        throw new IOException("Could not open " + projectFile);
+      }
+      if (segment.channel < 0 || segment.channel >= lx.engine.mixer.channels.size()) {
+        throw new IOException("No channel " + segment.channel);
+      }
+      LXAbstractChannel abstractChannel = lx.engine.mixer.channels.get(segment.channel);
+      if (!(abstractChannel instanceof LXChannel)) {
+        throw new IOException("Channel " + segment.channel + " is not a pattern channel");
+      }
+      LXChannel channel = (LXChannel)abstractChannel;
+      int patternIndex = findPattern(channel, segment.pattern);
+      if (patternIndex < 0) {
+        throw new IOException("No pattern " + segment.pattern + " on channel " + segment.channel);
+      }
+      channel.transitionEnabled.setValue(false);
+      channel.goPatternIndex(patternIndex);
+      lx.engine.output.enabled.setValue(false);
+      lx.engine.setFixedDeltaMs(1000.0 / fps);
+
+      LXEngine.Frame frame = new LXEngine.Frame(lx);
+      writer = new ChunkWriter(file, model.size, fps, ChunkWriter.DEFAULT_FRAMES_PER_CHUNK);
+      long numFrames = Math.round(segment.seconds * fps);
+      for (long f = 0; f < numFrames; f++) {
+        // The engine thread is never started, so we drive the engine loop directly.
+        lx.engine.run();
+        lx.engine.getFrameNonThreadSafe(frame);
+        writer.write(frame.getColors());
+      }
+      logger.info("Wrote " + numFrames + " frames of " + segment + " to " + file + ", "
+          + writer.getBytesWritten() / 1024 + "KB");
+      return numFrames;
+    } finally {
+      if (writer != null) {
+        writer.close();
+      }
+      lx.dispose();
+    }
+  }
+
+  static int findPattern(LXChannel channel, String pattern) {
+    List<LXPattern> patterns = channel.getPatterns();
+    for (int i = 0; i < patterns.size(); i++) {
+      if (patterns.get(i).getLabel().equalsIgnoreCase(pattern)
+          || patterns.get(i).getClass().getSimpleName().equalsIgnoreCase(pattern)) {
+        return i;
+      }
+    }
+    try {
+      int index = Integer.parseInt(pattern);
+      return index < patterns.size() ? index : -1;
+    } catch (NumberFormatException nfex) {
+      return -1;
+    }
+  }
+}
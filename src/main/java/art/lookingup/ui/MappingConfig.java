@@ -1,10 +1,13 @@
 package art.lookingup.ui;
 
 import heronarts.lx.LX;
-import heronarts.lx.output.LXOutput;
 import heronarts.lx.parameter.LXParameter;
 import heronarts.lx.studio.LXStudio;
 import art.lookingup.Output;
+import art.lookingup.ParameterFile;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * UIMappingConfig provides mapping configuration for LED strands.
@@ -13,6 +16,10 @@ import art.lookingup.Output;
  * this will allow you to re-order and re-assign them to outputs
  * without changing the physical wiring.  It will also rebuild and restart the
  * LX Output so that it can be re-configured at runtime.
+ *
+ * Outputs are numbered globally across all controllers in the pixlite topology, so one outputN parameter
+ * is registered for every output of every configured controller.  Like UIPixliteConfig the parameters are
+ * loaded before the UI is built so that headless mode can configure output.
  */
 public class MappingConfig extends UIConfig {
   public static final String OUTPUT1 = "output1";
@@ -37,33 +44,49 @@ public class MappingConfig extends UIConfig {
   public LX lx;
   private boolean parameterChanged = false;
 
-  public MappingConfig(final LXStudio.UI ui, LX lx) {
-    super(ui, title, filename);
-    int contentWidth = (int)ui.leftPane.global.getContentWidth();
+  public MappingConfig(final LXStudio.UI ui, LX lx, ParameterFile paramFile, int totalOutputs) {
+    super(ui, title, filename, paramFile);
     this.lx = lx;
 
-    registerStringParameter(OUTPUT1, "0,1");
-    registerStringParameter(OUTPUT2, "2,3");
-    registerStringParameter(OUTPUT3, "4,5");
-    registerStringParameter(OUTPUT4, "6");
-    registerStringParameter(OUTPUT5, "7");
-    registerStringParameter(OUTPUT6, "8");
-    registerStringParameter(OUTPUT7, "9");
-    registerStringParameter(OUTPUT8, "10");
-    registerStringParameter(OUTPUT9, "11");
-    registerStringParameter(OUTPUT10, "12");
-    registerStringParameter(OUTPUT11, "13");
-    registerStringParameter(OUTPUT12, "14");
-    registerStringParameter(OUTPUT13, "15");
-    registerStringParameter(OUTPUT14, "16");
-    registerStringParameter(OUTPUT15, "17");
-    registerStringParameter(OUTPUT16, "18");
+    for (LXParameter p : loadParameters(paramFile, totalOutputs)) {
+      registerParameter(p);
+    }
 
     save();
 
     buildUI(ui);
   }
 
+  /**
+   * Creates an outputN parameter in paramFile for each output, unless it was already loaded.
+   *
+   * @param totalOutputs Number of outputs across all controllers.
+   * @return the parameters in display order.
+   */
+  static public List<LXParameter> loadParameters(ParameterFile paramFile, int totalOutputs) {
+    List<LXParameter> params = new ArrayList<LXParameter>();
+    params.add(paramFile.getStringParameter(OUTPUT1, "0,1"));
+    params.add(paramFile.getStringParameter(OUTPUT2, "2,3"));
+    params.add(paramFile.getStringParameter(OUTPUT3, "4,5"));
+    params.add(paramFile.getStringParameter(OUTPUT4, "6"));
+    params.add(paramFile.getStringParameter(OUTPUT5, "7"));
+    params.add(paramFile.getStringParameter(OUTPUT6, "8"));
+    params.add(paramFile.getStringParameter(OUTPUT7, "9"));
+    params.add(paramFile.getStringParameter(OUTPUT8, "10"));
+    params.add(paramFile.getStringParameter(OUTPUT9, "11"));
+    params.add(paramFile.getStringParameter(OUTPUT10, "12"));
+    params.add(paramFile.getStringParameter(OUTPUT11, "13"));
+    params.add(paramFile.getStringParameter(OUTPUT12, "14"));
+    params.add(paramFile.getStringParameter(OUTPUT13, "15"));
+    params.add(paramFile.getStringParameter(OUTPUT14, "16"));
+    params.add(paramFile.getStringParameter(OUTPUT15, "17"));
+    params.add(paramFile.getStringParameter(OUTPUT16, "18"));
+    for (int outputNum = 17; outputNum <= totalOutputs; outputNum++) {
+      params.add(paramFile.getStringParameter("output" + outputNum, ""));
+    }
+    return params;
+  }
+
   @Override
   public void onParameterChanged(LXParameter p) {
     parameterChanged = true;
@@ -73,14 +96,9 @@ public class MappingConfig extends UIConfig {
   public void onSave() {
     // Only reconfigure if a parameter changed.
     if (parameterChanged) {
-      boolean originalEnabled = lx.engine.output.enabled.getValueb();
-      lx.engine.output.enabled.setValue(false);
-      for (LXOutput child : lx.engine.output.children) {
-        lx.engine.output.removeChild(child);
-      }
-      Output.configurePixliteOutput(lx);
+      // The current outputs keep running until the new ones are ready.
+      Output.reconfigure(lx);
       parameterChanged = false;
-      lx.engine.output.enabled.setValue(originalEnabled);
     }
   }
 }
@@ -3,7 +3,6 @@ package art.lookingup.ui;
 import art.lookingup.Output;
 import art.lookingup.ParameterFile;
 import heronarts.lx.LX;
-import heronarts.lx.output.LXOutput;
 import heronarts.lx.parameter.LXParameter;
 import heronarts.lx.studio.LXStudio;
 
@@ -50,15 +49,9 @@ public class RunsConfig extends UIConfig {
   public void onSave() {
     // Only reconfigure if a parameter changed.
     if (parameterChanged) {
-      boolean originalEnabled = lx.engine.output.enabled.getValueb();
-      lx.engine.output.enabled.setValue(false);
-      for (LXOutput child : lx.engine.output.children) {
-        lx.engine.output.removeChild(child);
-      }
-      // TODO(tracy): We need to rebuild the model here.
-      Output.configurePixliteOutput(lx);
+      // The current model and outputs keep running until the new ones are ready.
+      Output.rebuildModel(lx);
       parameterChanged = false;
-      lx.engine.output.enabled.setValue(originalEnabled);
     }
   }
 }
@@ -3,7 +3,6 @@ package art.lookingup.ui;
 import art.lookingup.Output;
 import art.lookingup.ParameterFile;
 import heronarts.lx.LX;
-import heronarts.lx.output.LXOutput;
 import heronarts.lx.parameter.LXParameter;
 import heronarts.lx.studio.LXStudio;
 
@@ -12,8 +11,8 @@ import java.util.List;
 
 /**
  * Allow for the number of LEDs to be configurable for each strand.
- * TODO(tracy): Make this changeable at runtime?  It would allow for
- * hot removing of dead butterflies although that might not be the
+ * Saving rebuilds the model while running, which allows for hot
+ * removing of dead butterflies although that might not be the
  * electrically safest thing to do.
  *
  * The flowers in the trees will have different strand lengths from
@@ -87,30 +86,30 @@ public class StrandLengths extends UIConfig {
   static public List<Integer> getAllStrandLengths(ParameterFile pFile) {
     List<Integer> lengths = new ArrayList<Integer>(0);
     // Butterfly Run 1
-    lengths.add(Integer.parseInt(pFile.getStringParameter("STRAND1", "20").getString()));
-    lengths.add(Integer.parseInt(pFile.getStringParameter("STRAND2", "20").getString()));
+    lengths.add(Integer.parseInt(pFile.getStringParameter(STRAND1, "20").getString()));
+    lengths.add(Integer.parseInt(pFile.getStringParameter(STRAND2, "20").getString()));
     // Run 2
-    lengths.add(Integer.parseInt(pFile.getStringParameter("STRAND3", "20").getString()));
-    lengths.add(Integer.parseInt(pFile.getStringParameter("STRAND4", "20").getString()));
+    lengths.add(Integer.parseInt(pFile.getStringParameter(STRAND3, "20").getString()));
+    lengths.add(Integer.parseInt(pFile.getStringParameter(STRAND4, "20").getString()));
     // Run 3
-    lengths.add(Integer.parseInt(pFile.getStringParameter("STRAND5", "20").getString()));
-    lengths.add(Integer.parseInt(pFile.getStringParameter("STRAND6", "10").getString()));
+    lengths.add(Integer.parseInt(pFile.getStringParameter(STRAND5, "20").getString()));
+    lengths.add(Integer.parseInt(pFile.getStringParameter(STRAND6, "10").getString()));
 
     // Flowers Run 1
-    lengths.add(Integer.parseInt(pFile.getStringParameter("STRAND7", "5").getString()));
+    lengths.add(Integer.parseInt(pFile.getStringParameter(STRAND7, "5").getString()));
     // Flowers Run 2
-    lengths.add(Integer.parseInt(pFile.getStringParameter("STRAND8", "5").getString()));
+    lengths.add(Integer.parseInt(pFile.getStringParameter(STRAND8, "5").getString()));
     // Flowers Run 3
-    lengths.add(Integer.parseInt(pFile.getStringParameter("STRAND9", "5").getString()));
+    lengths.add(Integer.parseInt(pFile.getStringParameter(STRAND9, "5").getString()));
     // Flowers run 4
-    lengths.add(Integer.parseInt(pFile.getStringParameter("STRAND10", "4").getString()));
-
-    lengths.add(Integer.parseInt(pFile.getStringParameter("STRAND11", "0").getString()));
-    lengths.add(Integer.parseInt(pFile.getStringParameter("STRAND12", "0").getString()));
-    lengths.add(Integer.parseInt(pFile.getStringParameter("STRAND13", "0").getString()));
-    lengths.add(Integer.parseInt(pFile.getStringParameter("STRAND14", "0").getString()));
-    lengths.add(Integer.parseInt(pFile.getStringParameter("STRAND15", "0").getString()));
-    lengths.add(Integer.parseInt(pFile.getStringParameter("STRAND16", "0").getString()));
+    lengths.add(Integer.parseInt(pFile.getStringParameter(STRAND10, "4").getString()));
+
+    lengths.add(Integer.parseInt(pFile.getStringParameter(STRAND11, "0").getString()));
+    lengths.add(Integer.parseInt(pFile.getStringParameter(STRAND12, "0").getString()));
+    lengths.add(Integer.parseInt(pFile.getStringParameter(STRAND13, "0").getString()));
+    lengths.add(Integer.parseInt(pFile.getStringParameter(STRAND14, "0").getString()));
+    lengths.add(Integer.parseInt(pFile.getStringParameter(STRAND15, "0").getString()));
+    lengths.add(Integer.parseInt(pFile.getStringParameter(STRAND16, "0").getString()));
     return lengths;
   }
 
@@ -123,15 +122,9 @@ public class StrandLengths extends UIConfig {
   public void onSave() {
     // Only reconfigure if a parameter changed.
     if (parameterChanged) {
-      boolean originalEnabled = lx.engine.output.enabled.getValueb();
-      lx.engine.output.enabled.setValue(false);
-      for (LXOutput child : lx.engine.output.children) {
-        lx.engine.output.removeChild(child);
-      }
-      // TODO(tracy): We need to rebuild the model here.
-      Output.configurePixliteOutput(lx);
+      // The current model and outputs keep running until the new ones are ready.
+      Output.rebuildModel(lx);
       parameterChanged = false;
-      lx.engine.output.enabled.setValue(originalEnabled);
     }
   }
 }
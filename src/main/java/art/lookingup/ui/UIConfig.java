@@ -108,6 +108,15 @@ public class UIConfig extends UICollapsibleSection implements LXParameterListene
     return bp;
   }
 
+  /**
+   * Registers a parameter that has already been created in paramFile.
+   */
+  public LXParameter registerParameter(LXParameter p) {
+    parameters.add(p);
+    paramLookup.put(p.getLabel(), p);
+    return p;
+  }
+
   public StringParameter getStringParameter(String label) {
     return (StringParameter) paramLookup.get(label);
   }
@@ -1,33 +1,146 @@
 package art.lookingup.ui;
 
 import art.lookingup.Output;
+import art.lookingup.ParameterFile;
+import art.lookingup.output.ControllerConfig;
+import art.lookingup.output.PowerLimiter;
+import art.lookingup.output.SyncCoordinator;
 import heronarts.lx.LX;
-import heronarts.lx.output.LXOutput;
 import heronarts.lx.parameter.LXParameter;
 import heronarts.lx.studio.LXStudio;
 
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output controller configuration.  A single Pixlite is configured with ip1 and port1.  For more than one
+ * controller, or for a Pixlite in 32 output expanded mode, set topology instead, see ControllerConfig for the
+ * format.
+ *
+ * The parameters live in a ParameterFile that is loaded before the UI is built, see
+ * {@link #loadParameters(ParameterFile)}, so that output can also be configured in headless mode.
+ */
 public class UIPixliteConfig extends UIConfig {
   public static final String PIXLITE_1_IP = "ip1";
   public static final String PIXLITE_1_PORT = "port1";
+  public static final String TOPOLOGY = "topology";
+  public static final String SENDER_THREAD = "sendthread";
+  public static final String SENDER_FPS = "senderfps";
+  public static final String SKIP_UNCHANGED = "skipunchanged";
+  public static final String KEEPALIVE_MS = "keepalive";
+  public static final String PACE_OUTPUTS = "pace";
+  public static final String PIXEL_CLOCK_KHZ = "pixelkhz";
+  public static final String TARGET_FPS = "targetfps";
+  public static final String PACK_UNIVERSES = "packuniv";
+  public static final String SYNC_BROADCAST = "syncbcast";
+  public static final String SYNC_TIMEOUT_MS = "synctimeout";
+  public static final String POWER_LIMIT = "powerlimit";
+  public static final String STRAND_AMPS = "strandamps";
+  public static final String INJECT_LEDS = "injectleds";
+  public static final String INJECT_AMPS = "injectamps";
+  public static final String MA_PER_CHANNEL = "machannel";
+  public static final String GAMMA = "gamma";
+  public static final String BRIGHTNESS = "brightness";
+  public static final String COLOR_ORDER = "order";
+  public static final String DITHER = "dither";
+  public static final String COLOR_OVERRIDES = "outputcolor";
+  public static final String PROTOCOL = "protocol";
+  public static final String SACN_MULTICAST = "multicast";
+  public static final String SACN_PRIORITY = "priority";
+  public static final String SACN_SYNC_UNIVERSE = "syncuniv";
+
+  public static final String PROTOCOL_ARTNET = "artnet";
+  public static final String PROTOCOL_SACN = "sacn";
 
   public static final String title = "pixlite";
   public static final String filename = "pixliteconfig.json";
   public LX lx;
   private boolean parameterChanged = false;
 
-  public UIPixliteConfig(final LXStudio.UI ui, LX lx) {
-    super(ui, title, filename);
-    int contentWidth = (int)ui.leftPane.global.getContentWidth();
+  public UIPixliteConfig(final LXStudio.UI ui, LX lx, ParameterFile paramFile) {
+    super(ui, title, filename, paramFile);
     this.lx = lx;
 
-    registerStringParameter(PIXLITE_1_IP, "192.168.2.134");
-    registerStringParameter(PIXLITE_1_PORT, "6454");
+    for (LXParameter p : loadParameters(paramFile)) {
+      registerParameter(p);
+    }
 
     save();
 
     buildUI(ui);
   }
 
+  /**
+   * Creates every pixlite parameter in paramFile with its default value, unless it was already loaded.
+   *
+   * @return the parameters in display order.
+   */
+  static public List<LXParameter> loadParameters(ParameterFile paramFile) {
+    List<LXParameter> params = new ArrayList<LXParameter>();
+    params.add(paramFile.getStringParameter(PIXLITE_1_IP, "192.168.2.134"));
+    params.add(paramFile.getStringParameter(PIXLITE_1_PORT, "6454"));
+    // ip:port:outputs:universeBase;...  Overrides ip1 and port1 when not empty.
+    params.add(paramFile.getStringParameter(TOPOLOGY, ""));
+    // Pack and send on a dedicated thread so network stalls don't delay rendering.
+    params.add(paramFile.getBooleanParameter(SENDER_THREAD, false));
+    params.add(paramFile.getStringParameter(SENDER_FPS, "60"));
+    // Skip universes that have not changed, but resend them at least every keepalive ms.
+    params.add(paramFile.getBooleanParameter(SKIP_UNCHANGED, false));
+    params.add(paramFile.getStringParameter(KEEPALIVE_MS, "1000"));
+    // Send each output no faster than its pixels can clock the data out.  Outputs with more LEDs than
+    // target fps allows at the pixel clock rate are logged when the output is configured.
+    params.add(paramFile.getBooleanParameter(PACE_OUTPUTS, false));
+    params.add(paramFile.getStringParameter(PIXEL_CLOCK_KHZ, "800"));
+    params.add(paramFile.getStringParameter(TARGET_FPS, "60"));
+    // Let outputs share universes instead of each starting a new one.  The Pixlite's output start universes
+    // and channels must then be set as logged when the output is configured.
+    params.add(paramFile.getBooleanParameter(PACK_UNIVERSES, false));
+    // Color correction applied while packing, for all outputs unless overridden per output with
+    // output:order:gamma:brightness:dither;...
+    params.add(paramFile.getStringParameter(GAMMA, "1.0"));
+    params.add(paramFile.getStringParameter(BRIGHTNESS, "1.0"));
+    params.add(paramFile.getStringParameter(COLOR_ORDER, "RGB"));
+    params.add(paramFile.getBooleanParameter(DITHER, false));
+    params.add(paramFile.getStringParameter(COLOR_OVERRIDES, ""));
+    // artnet or sacn.  The sACN settings below are ignored for artnet.
+    params.add(paramFile.getStringParameter(PROTOCOL, PROTOCOL_ARTNET));
+    params.add(paramFile.getBooleanParameter(SACN_MULTICAST, false));
+    params.add(paramFile.getStringParameter(SACN_PRIORITY, "100"));
+    // 0 disables sACN synchronization packets.
+    params.add(paramFile.getStringParameter(SACN_SYNC_UNIVERSE, "0"));
+    // With several controllers, sync is sent once all of them have sent the frame, to each controller or as one
+    // ArtSync to this broadcast address, e.g. 192.168.2.255.  After the timeout it is sent anyway.
+    params.add(paramFile.getStringParameter(SYNC_BROADCAST, ""));
+    params.add(paramFile.getStringParameter(SYNC_TIMEOUT_MS, Integer.toString(SyncCoordinator.DEFAULT_TIMEOUT_MS)));
+    // Dim strands whose estimated current is over strandamps, or over injectamps for the LEDs fed by any one
+    // power injection point, every injectleds LEDs along the strand.  0 injectleds for power at the start
+    // only.  machannel is the current of one color channel at full.
+    params.add(paramFile.getBooleanParameter(POWER_LIMIT, false));
+    params.add(paramFile.getStringParameter(STRAND_AMPS, "5.0"));
+    params.add(paramFile.getStringParameter(INJECT_LEDS, "0"));
+    params.add(paramFile.getStringParameter(INJECT_AMPS, "5.0"));
+    params.add(paramFile.getStringParameter(MA_PER_CHANNEL, Float.toString(PowerLimiter.DEFAULT_MA_PER_CHANNEL)));
+    return params;
+  }
+
+  /**
+   * The configured controllers.  Falls back to a single 16 output controller at ip1:port1 when no topology
+   * is set.
+   */
+  public List<ControllerConfig> getControllers() {
+    return getControllers(paramFile);
+  }
+
+  static public List<ControllerConfig> getControllers(ParameterFile paramFile) {
+    int defaultPort = Integer.parseInt(paramFile.getStringParameter(PIXLITE_1_PORT, "6454").getString());
+    List<ControllerConfig> controllers = ControllerConfig.parseTopology(paramFile.getStringParameter(TOPOLOGY, "").getString(), defaultPort);
+    if (controllers.isEmpty()) {
+      controllers.add(new ControllerConfig(paramFile.getStringParameter(PIXLITE_1_IP, "192.168.2.134").getString(), defaultPort,
+          ControllerConfig.DEFAULT_OUTPUTS, 0));
+    }
+    return controllers;
+  }
+
   @Override
   public void onParameterChanged(LXParameter p) {
     parameterChanged = true;
@@ -37,14 +150,9 @@ public class UIPixliteConfig extends UIConfig {
   public void onSave() {
     // Only reconfigure if a parameter changed.
     if (parameterChanged) {
-      boolean originalEnabled = lx.engine.output.enabled.getValueb();
-      lx.engine.output.enabled.setValue(false);
-      for (LXOutput child : lx.engine.output.children) {
-        lx.engine.output.removeChild(child);
-      }
-      Output.configurePixliteOutput(lx);
+      // The current outputs keep running until the new ones are ready.
+      Output.reconfigure(lx);
       parameterChanged = false;
-      lx.engine.output.enabled.setValue(originalEnabled);
     }
   }
 }